@@ -0,0 +1,489 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.SystemException;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * A read-through cache of the neighbours of dense nodes, so that checking
+ * if a relationship exists between a dense node and another node is a
+ * binary search in memory instead of iterating the relationships of the
+ * dense node. The neighbour ids of a node, per relationship type and
+ * direction, are kept as a sorted {@code long[]} if the node has at least
+ * {@code denseThreshold} such relationships. The least recently used
+ * entries are evicted when there are more than {@code maxEntries}.
+ * 
+ * Entries are invalidated when transactions which creates or deletes
+ * relationships of the node commit, so the cache reflects committed data.
+ * Changes made by the current transaction aren't seen. To keep them out of
+ * the cache, a node is loaded in a thread without a transaction when the
+ * calling thread has one. Those threads come from a bounded pool, if all of
+ * them are busy the relationships are iterated in the calling thread
+ * instead, without being cached.
+ */
+public class AdjacencyCache
+	implements TransactionEventHandler<Collection<Object>>
+{
+	private final GraphDatabaseService graphDb;
+	private final int denseThreshold;
+	private final Map<Key, Adjacency> entries;
+	/**
+	 * The loads in progress per key, guarded by {@link #entries}.
+	 */
+	private final Map<Key, Collection<Load>> loads =
+		new HashMap<Key, Collection<Load>>();
+	private volatile ExecutorService loader;
+	
+	/**
+	 * @param graphDb the {@link GraphDatabaseService} to cache.
+	 * @param denseThreshold the number of relationships a node must have
+	 * to be cached.
+	 * @param maxEntries the max number of cached (node, type, direction).
+	 */
+	public AdjacencyCache( GraphDatabaseService graphDb, int denseThreshold,
+		final int maxEntries )
+	{
+		this.graphDb = graphDb;
+		this.denseThreshold = denseThreshold;
+		this.entries = new LinkedHashMap<Key, Adjacency>( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry(
+				Map.Entry<Key, Adjacency> eldest )
+			{
+				return size() > maxEntries;
+			}
+		};
+		this.loader = new ThreadPoolExecutor( 0,
+			Runtime.getRuntime().availableProcessors(), 30, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory()
+			{
+				public Thread newThread( Runnable runnable )
+				{
+					Thread thread = new Thread( runnable,
+						"AdjacencyCacheLoader" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
+	}
+	
+	/**
+	 * Replaces the pool which loads nodes for callers with a transaction.
+	 * For testing.
+	 */
+	void setLoader( ExecutorService loader )
+	{
+		this.loader = loader;
+	}
+	
+	/**
+	 * Registers this cache for transaction events, must be called before
+	 * it's used.
+	 */
+	public synchronized void startUp()
+	{
+		graphDb.registerTransactionEventHandler( this );
+	}
+	
+	public synchronized void shutDown()
+	{
+		graphDb.unregisterTransactionEventHandler( this );
+		clear();
+	}
+	
+	public void clear()
+	{
+		synchronized ( entries )
+		{
+			entries.clear();
+			for ( Collection<Load> keyLoads : loads.values() )
+			{
+				for ( Load load : keyLoads )
+				{
+					load.invalidated = true;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return whether or not the neighbours of the node are cached. For
+	 * testing.
+	 */
+	boolean isCached( Node node, RelationshipType type, Direction direction )
+	{
+		return get( new Key( node, type, direction ) ) != null;
+	}
+	
+	/**
+	 * Returns a relationship of {@code type} between {@code node} and
+	 * {@code otherNode}, going in {@code direction} from {@code node}.
+	 * Cached neighbours of either node are used if there are any, else the
+	 * relationships of {@code node} are iterated and cached if there are
+	 * enough of them.
+	 * @param node the node to look from.
+	 * @param otherNode the node to look for.
+	 * @param type the relationship type.
+	 * @param direction the direction from {@code node}.
+	 * @return a relationship between the nodes, or {@code null}.
+	 */
+	public Relationship getRelationshipBetween( Node node, Node otherNode,
+		RelationshipType type, Direction direction )
+	{
+		Adjacency adjacency = get( new Key( node, type, direction ) );
+		if ( adjacency != null )
+		{
+			return adjacency.find( otherNode );
+		}
+		adjacency = get( new Key( otherNode, type, direction.reverse() ) );
+		if ( adjacency != null )
+		{
+			return adjacency.find( node );
+		}
+		
+		Key key = new Key( node, type, direction );
+		Load load = beginLoad( key );
+		try
+		{
+			adjacency = loadCommitted( node.getId(), type, direction );
+		}
+		finally
+		{
+			endLoad( key, load, adjacency );
+		}
+		if ( adjacency != null )
+		{
+			return adjacency.find( otherNode );
+		}
+		
+		// Too few relationships to cache, so just look through them
+		for ( Relationship rel : node.getRelationships( type, direction ) )
+		{
+			if ( rel.getOtherNode( node ).equals( otherNode ) )
+			{
+				return rel;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads the committed relationships of a node, in another thread if
+	 * the calling thread has a transaction which may have changed them.
+	 * @return the neighbours of the node, or {@code null} if it has less
+	 * than {@code denseThreshold} relationships or if all loader threads
+	 * are busy.
+	 */
+	private Adjacency loadCommitted( final long nodeId,
+		final RelationshipType type, final Direction direction )
+	{
+		if ( !hasTransaction() )
+		{
+			return load( nodeId, type, direction );
+		}
+		
+		try
+		{
+			return loader.submit( new Callable<Adjacency>()
+			{
+				public Adjacency call()
+				{
+					return load( nodeId, type, direction );
+				}
+			} ).get();
+		}
+		catch ( RejectedExecutionException e )
+		{
+			// The caller iterates the relationships itself then
+			return null;
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( ExecutionException e )
+		{
+			Throwable cause = e.getCause();
+			throw cause instanceof RuntimeException ?
+				( RuntimeException ) cause : new RuntimeException( cause );
+		}
+	}
+	
+	private Adjacency load( long nodeId, RelationshipType type,
+		Direction direction )
+	{
+		Node node = null;
+		try
+		{
+			node = graphDb.getNodeById( nodeId );
+		}
+		catch ( NotFoundException e )
+		{
+			// Created by the calling, uncommitted, transaction
+			return null;
+		}
+		Collection<Relationship> relationships = new ArrayList<Relationship>();
+		for ( Relationship rel : node.getRelationships( type, direction ) )
+		{
+			relationships.add( rel );
+		}
+		return relationships.size() >= denseThreshold ?
+			new Adjacency( node, relationships ) : null;
+	}
+	
+	private boolean hasTransaction()
+	{
+		try
+		{
+			return GraphDatabaseUtil.getTransactionManager(
+				graphDb ).getTransaction() != null;
+		}
+		catch ( SystemException e )
+		{
+			// Can't tell, so be on the safe side
+			return true;
+		}
+	}
+	
+	private Adjacency get( Key key )
+	{
+		synchronized ( entries )
+		{
+			return entries.get( key );
+		}
+	}
+	
+	private Load beginLoad( Key key )
+	{
+		Load load = new Load();
+		synchronized ( entries )
+		{
+			Collection<Load> keyLoads = loads.get( key );
+			if ( keyLoads == null )
+			{
+				keyLoads = new ArrayList<Load>();
+				loads.put( key, keyLoads );
+			}
+			keyLoads.add( load );
+		}
+		return load;
+	}
+	
+	private void endLoad( Key key, Load load, Adjacency adjacencyOrNull )
+	{
+		synchronized ( entries )
+		{
+			Collection<Load> keyLoads = loads.get( key );
+			keyLoads.remove( load );
+			if ( keyLoads.isEmpty() )
+			{
+				loads.remove( key );
+			}
+			// If the key has been invalidated during the load it may
+			// already be stale
+			if ( adjacencyOrNull != null && !load.invalidated )
+			{
+				entries.put( key, adjacencyOrNull );
+			}
+		}
+	}
+	
+	public Collection<Object> beforeCommit( TransactionData data )
+	{
+		// Deleted relationships can't be read after the commit
+		Collection<Object> keys = new ArrayList<Object>();
+		addKeys( keys, data.createdRelationships() );
+		addKeys( keys, data.deletedRelationships() );
+		return keys;
+	}
+	
+	private void addKeys( Collection<Object> keys,
+		Iterable<Relationship> relationships )
+	{
+		for ( Relationship rel : relationships )
+		{
+			RelationshipType type = rel.getType();
+			long startNode = rel.getStartNode().getId();
+			long endNode = rel.getEndNode().getId();
+			keys.add( new Key( startNode, type, Direction.OUTGOING ) );
+			keys.add( new Key( startNode, type, Direction.BOTH ) );
+			keys.add( new Key( endNode, type, Direction.INCOMING ) );
+			keys.add( new Key( endNode, type, Direction.BOTH ) );
+		}
+	}
+
+	public void afterCommit( TransactionData data, Collection<Object> keys )
+	{
+		invalidate( keys );
+	}
+
+	public void afterRollback( TransactionData data, Collection<Object> keys )
+	{
+		// Only loaded from committed data, but a rollback after
+		// beforeCommit may follow a partly applied commit
+		invalidate( keys );
+	}
+	
+	private void invalidate( Collection<Object> keys )
+	{
+		if ( keys == null || keys.isEmpty() )
+		{
+			return;
+		}
+		synchronized ( entries )
+		{
+			for ( Object key : keys )
+			{
+				entries.remove( key );
+				Collection<Load> keyLoads = loads.get( key );
+				if ( keyLoads != null )
+				{
+					for ( Load load : keyLoads )
+					{
+						load.invalidated = true;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A load of a key which is in progress.
+	 */
+	private static class Load
+	{
+		private boolean invalidated;
+	}
+	
+	private static class Key
+	{
+		private final long nodeId;
+		private final String type;
+		private final Direction direction;
+		
+		Key( Node node, RelationshipType type, Direction direction )
+		{
+			this( node.getId(), type, direction );
+		}
+		
+		Key( long nodeId, RelationshipType type, Direction direction )
+		{
+			this.nodeId = nodeId;
+			this.type = type.name();
+			this.direction = direction;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return ( int ) ( nodeId ^ ( nodeId >>> 32 ) ) * 31 +
+				type.hashCode() * 3 + direction.ordinal();
+		}
+		
+		@Override
+		public boolean equals( Object o )
+		{
+			if ( !( o instanceof Key ) )
+			{
+				return false;
+			}
+			Key other = ( Key ) o;
+			return nodeId == other.nodeId && direction == other.direction &&
+				type.equals( other.type );
+		}
+	}
+	
+	/**
+	 * The neighbour ids of a node, sorted, and the ids of the relationships
+	 * to them.
+	 */
+	private class Adjacency
+	{
+		private final long[] neighbourIds;
+		private final long[] relationshipIds;
+		
+		Adjacency( final Node node, Collection<Relationship> relationships )
+		{
+			Relationship[] sorted = relationships.toArray(
+				new Relationship[ relationships.size() ] );
+			Arrays.sort( sorted, new Comparator<Relationship>()
+			{
+				public int compare( Relationship r1, Relationship r2 )
+				{
+					long id1 = r1.getOtherNode( node ).getId();
+					long id2 = r2.getOtherNode( node ).getId();
+					return id1 < id2 ? -1 : ( id1 == id2 ? 0 : 1 );
+				}
+			} );
+			neighbourIds = new long[ sorted.length ];
+			relationshipIds = new long[ sorted.length ];
+			for ( int i = 0; i < sorted.length; i++ )
+			{
+				neighbourIds[ i ] = sorted[ i ].getOtherNode( node ).getId();
+				relationshipIds[ i ] = sorted[ i ].getId();
+			}
+		}
+		
+		Relationship find( Node otherNode )
+		{
+			int index = Arrays.binarySearch( neighbourIds, otherNode.getId() );
+			if ( index < 0 )
+			{
+				return null;
+			}
+			try
+			{
+				return graphDb.getRelationshipById( relationshipIds[ index ] );
+			}
+			catch ( NotFoundException e )
+			{
+				// Deleted by a transaction which hasn't been seen yet
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Collects increments of a {@link ShardedCounter} in memory and flushes
+ * them to the graph in one transaction every now and then, so that hot
+ * counters doesn't cost a write per increment. Increments which hasn't
+ * been flushed are lost if the JVM dies.
+ */
+public class CounterAggregator
+{
+	private final GraphDatabaseService graphDb;
+	private final ShardedCounter counter;
+	private final long flushInterval;
+	private final AtomicLong pending = new AtomicLong();
+	private ScheduledExecutorService flusher;
+	
+	/**
+	 * @param graphDb the {@link GraphDatabaseService} to flush in.
+	 * @param counter the counter to flush to.
+	 * @param flushIntervalMillis the time between flushes.
+	 */
+	public CounterAggregator( GraphDatabaseService graphDb,
+		ShardedCounter counter, long flushIntervalMillis )
+	{
+		this.graphDb = graphDb;
+		this.counter = counter;
+		this.flushInterval = flushIntervalMillis;
+	}
+	
+	/**
+	 * Adds {@code delta} in memory. Needs no transaction.
+	 * @param delta the value to add, may be negative.
+	 */
+	public void add( long delta )
+	{
+		pending.addAndGet( delta );
+	}
+	
+	public void increment()
+	{
+		add( 1 );
+	}
+	
+	public void decrement()
+	{
+		add( -1 );
+	}
+	
+	/**
+	 * @return the value of the counter, including increments which hasn't
+	 * been flushed yet.
+	 */
+	public long get()
+	{
+		return counter.get() + pending.get();
+	}
+	
+	/**
+	 * Writes the increments since the last flush to the counter, in a
+	 * transaction of its own. If that fails they're kept for the next flush.
+	 */
+	public void flush()
+	{
+		long delta = pending.getAndSet( 0 );
+		if ( delta == 0 )
+		{
+			return;
+		}
+		
+		try
+		{
+			Transaction tx = graphDb.beginTx();
+			try
+			{
+				counter.add( delta );
+				tx.success();
+			}
+			finally
+			{
+				tx.finish();
+			}
+			delta = 0;
+		}
+		finally
+		{
+			if ( delta != 0 )
+			{
+				pending.addAndGet( delta );
+			}
+		}
+	}
+	
+	/**
+	 * Starts flushing in a background thread.
+	 */
+	public synchronized void startUp()
+	{
+		if ( flusher != null )
+		{
+			return;
+		}
+		
+		flusher = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory()
+			{
+				public Thread newThread( Runnable runnable )
+				{
+					Thread thread = new Thread( runnable,
+						"CounterAggregator" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
+		flusher.scheduleWithFixedDelay( new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					flush();
+				}
+				catch ( RuntimeException e )
+				{
+					// Kept for the next flush
+				}
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS );
+	}
+	
+	/**
+	 * Stops the background thread and flushes what's left.
+	 */
+	public synchronized void shutDown()
+	{
+		if ( flusher != null )
+		{
+			flusher.shutdown();
+			try
+			{
+				flusher.awaitTermination( 10, TimeUnit.SECONDS );
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			flusher = null;
+		}
+		flush();
+	}
+}
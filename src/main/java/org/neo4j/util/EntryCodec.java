@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.neo4j.graphdb.PropertyContainer;
+
+/**
+ * Stores queue entries compactly, as one {@code byte[]} property instead of
+ * one property per key, and reads them back as {@link EntryView}s which can
+ * be reused between entries. Reading an entry then costs one property
+ * lookup instead of one per key, and no {@link Map} needs to be filled.
+ * 
+ * Only entries where all values are strings or (boxed) primitives can be
+ * stored compactly, other entries are stored with one property per key as
+ * usual. {@link #read(PropertyContainer, EntryView)} reads both formats.
+ */
+public class EntryCodec
+{
+	static final String KEY_PAYLOAD = "___entry_payload___";
+	
+	static final byte TYPE_STRING = 1;
+	static final byte TYPE_INT = 2;
+	static final byte TYPE_LONG = 3;
+	static final byte TYPE_BOOLEAN = 4;
+	static final byte TYPE_DOUBLE = 5;
+	static final byte TYPE_FLOAT = 6;
+	static final byte TYPE_SHORT = 7;
+	static final byte TYPE_BYTE = 8;
+	static final byte TYPE_CHAR = 9;
+	
+	static final String CHARSET = "UTF-8";
+	
+	private EntryCodec()
+	{
+	}
+	
+	/**
+	 * Writes {@code values} to {@code container}, compactly if possible.
+	 * @param container the entry node.
+	 * @param values the values of the entry.
+	 */
+	public static void write( PropertyContainer container,
+		Map<String, Object> values )
+	{
+		byte[] payload = encode( values );
+		if ( payload != null )
+		{
+			container.setProperty( KEY_PAYLOAD, payload );
+			return;
+		}
+		
+		for ( Map.Entry<String, Object> value : values.entrySet() )
+		{
+			container.setProperty( value.getKey(), value.getValue() );
+		}
+	}
+	
+	/**
+	 * Reads the values of an entry written with
+	 * {@link #write(PropertyContainer, Map)} or with one property per key.
+	 * @param container the entry node.
+	 * @param reusableView the view to reset to the values of the entry, if
+	 * it was stored compactly.
+	 * @return {@code reusableView} if the entry was stored compactly,
+	 * otherwise a new map with the properties of {@code container}.
+	 */
+	public static Map<String, Object> read( PropertyContainer container,
+		EntryView reusableView )
+	{
+		byte[] payload = ( byte[] ) container.getProperty( KEY_PAYLOAD, null );
+		if ( payload != null )
+		{
+			return reusableView.reset( payload );
+		}
+		
+		Map<String, Object> result = new HashMap<String, Object>();
+		for ( String key : container.getPropertyKeys() )
+		{
+			result.put( key, container.getProperty( key ) );
+		}
+		return result;
+	}
+	
+	/**
+	 * @param values the values to encode.
+	 * @return the encoded values, or {@code null} if some value is of
+	 * a type which isn't supported.
+	 */
+	public static byte[] encode( Map<String, Object> values )
+	{
+		try
+		{
+			if ( values.size() > 0xFFFF )
+			{
+				return null;
+			}
+			int size = 2;
+			for ( Map.Entry<String, Object> entry : values.entrySet() )
+			{
+				int keySize = entry.getKey().getBytes( CHARSET ).length;
+				int valueSize = valueSize( entry.getValue() );
+				if ( keySize > 0xFFFF || valueSize < 0 )
+				{
+					return null;
+				}
+				size += 2 + keySize + 1 + valueSize;
+			}
+			
+			byte[] result = new byte[ size ];
+			int offset = writeShort( result, 0, values.size() );
+			for ( Map.Entry<String, Object> entry : values.entrySet() )
+			{
+				byte[] key = entry.getKey().getBytes( CHARSET );
+				offset = writeShort( result, offset, key.length );
+				System.arraycopy( key, 0, result, offset, key.length );
+				offset = writeValue( result, offset + key.length,
+					entry.getValue() );
+			}
+			return result;
+		}
+		catch ( UnsupportedEncodingException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+	
+	private static int valueSize( Object value )
+		throws UnsupportedEncodingException
+	{
+		if ( value instanceof String )
+		{
+			return 4 + ( ( String ) value ).getBytes( CHARSET ).length;
+		}
+		else if ( value instanceof Integer || value instanceof Float )
+		{
+			return 4;
+		}
+		else if ( value instanceof Long || value instanceof Double )
+		{
+			return 8;
+		}
+		else if ( value instanceof Short || value instanceof Character )
+		{
+			return 2;
+		}
+		else if ( value instanceof Boolean || value instanceof Byte )
+		{
+			return 1;
+		}
+		return -1;
+	}
+	
+	private static int writeValue( byte[] target, int offset, Object value )
+		throws UnsupportedEncodingException
+	{
+		if ( value instanceof String )
+		{
+			byte[] bytes = ( ( String ) value ).getBytes( CHARSET );
+			target[ offset++ ] = TYPE_STRING;
+			offset = writeInt( target, offset, bytes.length );
+			System.arraycopy( bytes, 0, target, offset, bytes.length );
+			return offset + bytes.length;
+		}
+		else if ( value instanceof Integer )
+		{
+			target[ offset++ ] = TYPE_INT;
+			return writeInt( target, offset, ( Integer ) value );
+		}
+		else if ( value instanceof Long )
+		{
+			target[ offset++ ] = TYPE_LONG;
+			return writeLong( target, offset, ( Long ) value );
+		}
+		else if ( value instanceof Boolean )
+		{
+			target[ offset++ ] = TYPE_BOOLEAN;
+			target[ offset++ ] = ( byte ) ( ( Boolean ) value ? 1 : 0 );
+			return offset;
+		}
+		else if ( value instanceof Double )
+		{
+			target[ offset++ ] = TYPE_DOUBLE;
+			return writeLong( target, offset,
+				Double.doubleToLongBits( ( Double ) value ) );
+		}
+		else if ( value instanceof Float )
+		{
+			target[ offset++ ] = TYPE_FLOAT;
+			return writeInt( target, offset,
+				Float.floatToIntBits( ( Float ) value ) );
+		}
+		else if ( value instanceof Short )
+		{
+			target[ offset++ ] = TYPE_SHORT;
+			return writeShort( target, offset, ( Short ) value );
+		}
+		else if ( value instanceof Byte )
+		{
+			target[ offset++ ] = TYPE_BYTE;
+			target[ offset++ ] = ( Byte ) value;
+			return offset;
+		}
+		else
+		{
+			target[ offset++ ] = TYPE_CHAR;
+			return writeShort( target, offset, ( Character ) value );
+		}
+	}
+	
+	private static int writeShort( byte[] target, int offset, int value )
+	{
+		target[ offset++ ] = ( byte ) ( value >>> 8 );
+		target[ offset++ ] = ( byte ) value;
+		return offset;
+	}
+	
+	private static int writeInt( byte[] target, int offset, int value )
+	{
+		offset = writeShort( target, offset, value >>> 16 );
+		return writeShort( target, offset, value );
+	}
+	
+	private static int writeLong( byte[] target, int offset, long value )
+	{
+		offset = writeInt( target, offset, ( int ) ( value >>> 32 ) );
+		return writeInt( target, offset, ( int ) value );
+	}
+	
+	static int readShort( byte[] source, int offset )
+	{
+		return ( ( source[ offset ] & 0xFF ) << 8 ) |
+			( source[ offset + 1 ] & 0xFF );
+	}
+	
+	static int readInt( byte[] source, int offset )
+	{
+		return ( readShort( source, offset ) << 16 ) |
+			readShort( source, offset + 2 );
+	}
+	
+	static long readLong( byte[] source, int offset )
+	{
+		return ( ( long ) readInt( source, offset ) << 32 ) |
+			( readInt( source, offset + 4 ) & 0xFFFFFFFFL );
+	}
+}
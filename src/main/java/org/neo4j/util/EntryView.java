@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only {@link Map} view over an entry encoded by {@link EntryCodec}.
+ * The view can be {@link #reset(byte[]) reset} to another entry, so that
+ * one instance can be reused for many entries. Values are decoded when
+ * they are asked for, {@link #get(Object)} doesn't allocate anything else
+ * than the value itself.
+ * 
+ * Since the view may be reset to another entry, a handler which wants to
+ * keep an entry after it has been handled must copy it.
+ */
+public class EntryView extends AbstractMap<String, Object>
+{
+	private byte[] payload;
+	private int size;
+	
+	/**
+	 * Makes this view show the entry encoded in {@code payload}.
+	 * @param payload an entry encoded by {@link EntryCodec#encode(Map)}.
+	 * @return this view.
+	 */
+	public EntryView reset( byte[] payload )
+	{
+		this.payload = payload;
+		this.size = EntryCodec.readShort( payload, 0 );
+		return this;
+	}
+	
+	@Override
+	public int size()
+	{
+		return this.size;
+	}
+	
+	@Override
+	public boolean containsKey( Object key )
+	{
+		return find( key ) != -1;
+	}
+	
+	@Override
+	public Object get( Object key )
+	{
+		int offset = find( key );
+		return offset == -1 ? null : readValue( offset );
+	}
+	
+	/**
+	 * Decodes all the values, so it's only here to fulfill the {@link Map}
+	 * contract, use {@link #get(Object)} to look up values.
+	 */
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet()
+	{
+		Map<String, Object> result = new HashMap<String, Object>();
+		int offset = 2;
+		for ( int i = 0; i < size; i++ )
+		{
+			int keyLength = EntryCodec.readShort( payload, offset );
+			String key = readString( offset + 2, keyLength );
+			offset += 2 + keyLength;
+			result.put( key, readValue( offset ) );
+			offset = skipValue( offset );
+		}
+		return result.entrySet();
+	}
+	
+	/**
+	 * @return the offset of the value for {@code key}, or {@code -1} if
+	 * there's no such key.
+	 */
+	private int find( Object key )
+	{
+		if ( payload == null || !( key instanceof String ) )
+		{
+			return -1;
+		}
+		
+		String string = ( String ) key;
+		int offset = 2;
+		for ( int i = 0; i < size; i++ )
+		{
+			int keyLength = EntryCodec.readShort( payload, offset );
+			offset += 2;
+			boolean matches = keyEquals( offset, keyLength, string );
+			offset += keyLength;
+			if ( matches )
+			{
+				return offset;
+			}
+			offset = skipValue( offset );
+		}
+		return -1;
+	}
+	
+	private boolean keyEquals( int offset, int length, String key )
+	{
+		for ( int i = 0; i < key.length(); i++ )
+		{
+			if ( key.charAt( i ) >= 0x80 )
+			{
+				// Not ASCII, compare the decoded key instead
+				return readString( offset, length ).equals( key );
+			}
+		}
+		
+		if ( length != key.length() )
+		{
+			return false;
+		}
+		for ( int i = 0; i < length; i++ )
+		{
+			if ( payload[ offset + i ] != key.charAt( i ) )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private int skipValue( int offset )
+	{
+		switch ( payload[ offset ] )
+		{
+		case EntryCodec.TYPE_STRING:
+			return offset + 5 + EntryCodec.readInt( payload, offset + 1 );
+		case EntryCodec.TYPE_INT:
+		case EntryCodec.TYPE_FLOAT:
+			return offset + 5;
+		case EntryCodec.TYPE_LONG:
+		case EntryCodec.TYPE_DOUBLE:
+			return offset + 9;
+		case EntryCodec.TYPE_SHORT:
+		case EntryCodec.TYPE_CHAR:
+			return offset + 3;
+		default:
+			return offset + 2;
+		}
+	}
+	
+	private Object readValue( int offset )
+	{
+		int at = offset + 1;
+		switch ( payload[ offset ] )
+		{
+		case EntryCodec.TYPE_STRING:
+			return readString( at + 4, EntryCodec.readInt( payload, at ) );
+		case EntryCodec.TYPE_INT:
+			return EntryCodec.readInt( payload, at );
+		case EntryCodec.TYPE_LONG:
+			return EntryCodec.readLong( payload, at );
+		case EntryCodec.TYPE_BOOLEAN:
+			return payload[ at ] != 0;
+		case EntryCodec.TYPE_DOUBLE:
+			return Double.longBitsToDouble(
+				EntryCodec.readLong( payload, at ) );
+		case EntryCodec.TYPE_FLOAT:
+			return Float.intBitsToFloat( EntryCodec.readInt( payload, at ) );
+		case EntryCodec.TYPE_SHORT:
+			return ( short ) EntryCodec.readShort( payload, at );
+		case EntryCodec.TYPE_BYTE:
+			return payload[ at ];
+		case EntryCodec.TYPE_CHAR:
+			return ( char ) EntryCodec.readShort( payload, at );
+		default:
+			throw new IllegalStateException( "Unknown type " +
+				payload[ offset ] );
+		}
+	}
+	
+	private String readString( int offset, int length )
+	{
+		try
+		{
+			return new String( payload, offset, length, EntryCodec.CHARSET );
+		}
+		catch ( UnsupportedEncodingException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+}
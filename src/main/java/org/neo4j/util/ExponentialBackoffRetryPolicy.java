@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import java.util.Random;
+
+/**
+ * A {@link RetryPolicy} which doubles the delay for each failed attempt,
+ * up to a max delay, and gives up after a max number of attempts.
+ * 
+ * Half of each delay is random, so that entries which failed at the same
+ * time (f.ex. because of an unavailable resource) aren't retried at the
+ * same time as well.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy
+{
+	private static final Random random = new Random();
+	
+	private final int maxAttempts;
+	private final long initialDelay;
+	private final long maxDelay;
+	
+	/**
+	 * @param maxAttempts the max number of attempts, including the first.
+	 * @param initialDelay the delay in milliseconds after the first failed
+	 * attempt.
+	 * @param maxDelay the max delay in milliseconds.
+	 */
+	public ExponentialBackoffRetryPolicy( int maxAttempts, long initialDelay,
+		long maxDelay )
+	{
+		this.maxAttempts = maxAttempts;
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+	}
+	
+	public long getRetryDelay( int failedAttempts, Exception exception )
+	{
+		if ( failedAttempts >= maxAttempts )
+		{
+			return -1;
+		}
+		
+		int shift = Math.min( failedAttempts - 1, 30 );
+		long delay = Math.min( maxDelay, initialDelay << shift );
+		long half = delay / 2;
+		return half + ( long ) ( random.nextDouble() * ( delay - half ) );
+	}
+}
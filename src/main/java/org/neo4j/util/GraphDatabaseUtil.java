@@ -23,8 +23,21 @@ import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.transaction.TransactionManager;
 
@@ -54,6 +67,8 @@ import org.neo4j.kernel.impl.transaction.LockManager;
  */
 public class GraphDatabaseUtil
 {
+	private static ExecutorService relationshipFinders;
+	
 	private GraphDatabaseService graphDb;
 	
 	/**
@@ -192,9 +207,15 @@ public class GraphDatabaseUtil
 	}
 	
 	public TransactionManager getTransactionManager()
+	{
+		return getTransactionManager( graphDb );
+	}
+	
+	public static TransactionManager getTransactionManager(
+		GraphDatabaseService graphDb )
 	{
 		return ( ( EmbeddedGraphDatabase )
-			graphDb() ).getConfig().getTxModule().getTxManager();
+			graphDb ).getConfig().getTxModule().getTxManager();
 	}
 	
 	public static Object[] propertyValueAsArray( Object propertyValue )
@@ -242,6 +263,529 @@ public class GraphDatabaseUtil
 		return array;
 	}
 	
+	/**
+	 * @param container the entity holding the property.
+	 * @param key the property key.
+	 * @return the long[] value of the property, an empty array if it
+	 * doesn't exist or an array containing its value if it's a single value.
+	 */
+	public static long[] getLongArray( PropertyContainer container, String key )
+	{
+		Object value = container.getProperty( key, null );
+		if ( value == null )
+		{
+			return new long[ 0 ];
+		}
+		else if ( value instanceof long[] )
+		{
+			return ( long[] ) value;
+		}
+		else if ( !value.getClass().isArray() )
+		{
+			return new long[] { ( ( Number ) value ).longValue() };
+		}
+		
+		Object[] values = propertyValueAsArray( value );
+		long[] result = new long[ values.length ];
+		for ( int i = 0; i < values.length; i++ )
+		{
+			value = values[ i ];
+			result[ i ] = ( ( Number ) value ).longValue();
+		}
+		return result;
+	}
+	
+	private static int indexOf( long[] array, long value )
+	{
+		for ( int i = 0; i < array.length; i++ )
+		{
+			if ( array[ i ] == value )
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	public static boolean longArrayContains( PropertyContainer container,
+		String key, long value )
+	{
+		return indexOf( getLongArray( container, key ), value ) != -1;
+	}
+	
+	/**
+	 * Appends {@code value} to the long[] property, if it isn't already
+	 * in it, like {@link #addValueToArray(PropertyContainer, String, Object)}
+	 * but without boxing or reflection.
+	 * @return {@code true} if the value was added.
+	 */
+	public static boolean addToLongArray( PropertyContainer container,
+		String key, long value )
+	{
+		long[] array = getLongArray( container, key );
+		if ( indexOf( array, value ) != -1 )
+		{
+			return false;
+		}
+		long[] result = Arrays.copyOf( array, array.length + 1 );
+		result[ array.length ] = value;
+		container.setProperty( key, result );
+		return true;
+	}
+	
+	/**
+	 * Removes {@code value} from the long[] property. The property is
+	 * removed when it becomes empty.
+	 * @return {@code true} if the value was removed.
+	 */
+	public static boolean removeFromLongArray( PropertyContainer container,
+		String key, long value )
+	{
+		long[] array = getLongArray( container, key );
+		int index = indexOf( array, value );
+		if ( index == -1 )
+		{
+			return false;
+		}
+		if ( array.length == 1 )
+		{
+			container.removeProperty( key );
+			return true;
+		}
+		long[] result = new long[ array.length - 1 ];
+		System.arraycopy( array, 0, result, 0, index );
+		System.arraycopy( array, index + 1, result, index,
+			array.length - index - 1 );
+		container.setProperty( key, result );
+		return true;
+	}
+	
+	/**
+	 * Appends the {@code values} which aren't already in the long[]
+	 * property, using a hash set rather than one scan per value.
+	 * @return the number of added values.
+	 */
+	public static int mergeIntoLongArray( PropertyContainer container,
+		String key, long[] values )
+	{
+		long[] existing = getLongArray( container, key );
+		LongHashSet seen =
+			new LongHashSet( existing.length + values.length );
+		for ( long value : existing )
+		{
+			seen.add( value );
+		}
+		long[] result = Arrays.copyOf( existing,
+			existing.length + values.length );
+		int size = existing.length;
+		for ( long value : values )
+		{
+			if ( seen.add( value ) )
+			{
+				result[ size++ ] = value;
+			}
+		}
+		if ( size > existing.length )
+		{
+			container.setProperty( key, Arrays.copyOf( result, size ) );
+		}
+		return size - existing.length;
+	}
+	
+	/**
+	 * @param container the entity holding the property.
+	 * @param key the property key.
+	 * @return the int[] value of the property, an empty array if it
+	 * doesn't exist or an array containing its value if it's a single value.
+	 */
+	public static int[] getIntArray( PropertyContainer container, String key )
+	{
+		Object value = container.getProperty( key, null );
+		if ( value == null )
+		{
+			return new int[ 0 ];
+		}
+		else if ( value instanceof int[] )
+		{
+			return ( int[] ) value;
+		}
+		else if ( !value.getClass().isArray() )
+		{
+			return new int[] { ( ( Number ) value ).intValue() };
+		}
+		
+		Object[] values = propertyValueAsArray( value );
+		int[] result = new int[ values.length ];
+		for ( int i = 0; i < values.length; i++ )
+		{
+			value = values[ i ];
+			result[ i ] = ( ( Number ) value ).intValue();
+		}
+		return result;
+	}
+	
+	private static int indexOf( int[] array, int value )
+	{
+		for ( int i = 0; i < array.length; i++ )
+		{
+			if ( array[ i ] == value )
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	public static boolean intArrayContains( PropertyContainer container,
+		String key, int value )
+	{
+		return indexOf( getIntArray( container, key ), value ) != -1;
+	}
+	
+	/**
+	 * Appends {@code value} to the int[] property, if it isn't already
+	 * in it, like {@link #addValueToArray(PropertyContainer, String, Object)}
+	 * but without boxing or reflection.
+	 * @return {@code true} if the value was added.
+	 */
+	public static boolean addToIntArray( PropertyContainer container,
+		String key, int value )
+	{
+		int[] array = getIntArray( container, key );
+		if ( indexOf( array, value ) != -1 )
+		{
+			return false;
+		}
+		int[] result = Arrays.copyOf( array, array.length + 1 );
+		result[ array.length ] = value;
+		container.setProperty( key, result );
+		return true;
+	}
+	
+	/**
+	 * Removes {@code value} from the int[] property. The property is
+	 * removed when it becomes empty.
+	 * @return {@code true} if the value was removed.
+	 */
+	public static boolean removeFromIntArray( PropertyContainer container,
+		String key, int value )
+	{
+		int[] array = getIntArray( container, key );
+		int index = indexOf( array, value );
+		if ( index == -1 )
+		{
+			return false;
+		}
+		if ( array.length == 1 )
+		{
+			container.removeProperty( key );
+			return true;
+		}
+		int[] result = new int[ array.length - 1 ];
+		System.arraycopy( array, 0, result, 0, index );
+		System.arraycopy( array, index + 1, result, index,
+			array.length - index - 1 );
+		container.setProperty( key, result );
+		return true;
+	}
+	
+	/**
+	 * Appends the {@code values} which aren't already in the int[]
+	 * property, using a hash set rather than one scan per value.
+	 * @return the number of added values.
+	 */
+	public static int mergeIntoIntArray( PropertyContainer container,
+		String key, int[] values )
+	{
+		int[] existing = getIntArray( container, key );
+		LongHashSet seen =
+			new LongHashSet( existing.length + values.length );
+		for ( int value : existing )
+		{
+			seen.add( value );
+		}
+		int[] result = Arrays.copyOf( existing,
+			existing.length + values.length );
+		int size = existing.length;
+		for ( int value : values )
+		{
+			if ( seen.add( value ) )
+			{
+				result[ size++ ] = value;
+			}
+		}
+		if ( size > existing.length )
+		{
+			container.setProperty( key, Arrays.copyOf( result, size ) );
+		}
+		return size - existing.length;
+	}
+	
+	/**
+	 * @param container the entity holding the property.
+	 * @param key the property key.
+	 * @return the double[] value of the property, an empty array if it
+	 * doesn't exist or an array containing its value if it's a single value.
+	 */
+	public static double[] getDoubleArray( PropertyContainer container, String key )
+	{
+		Object value = container.getProperty( key, null );
+		if ( value == null )
+		{
+			return new double[ 0 ];
+		}
+		else if ( value instanceof double[] )
+		{
+			return ( double[] ) value;
+		}
+		else if ( !value.getClass().isArray() )
+		{
+			return new double[] { ( ( Number ) value ).doubleValue() };
+		}
+		
+		Object[] values = propertyValueAsArray( value );
+		double[] result = new double[ values.length ];
+		for ( int i = 0; i < values.length; i++ )
+		{
+			value = values[ i ];
+			result[ i ] = ( ( Number ) value ).doubleValue();
+		}
+		return result;
+	}
+	
+	private static int indexOf( double[] array, double value )
+	{
+		for ( int i = 0; i < array.length; i++ )
+		{
+			if ( Double.doubleToLongBits( array[ i ] ) ==
+				Double.doubleToLongBits( value ) )
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	public static boolean doubleArrayContains( PropertyContainer container,
+		String key, double value )
+	{
+		return indexOf( getDoubleArray( container, key ), value ) != -1;
+	}
+	
+	/**
+	 * Appends {@code value} to the double[] property, if it isn't already
+	 * in it, like {@link #addValueToArray(PropertyContainer, String, Object)}
+	 * but without boxing or reflection.
+	 * @return {@code true} if the value was added.
+	 */
+	public static boolean addToDoubleArray( PropertyContainer container,
+		String key, double value )
+	{
+		double[] array = getDoubleArray( container, key );
+		if ( indexOf( array, value ) != -1 )
+		{
+			return false;
+		}
+		double[] result = Arrays.copyOf( array, array.length + 1 );
+		result[ array.length ] = value;
+		container.setProperty( key, result );
+		return true;
+	}
+	
+	/**
+	 * Removes {@code value} from the double[] property. The property is
+	 * removed when it becomes empty.
+	 * @return {@code true} if the value was removed.
+	 */
+	public static boolean removeFromDoubleArray( PropertyContainer container,
+		String key, double value )
+	{
+		double[] array = getDoubleArray( container, key );
+		int index = indexOf( array, value );
+		if ( index == -1 )
+		{
+			return false;
+		}
+		if ( array.length == 1 )
+		{
+			container.removeProperty( key );
+			return true;
+		}
+		double[] result = new double[ array.length - 1 ];
+		System.arraycopy( array, 0, result, 0, index );
+		System.arraycopy( array, index + 1, result, index,
+			array.length - index - 1 );
+		container.setProperty( key, result );
+		return true;
+	}
+	
+	/**
+	 * Appends the {@code values} which aren't already in the double[]
+	 * property, using a hash set rather than one scan per value.
+	 * @return the number of added values.
+	 */
+	public static int mergeIntoDoubleArray( PropertyContainer container,
+		String key, double[] values )
+	{
+		double[] existing = getDoubleArray( container, key );
+		LongHashSet seen =
+			new LongHashSet( existing.length + values.length );
+		for ( double value : existing )
+		{
+			seen.add( Double.doubleToLongBits( value ) );
+		}
+		double[] result = Arrays.copyOf( existing,
+			existing.length + values.length );
+		int size = existing.length;
+		for ( double value : values )
+		{
+			if ( seen.add( Double.doubleToLongBits( value ) ) )
+			{
+				result[ size++ ] = value;
+			}
+		}
+		if ( size > existing.length )
+		{
+			container.setProperty( key, Arrays.copyOf( result, size ) );
+		}
+		return size - existing.length;
+	}
+	
+	/**
+	 * @param container the entity holding the property.
+	 * @param key the property key.
+	 * @return the String[] value of the property, an empty array if it
+	 * doesn't exist or an array containing its value if it's a single value.
+	 */
+	public static String[] getStringArray( PropertyContainer container, String key )
+	{
+		Object value = container.getProperty( key, null );
+		if ( value == null )
+		{
+			return new String[ 0 ];
+		}
+		else if ( value instanceof String[] )
+		{
+			return ( String[] ) value;
+		}
+		else if ( !value.getClass().isArray() )
+		{
+			return new String[] { ( String ) value };
+		}
+		
+		Object[] values = propertyValueAsArray( value );
+		String[] result = new String[ values.length ];
+		for ( int i = 0; i < values.length; i++ )
+		{
+			value = values[ i ];
+			result[ i ] = ( String ) value;
+		}
+		return result;
+	}
+	
+	private static int indexOf( String[] array, String value )
+	{
+		for ( int i = 0; i < array.length; i++ )
+		{
+			if ( array[ i ].equals( value ) )
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	public static boolean stringArrayContains( PropertyContainer container,
+		String key, String value )
+	{
+		return indexOf( getStringArray( container, key ), value ) != -1;
+	}
+	
+	/**
+	 * Appends {@code value} to the String[] property, if it isn't already
+	 * in it, like {@link #addValueToArray(PropertyContainer, String, Object)}
+	 * but without boxing or reflection.
+	 * @return {@code true} if the value was added.
+	 */
+	public static boolean addToStringArray( PropertyContainer container,
+		String key, String value )
+	{
+		String[] array = getStringArray( container, key );
+		if ( indexOf( array, value ) != -1 )
+		{
+			return false;
+		}
+		String[] result = Arrays.copyOf( array, array.length + 1 );
+		result[ array.length ] = value;
+		container.setProperty( key, result );
+		return true;
+	}
+	
+	/**
+	 * Removes {@code value} from the String[] property. The property is
+	 * removed when it becomes empty.
+	 * @return {@code true} if the value was removed.
+	 */
+	public static boolean removeFromStringArray( PropertyContainer container,
+		String key, String value )
+	{
+		String[] array = getStringArray( container, key );
+		int index = indexOf( array, value );
+		if ( index == -1 )
+		{
+			return false;
+		}
+		if ( array.length == 1 )
+		{
+			container.removeProperty( key );
+			return true;
+		}
+		String[] result = new String[ array.length - 1 ];
+		System.arraycopy( array, 0, result, 0, index );
+		System.arraycopy( array, index + 1, result, index,
+			array.length - index - 1 );
+		container.setProperty( key, result );
+		return true;
+	}
+	
+	/**
+	 * Appends the {@code values} which aren't already in the String[]
+	 * property, using a hash set rather than one scan per value.
+	 * @return the number of added values.
+	 */
+	public static int mergeIntoStringArray( PropertyContainer container,
+		String key, String[] values )
+	{
+		String[] existing = getStringArray( container, key );
+		Set<String> seen = new HashSet<String>();
+		for ( String value : existing )
+		{
+			seen.add( value );
+		}
+		String[] result = Arrays.copyOf( existing,
+			existing.length + values.length );
+		int size = existing.length;
+		for ( String value : values )
+		{
+			if ( seen.add( value ) )
+			{
+				result[ size++ ] = value;
+			}
+		}
+		if ( size > existing.length )
+		{
+			container.setProperty( key, Arrays.copyOf( result, size ) );
+		}
+		return size - existing.length;
+	}
+	
+	/**
+	 * Increments an {@link Integer} property while holding a write lock on
+	 * {@code node}, which serializes all transactions incrementing it.
+	 * @deprecated use a {@link ShardedCounter} for counters which are
+	 * incremented concurrently.
+	 */
+	@Deprecated
 	public static Integer incrementAndGetCounter( Node node, String propertyKey )
 	{
 	    acquireWriteLock( node );
@@ -251,9 +795,15 @@ public class GraphDatabaseUtil
 		return value;
 	}
 
+	/**
+	 * @deprecated use a {@link ShardedCounter} for counters which are
+	 * decremented concurrently.
+	 */
+	@Deprecated
 	public static Integer decrementAndGetCounter( Node node, String propertyKey,
 		int notLowerThan )
 	{
+	    acquireWriteLock( node );
 		int value = ( Integer ) node.getProperty( propertyKey, 0 );
 		value--;
 		value = value < notLowerThan ? notLowerThan : value;
@@ -320,20 +870,13 @@ public class GraphDatabaseUtil
     }
     
     /**
-     * Looks to see if there exists a relationship between two given nodes.
-     * It starts iterating over relationships from the node which you think
-     * has the least amount of relationships of the two nodes. If it has
-     * iterated over a specified amount of relationships without finding
-     * a match it spawns a new thread which will iterate over relationships
-     * from the other node in the reverse direction. The loop will exit
-     * when/if any thread finds a match or when there are no more relationships
-     * left to iterate over.
+     * Looks to see if there exists a relationship between two given nodes,
+     * see {@link #getExistingRelationshipBetween(Node, Node,
+     * RelationshipExpander, ObjectFilter, int)}.
      * 
-     * @param nodeYouThinkHasLeastRelationships the node of the two which you
-     * think/know has the least amount of relationship (that will be
-     * iterated over).
-     * @param secondNode the node of the two you suspect has more relationships
-     * than the first node.
+     * @param nodeYouThinkHasLeastRelationships one of the nodes, which will
+     * be iterated over in the calling thread.
+     * @param secondNode the other node.
      * @param expander the {@link RelationshipExpander} to use to expand the
      * relationships to iterate over.
      * @return the first relationship, if any, with the given criterias (type,
@@ -348,28 +891,29 @@ public class GraphDatabaseUtil
     }
     
 	/**
-	 * TODO Use RelationshipExpander later on
-	 * 
 	 * Looks to see if there exists a relationship between two given nodes.
-	 * It starts iterating over relationships from the node which you think
-	 * has the least amount of relationships of the two nodes. If it has
-	 * iterated over a specified amount of relationships without finding
-	 * a match it spawns a new thread which will iterate over relationships
-	 * from the other node in the reverse direction. The loop will exit
-	 * when/if any thread finds a match or when there are no more relationships
-	 * left to iterate over.
+	 * It iterates over the relationships of both nodes in lockstep, so that
+	 * the cost is decided by the node which really has the least amount of
+	 * relationships: when one of the nodes runs out of relationships the
+	 * answer is known. If both nodes have more than
+	 * {@code spawnThreadThreshold} relationships the second node is handed
+	 * over to a thread from a shared, bounded pool while the calling thread
+	 * continues with the first node. The one which doesn't finish first is
+	 * told to stop. If all pool threads are busy the calling thread
+	 * continues with both nodes in lockstep. A pool thread has no
+	 * transaction, so it only sees committed relationships. Therefore a
+	 * pool thread which finds nothing only makes the calling thread go
+	 * back to both nodes in lockstep, in its own transaction.
 	 * 
-	 * @param nodeYouThinkHasLeastRelationships the node of the two which you
-	 * think/know has the least amount of relationship (that will be
-	 * iterated over).
-	 * @param secondNode the node of the two you suspect has more relationships
-	 * than the first node.
+	 * @param nodeYouThinkHasLeastRelationships one of the nodes, which will
+	 * be iterated over in the calling thread.
+	 * @param secondNode the other node.
 	 * @param expander the {@link RelationshipExpander} to use to expand the
 	 * relationships to iterate over.
 	 * @param filterOrNull a filter for which relationships to take into
 	 * consideration. Is allowed to be {@code null}.
-	 * @param spawnThreadThreshold the threshold for when to spawn the other
-	 * thread which iterates from the second node.
+	 * @param spawnThreadThreshold the number of relationships per node to
+	 * iterate over before handing the second node over to another thread.
 	 * @return the first relationship, if any, with the given criterias (type,
      * direction, filter) between the two nodes.
 	 */
@@ -378,91 +922,184 @@ public class GraphDatabaseUtil
 	        RelationshipExpander expander,
 	        ObjectFilter<Relationship> filterOrNull, int spawnThreadThreshold )
 	{
-	    NodeFinder finderFromTheOtherNode = null;
+	    Node firstNode = nodeYouThinkHasLeastRelationships;
+	    Iterator<Relationship> fromFirst =
+	        expander.expand( firstNode ).iterator();
+	    Iterator<Relationship> fromSecond =
+	        expander.reversed().expand( secondNode ).iterator();
+	    for ( int i = 0; i < spawnThreadThreshold; i++ )
+	    {
+	        if ( !fromFirst.hasNext() || !fromSecond.hasNext() )
+	        {
+	            return null;
+	        }
+	        Relationship rel = match( fromFirst.next(), firstNode, secondNode,
+	            filterOrNull );
+	        if ( rel == null )
+	        {
+	            rel = match( fromSecond.next(), secondNode, firstNode,
+	                filterOrNull );
+	        }
+	        if ( rel != null )
+	        {
+	            return rel;
+	        }
+	    }
+	    
+	    Future<Relationship> finderFromTheOtherNode = null;
+	    AtomicBoolean stop = new AtomicBoolean();
 	    try
 	    {
-    	    int counter = 0;
-    	    for ( Relationship rel : expander.expand( nodeYouThinkHasLeastRelationships ) )
-    	    {
-    	        if ( finderFromTheOtherNode != null && 
-    	                finderFromTheOtherNode.foundRelationship != null )
-    	        {
-    	            return finderFromTheOtherNode.foundRelationship;
-    	        }
-    	        
-    	        counter++;
-    	        if ( filterOrNull != null && !filterOrNull.pass( rel ) )
-    	        {
-    	            continue;
-    	        }
-    	        
-    	        Node otherNode = rel.getOtherNode( nodeYouThinkHasLeastRelationships );
-    	        if ( otherNode.equals( secondNode ) )
-    	        {
-    	            return rel;
-    	        }
-    	        
-    	        if ( counter == spawnThreadThreshold )
-    	        {
-    	            finderFromTheOtherNode = new NodeFinder( nodeYouThinkHasLeastRelationships,
-    	                    expander.reversed(), secondNode, filterOrNull );
-    	            finderFromTheOtherNode.start();
-    	        }
-    	    }
+	        finderFromTheOtherNode = getRelationshipFinders().submit(
+	            new RelationshipFinder( expander.reversed(), secondNode,
+	            firstNode, filterOrNull, stop ) );
+	    }
+	    catch ( RejectedExecutionException e )
+	    {
+	        // All finder threads are busy, iterate both in this thread
+	    }
+	    
+	    try
+	    {
+	        while ( fromFirst.hasNext() )
+	        {
+	            if ( finderFromTheOtherNode != null &&
+	                finderFromTheOtherNode.isDone() )
+	            {
+	                Relationship rel = getResult( finderFromTheOtherNode );
+	                if ( rel != null )
+	                {
+	                    return rel;
+	                }
+	                // It only saw committed relationships, so continue
+	                // with both nodes in this transaction
+	                finderFromTheOtherNode = null;
+	            }
+	            
+	            Relationship rel = match( fromFirst.next(), firstNode,
+	                secondNode, filterOrNull );
+	            if ( rel == null && finderFromTheOtherNode == null )
+	            {
+	                if ( !fromSecond.hasNext() )
+	                {
+	                    return null;
+	                }
+	                rel = match( fromSecond.next(), secondNode, firstNode,
+	                    filterOrNull );
+	            }
+	            if ( rel != null )
+	            {
+	                return rel;
+	            }
+	        }
+	        return null;
 	    }
 	    finally
 	    {
+	        // Not interrupting, since that could close the store files
+	        stop.set( true );
 	        if ( finderFromTheOtherNode != null )
 	        {
-	            // To make it exit
-	            finderFromTheOtherNode.found = true;
+	            finderFromTheOtherNode.cancel( false );
 	        }
 	    }
-	    return null;
 	}
 	
-	private static class NodeFinder extends Thread
+	private static Relationship match( Relationship rel, Node fromNode,
+	    Node toNode, ObjectFilter<Relationship> filterOrNull )
+	{
+	    if ( filterOrNull != null && !filterOrNull.pass( rel ) )
+	    {
+	        return null;
+	    }
+	    return rel.getOtherNode( fromNode ).equals( toNode ) ? rel : null;
+	}
+	
+	private static Relationship getResult( Future<Relationship> future )
 	{
-	    private final Node nodeWithLeastRels;
-	    private final Iterable<Relationship> relationships;
-        private final Node secondNode;
+	    try
+	    {
+	        return future.get();
+	    }
+	    catch ( InterruptedException e )
+	    {
+	        Thread.currentThread().interrupt();
+	        throw new RuntimeException( e );
+	    }
+	    catch ( ExecutionException e )
+	    {
+	        Throwable cause = e.getCause();
+	        throw cause instanceof RuntimeException ?
+	            ( RuntimeException ) cause : new RuntimeException( cause );
+	    }
+	}
+	
+	/**
+	 * Replaces the pool used by {@link #getExistingRelationshipBetween(
+	 * Node, Node, RelationshipExpander, ObjectFilter, int)}, {@code null}
+	 * means that a default pool is created when needed. For testing.
+	 */
+	static synchronized void setRelationshipFinders( ExecutorService finders )
+	{
+	    relationshipFinders = finders;
+	}
+	
+	private static synchronized ExecutorService getRelationshipFinders()
+	{
+	    if ( relationshipFinders == null )
+	    {
+	        relationshipFinders = new ThreadPoolExecutor( 0,
+	            Runtime.getRuntime().availableProcessors(), 30,
+	            TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+	            new ThreadFactory()
+	            {
+	                public Thread newThread( Runnable runnable )
+	                {
+	                    Thread thread = new Thread( runnable,
+	                        "RelationshipFinder" );
+	                    thread.setDaemon( true );
+	                    return thread;
+	                }
+	            } );
+	    }
+	    return relationshipFinders;
+	}
+	
+	private static class RelationshipFinder implements Callable<Relationship>
+	{
+	    private final RelationshipExpander expander;
+	    private final Node fromNode;
+        private final Node toNode;
         private final ObjectFilter<Relationship> filterOrNull;
-        private volatile boolean found;
-        private volatile Relationship foundRelationship = null;
+        private final AtomicBoolean stop;
 
-        NodeFinder( Node nodeWithLeastRels, RelationshipExpander expander, Node secondNode,
-                ObjectFilter<Relationship> filterOrNull )
+        RelationshipFinder( RelationshipExpander expander,
+            Node fromNode, Node toNode,
+            ObjectFilter<Relationship> filterOrNull, AtomicBoolean stop )
 	    {
-            this.nodeWithLeastRels = nodeWithLeastRels;
-            this.relationships = expander.expand( secondNode );
-            this.secondNode = secondNode;
+            this.expander = expander;
+            this.fromNode = fromNode;
+            this.toNode = toNode;
             this.filterOrNull = filterOrNull;
+            this.stop = stop;
 	    }
         
-        @Override
-        public void run()
+        public Relationship call()
         {
-            for ( Relationship rel : relationships )
+            // Iterators belong to the transaction they're created in, so
+            // this one is created in the pool thread
+            Iterator<Relationship> relationships =
+                expander.expand( fromNode ).iterator();
+            while ( !stop.get() && relationships.hasNext() )
             {
-                // So that found can be set from outside to make it exit
-                // the loop
-                if ( found )
-                {
-                    break;
-                }
-                
-                if ( filterOrNull != null && !filterOrNull.pass( rel ) )
-                {
-                    continue;
-                }
-                
-                Node otherNode = rel.getOtherNode( secondNode );
-                if ( otherNode.equals( nodeWithLeastRels ) )
+                Relationship rel = match( relationships.next(), fromNode,
+                    toNode, filterOrNull );
+                if ( rel != null )
                 {
-                    foundRelationship = rel;
-                    break;
+                    return rel;
                 }
             }
+            return null;
         }
 	}
 
@@ -19,7 +19,11 @@
  */
 package org.neo4j.util;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -32,13 +36,57 @@ public class GraphDbStringSet extends RelationshipSet<String>
 {
 	private static final String VALUE_KEY = "value";
 	
+	private final boolean indexed;
+	
 	/**
 	 * @param node the {@link Node} which is the collection node.
 	 * @param type the relationship type to use internally for each element.
 	 */
 	public GraphDbStringSet( Node node, RelationshipType type )
+	{
+		this( node, type, false );
+	}
+	
+	/**
+	 * @param node the {@link Node} which is the collection node.
+	 * @param type the relationship type to use internally for each element.
+	 * @param indexed if {@code true} the values are kept in a hashed
+	 * membership index, created at the first add, so that
+	 * {@link #contains(Object)}, {@link #add(String)} and
+	 * {@link #remove(Object)} only reads one bucket instead of all values.
+	 */
+	public GraphDbStringSet( Node node, RelationshipType type,
+		boolean indexed )
 	{
 		super( node, type );
+		this.indexed = indexed;
+	}
+	
+	private void ensureIndexed()
+	{
+		if ( indexed && !hasMembershipIndex() )
+		{
+			enableMembershipIndex();
+		}
+	}
+	
+	@Override
+	public boolean add( String item )
+	{
+		ensureIndexed();
+		return super.add( item );
+	}
+	
+	@Override
+	protected Object getItemKey( Object item )
+	{
+		return ( String ) item;
+	}
+	
+	@Override
+	protected Object getMemberKey( Relationship relationship )
+	{
+		return newObject( getOtherNode( relationship ), relationship );
 	}
 	
 	@Override
@@ -59,6 +107,11 @@ public class GraphDbStringSet extends RelationshipSet<String>
 	@Override
 	protected Relationship findRelationship( Object item )
 	{
+		if ( hasMembershipIndex() )
+		{
+			return super.findRelationship( item );
+		}
+		
 		String value = ( String ) item;
 		Relationship result = null;
 		Iterator<Relationship> itr = this.getAllRelationships();
@@ -76,6 +129,76 @@ public class GraphDbStringSet extends RelationshipSet<String>
 		return result;
 	}
 	
+	/**
+	 * Without a membership index, members are matched on value rather than
+	 * on node, since {@link #getNodeFromItem(Object)} creates a new node for
+	 * each call.
+	 */
+	@Override
+	public boolean addAll( Collection<? extends String> items )
+	{
+		ensureIndexed();
+		if ( hasMembershipIndex() )
+		{
+			return super.addAll( items );
+		}
+		
+		Set<String> values = new HashSet<String>();
+		Iterator<Relationship> itr = this.getAllRelationships();
+		while ( itr.hasNext() )
+		{
+			Relationship rel = itr.next();
+			values.add( newObject( getOtherNode( rel ), rel ) );
+		}
+		
+		boolean changed = false;
+		for ( String item : items )
+		{
+			if ( values.add( item ) )
+			{
+				createMember( item, getNodeFromItem( item ) );
+				changed = true;
+			}
+		}
+		return changed;
+	}
+	
+	@Override
+	public boolean removeAll( Collection<?> items )
+	{
+		if ( hasMembershipIndex() )
+		{
+			return super.removeAll( items );
+		}
+		return removeValues( new HashSet<Object>( items ), true );
+	}
+	
+	@Override
+	public boolean retainAll( Collection<?> items )
+	{
+		return removeValues( new HashSet<Object>( items ), false );
+	}
+	
+	private boolean removeValues( Set<Object> values, boolean inValues )
+	{
+		Collection<Relationship> toRemove = new ArrayList<Relationship>();
+		Iterator<Relationship> itr = this.getAllRelationships();
+		while ( itr.hasNext() )
+		{
+			Relationship rel = itr.next();
+			String value = newObject( getOtherNode( rel ), rel );
+			if ( values.contains( value ) == inValues )
+			{
+				toRemove.add( rel );
+			}
+		}
+		for ( Relationship rel : toRemove )
+		{
+			removeItem( rel );
+		}
+		return !toRemove.isEmpty();
+	}
+	
 	@Override
 	protected void removeItem( Relationship rel )
 	{
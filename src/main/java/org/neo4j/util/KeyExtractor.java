@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * Reads the sort key of a node, f.ex. one of its properties, for a
+ * {@link SortedNodeCollection}. Keys are stored in the collection, so they
+ * must be of a type which can be a property value, i.e. a {@link String}
+ * or a boxed primitive other than {@link Boolean}, and all keys of a
+ * collection must be of the same type.
+ *
+ * @param <K> the type of keys.
+ */
+public interface KeyExtractor<K extends Comparable<K>>
+{
+	/**
+	 * @param node the node to get the key for.
+	 * @return the sort key of {@code node}, never {@code null}.
+	 */
+	K getKey( Node node );
+}
@@ -0,0 +1,1103 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.transaction.SystemException;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * A B+tree of (key, node id) entries, stored in nodes of its own, which
+ * {@link SortedNodeCollection} uses when it has a {@link KeyExtractor}.
+ * Since the keys are stored in the tree, ordering never has to look at
+ * the item nodes. Entries with equal keys are ordered by node id.
+ * 
+ * Each tree node has the keys and ids of its entries in two arrays. A
+ * leaf also has the ids of its neighbour leaves. An internal node has the
+ * ids of its children, where entry {@code i} is the least entry of child
+ * {@code i} when it was split off (entry {@code 0} is never looked at),
+ * and the number of entries in the subtree of each child.
+ * Writers lock the anchor node, so they're serialized.
+ * 
+ * [Anchor] -- KEY_TREE_NODE --> [TreeNode]
+ */
+class KeyTree
+{
+	static enum KeyTreeRelTypes implements RelationshipType
+	{
+		KEY_TREE_NODE,
+	}
+	
+	static final int MAX_ENTRIES = 128;
+	
+	/**
+	 * How full {@link #build(List, int)} makes the tree nodes, leaving
+	 * room for inserts before they split.
+	 */
+	static final int BULK_ENTRIES = MAX_ENTRIES * 3 / 4;
+	
+	private static final String KEY_ROOT = "key_tree_root";
+	private static final String KEY_STAMP = "key_tree_stamp";
+	private static final String KEY_KEYS = "keys";
+	private static final String KEY_IDS = "ids";
+	private static final String KEY_CHILDREN = "children";
+	private static final String KEY_COUNTS = "counts";
+	private static final String KEY_NEXT = "next";
+	private static final String KEY_PREV = "prev";
+	private static final long[] NO_IDS = new long[ 0 ];
+	private static final int[] NO_COUNTS = new int[ 0 ];
+	
+	private final Node anchor;
+	private final GraphDatabaseService graphDb;
+	
+	/**
+	 * @param anchor the node which the tree hangs off.
+	 */
+	KeyTree( Node anchor )
+	{
+		this.anchor = anchor;
+		this.graphDb = anchor.getGraphDatabase();
+	}
+	
+	@SuppressWarnings( "unchecked" )
+	static int compareKeys( Object key1, Object key2 )
+	{
+		return ( ( Comparable<Object> ) key1 ).compareTo( key2 );
+	}
+	
+	private TreeNode getRoot( boolean allowCreate )
+	{
+		Long rootId = ( Long ) anchor.getProperty( KEY_ROOT, null );
+		if ( rootId != null )
+		{
+			return load( rootId );
+		}
+		if ( !allowCreate )
+		{
+			return null;
+		}
+		TreeNode root = newTreeNode( true );
+		anchor.setProperty( KEY_ROOT, root.getId() );
+		return root;
+	}
+	
+	private TreeNode load( long nodeId )
+	{
+		return new TreeNode( graphDb.getNodeById( nodeId ) );
+	}
+	
+	private TreeNode newTreeNode( boolean leaf )
+	{
+		Node node = graphDb.createNode();
+		anchor.createRelationshipTo( node, KeyTreeRelTypes.KEY_TREE_NODE );
+		TreeNode result = new TreeNode( node );
+		result.children = leaf ? null : NO_IDS;
+		result.counts = leaf ? null : NO_COUNTS;
+		return result;
+	}
+	
+	private void deleteTreeNode( Node node )
+	{
+		node.getSingleRelationship( KeyTreeRelTypes.KEY_TREE_NODE,
+			Direction.INCOMING ).delete();
+		node.delete();
+	}
+	
+	/**
+	 * @return the index of the child of {@code node} which would hold the
+	 * entry, i.e. the last child whose least entry isn't greater than it.
+	 */
+	private static int childIndex( TreeNode node, Object key, long id )
+	{
+		int result = 0;
+		int low = 1;
+		int high = node.size() - 1;
+		while ( low <= high )
+		{
+			int mid = ( low + high ) >>> 1;
+			if ( node.compare( mid, key, id ) <= 0 )
+			{
+				result = mid;
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the index of the entry in {@code leaf}, or
+	 * {@code -(insertion point) - 1} if it isn't there.
+	 */
+	private static int search( TreeNode leaf, Object key, long id )
+	{
+		int low = 0;
+		int high = leaf.size() - 1;
+		while ( low <= high )
+		{
+			int mid = ( low + high ) >>> 1;
+			int comparison = leaf.compare( mid, key, id );
+			if ( comparison < 0 )
+			{
+				low = mid + 1;
+			}
+			else if ( comparison > 0 )
+			{
+				high = mid - 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+		return -( low + 1 );
+	}
+	
+	/**
+	 * Descends from {@code root} to the leaf which would hold the entry,
+	 * adding the internal nodes and the chosen child indexes to the path.
+	 */
+	private TreeNode descend( TreeNode root, Object key, long id,
+		List<TreeNode> path, List<Integer> childIndexes )
+	{
+		TreeNode node = root;
+		while ( !node.isLeaf() )
+		{
+			int index = childIndex( node, key, id );
+			if ( path != null )
+			{
+				path.add( node );
+				childIndexes.add( index );
+			}
+			node = node.child( index );
+		}
+		return node;
+	}
+	
+	boolean add( Object key, long id )
+	{
+		GraphDatabaseUtil.acquireWriteLock( anchor );
+		List<TreeNode> path = new ArrayList<TreeNode>();
+		List<Integer> childIndexes = new ArrayList<Integer>();
+		TreeNode leaf = descend( getRoot( true ), key, id, path,
+			childIndexes );
+		int index = search( leaf, key, id );
+		if ( index >= 0 )
+		{
+			return false;
+		}
+		
+		modified();
+		leaf.insertEntry( -index - 1, key, id, -1, 0 );
+		TreeNode current = leaf;
+		for ( int level = path.size() - 1; level >= 0; level-- )
+		{
+			TreeNode parent = path.get( level );
+			int childIndex = childIndexes.get( level );
+			if ( current.size() > MAX_ENTRIES )
+			{
+				TreeNode right = split( current );
+				parent.counts[ childIndex ] = current.count();
+				parent.insertEntry( childIndex + 1, right.key( 0 ),
+					right.ids[ 0 ], right.getId(), right.count() );
+			}
+			else
+			{
+				current.save();
+				parent.counts[ childIndex ]++;
+			}
+			current = parent;
+		}
+		if ( current.size() > MAX_ENTRIES )
+		{
+			newRoot( current, split( current ) );
+		}
+		else
+		{
+			current.save();
+		}
+		return true;
+	}
+	
+	/**
+	 * Moves the upper half of the entries of {@code node} to a new node,
+	 * which is returned. Both nodes are saved.
+	 */
+	private TreeNode split( TreeNode node )
+	{
+		int size = node.size();
+		int middle = size / 2;
+		TreeNode right = newTreeNode( node.isLeaf() );
+		right.keys = SortedArrays.copyOfRange( node.keys, middle, size );
+		right.ids = ( long[] ) SortedArrays.copyOfRange( node.ids, middle,
+			size );
+		node.keys = SortedArrays.copyOfRange( node.keys, 0, middle );
+		node.ids = ( long[] ) SortedArrays.copyOfRange( node.ids, 0, middle );
+		if ( node.isLeaf() )
+		{
+			long next = node.getNext();
+			right.setNext( next );
+			right.setPrevious( node.getId() );
+			if ( next != -1 )
+			{
+				load( next ).setPrevious( right.getId() );
+			}
+			node.setNext( right.getId() );
+		}
+		else
+		{
+			right.children = ( long[] ) SortedArrays.copyOfRange(
+				node.children, middle, size );
+			node.children = ( long[] ) SortedArrays.copyOfRange(
+				node.children, 0, middle );
+			right.counts = ( int[] ) SortedArrays.copyOfRange(
+				node.counts, middle, size );
+			node.counts = ( int[] ) SortedArrays.copyOfRange(
+				node.counts, 0, middle );
+		}
+		node.save();
+		right.save();
+		return right;
+	}
+	
+	private void newRoot( TreeNode left, TreeNode right )
+	{
+		TreeNode root = newTreeNode( false );
+		root.insertEntry( 0, left.key( 0 ), left.ids[ 0 ], left.getId(),
+			left.count() );
+		root.insertEntry( 1, right.key( 0 ), right.ids[ 0 ], right.getId(),
+			right.count() );
+		root.save();
+		anchor.setProperty( KEY_ROOT, root.getId() );
+	}
+	
+	boolean remove( Object key, long id )
+	{
+		GraphDatabaseUtil.acquireWriteLock( anchor );
+		TreeNode root = getRoot( false );
+		if ( root == null )
+		{
+			return false;
+		}
+		List<TreeNode> path = new ArrayList<TreeNode>();
+		List<Integer> childIndexes = new ArrayList<Integer>();
+		TreeNode leaf = descend( root, key, id, path, childIndexes );
+		int index = search( leaf, key, id );
+		if ( index < 0 )
+		{
+			return false;
+		}
+		
+		modified();
+		leaf.removeEntry( index );
+		TreeNode current = leaf;
+		for ( int level = path.size() - 1; level >= 0; level-- )
+		{
+			TreeNode parent = path.get( level );
+			int childIndex = childIndexes.get( level );
+			if ( current.size() > 0 )
+			{
+				current.save();
+				parent.counts[ childIndex ]--;
+			}
+			else
+			{
+				// Empty nodes are removed, but nodes aren't merged
+				if ( current.isLeaf() )
+				{
+					unlink( current );
+				}
+				deleteTreeNode( current.node );
+				parent.removeEntry( childIndex );
+			}
+			current = parent;
+		}
+		if ( current.size() > 0 )
+		{
+			current.save();
+			collapseRoot();
+		}
+		else
+		{
+			deleteTreeNode( current.node );
+			anchor.removeProperty( KEY_ROOT );
+		}
+		return true;
+	}
+	
+	private void unlink( TreeNode leaf )
+	{
+		long previous = leaf.getPrevious();
+		long next = leaf.getNext();
+		if ( previous != -1 )
+		{
+			load( previous ).setNext( next );
+		}
+		if ( next != -1 )
+		{
+			load( next ).setPrevious( previous );
+		}
+	}
+	
+	/**
+	 * Replaces a root with only one child with that child.
+	 */
+	private void collapseRoot()
+	{
+		TreeNode root = getRoot( false );
+		while ( !root.isLeaf() && root.size() == 1 )
+		{
+			deleteTreeNode( root.node );
+			anchor.setProperty( KEY_ROOT, root.children[ 0 ] );
+			root = root.child( 0 );
+		}
+	}
+	
+	boolean contains( Object key, long id )
+	{
+		TreeNode root = getRoot( false );
+		return root != null &&
+			search( descend( root, key, id, null, null ), key, id ) >= 0;
+	}
+	
+	/**
+	 * Takes a read lock on the anchor, which writers lock for writing, so
+	 * that concurrent writers can't make the counts and the entries
+	 * disagree while they're read. Outside of a transaction no lock is
+	 * taken and only committed data is read anyway.
+	 * 
+	 * @return the transaction to release the lock with, or {@code null}
+	 * if there's no transaction.
+	 */
+	private javax.transaction.Transaction acquireReadLock()
+	{
+		try
+		{
+			javax.transaction.Transaction tx = GraphDatabaseUtil.
+				getTransactionManager( graphDb ).getTransaction();
+			if ( tx != null )
+			{
+				GraphDatabaseUtil.getLockManager( graphDb ).getReadLock(
+					anchor );
+			}
+			return tx;
+		}
+		catch ( SystemException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+	
+	private void releaseReadLock( javax.transaction.Transaction tx )
+	{
+		if ( tx != null )
+		{
+			GraphDatabaseUtil.getLockManager( graphDb ).releaseReadLock(
+				anchor, tx );
+		}
+	}
+	
+	/**
+	 * Returns the position of an entry, using the subtree counts of the
+	 * internal nodes to skip the children before the path to it. Takes a
+	 * read lock on the tree while reading it, see {@link #acquireReadLock()}.
+	 * 
+	 * @return the number of entries before the entry if it's in the tree,
+	 * otherwise {@code -(that number) - 1}.
+	 */
+	int rank( Object key, long id )
+	{
+		javax.transaction.Transaction tx = acquireReadLock();
+		try
+		{
+			TreeNode node = getRoot( false );
+			if ( node == null )
+			{
+				return -1;
+			}
+			int before = 0;
+			while ( !node.isLeaf() )
+			{
+				int index = childIndex( node, key, id );
+				for ( int i = 0; i < index; i++ )
+				{
+					before += node.counts[ i ];
+				}
+				node = node.child( index );
+			}
+			int index = search( node, key, id );
+			return index >= 0 ? before + index : -( before - index - 1 ) - 1;
+		}
+		finally
+		{
+			releaseReadLock( tx );
+		}
+	}
+	
+	/**
+	 * Takes a read lock on the tree the same way as
+	 * {@link #rank(Object, long)}.
+	 * 
+	 * @return the node id of the entry at {@code position}, or {@code -1}
+	 * if there's no such position.
+	 */
+	long select( int position )
+	{
+		javax.transaction.Transaction tx = acquireReadLock();
+		try
+		{
+			TreeNode node = getRoot( false );
+			if ( node == null || position < 0 )
+			{
+				return -1;
+			}
+			while ( !node.isLeaf() )
+			{
+				int index = 0;
+				while ( index < node.size() &&
+					position >= node.counts[ index ] )
+				{
+					position -= node.counts[ index++ ];
+				}
+				if ( index == node.size() )
+				{
+					return -1;
+				}
+				node = node.child( index );
+			}
+			return position < node.size() ? node.ids[ position ] : -1;
+		}
+		finally
+		{
+			releaseReadLock( tx );
+		}
+	}
+	
+	/**
+	 * @return whether or not the tree has no entries.
+	 */
+	boolean isEmpty()
+	{
+		return !anchor.hasProperty( KEY_ROOT );
+	}
+	
+	/**
+	 * @return the node ids of all entries, in order.
+	 */
+	Iterator<Long> iterator()
+	{
+		return iterator( null, 0, null, 0, false );
+	}
+	
+	/**
+	 * Returns the node ids of the entries between two entries, both
+	 * inclusive, where a {@code null} key means no bound. Since the ids
+	 * of entries are never negative or {@link Long#MAX_VALUE} those can
+	 * be used to make a bound include or exclude a whole key. Finding the
+	 * first entry costs O(log n), each entry after that O(1).
+	 * 
+	 * @param descending whether to start from the high end or not.
+	 */
+	Iterator<Long> iterator( Object lowKey, long lowId, Object highKey,
+		long highId, boolean descending )
+	{
+		TreeNode root = getRoot( false );
+		if ( root == null )
+		{
+			return new EntryIterator( null, 0, null, 0, null, 0, false );
+		}
+		Object startKey = descending ? highKey : lowKey;
+		long startId = descending ? highId : lowId;
+		TreeNode leaf = root;
+		int index;
+		if ( startKey != null )
+		{
+			leaf = descend( root, startKey, startId, null, null );
+			index = search( leaf, startKey, startId );
+			if ( index < 0 )
+			{
+				index = -index - 1 - ( descending ? 1 : 0 );
+			}
+		}
+		else
+		{
+			while ( !leaf.isLeaf() )
+			{
+				leaf = leaf.child( descending ? leaf.size() - 1 : 0 );
+			}
+			index = descending ? leaf.size() - 1 : 0;
+		}
+		return new EntryIterator( leaf, index, lowKey, lowId, highKey,
+			highId, descending );
+	}
+	
+	/**
+	 * Deletes all the nodes of the tree, but not the anchor.
+	 */
+	void delete()
+	{
+		GraphDatabaseUtil.acquireWriteLock( anchor );
+		TreeNode root = getRoot( false );
+		if ( root != null )
+		{
+			modified();
+			delete( root );
+			anchor.removeProperty( KEY_ROOT );
+		}
+	}
+	
+	private void delete( TreeNode treeNode )
+	{
+		if ( !treeNode.isLeaf() )
+		{
+			for ( int i = 0; i < treeNode.size(); i++ )
+			{
+				delete( treeNode.child( i ) );
+			}
+		}
+		deleteTreeNode( treeNode.node );
+	}
+	
+	/**
+	 * @return a stamp which changes every time the tree is modified, to
+	 * pass to {@link #swapRoot(long, long)}.
+	 */
+	long stamp()
+	{
+		return ( Long ) anchor.getProperty( KEY_STAMP, 0L );
+	}
+	
+	/**
+	 * Changes the stamp, must be called with the anchor locked.
+	 */
+	private void modified()
+	{
+		anchor.setProperty( KEY_STAMP, stamp() + 1 );
+	}
+	
+	/**
+	 * @return all entries of the tree, in order.
+	 */
+	List<Entry> entries()
+	{
+		List<Entry> result = new ArrayList<Entry>();
+		TreeNode leaf = getRoot( false );
+		while ( leaf != null && !leaf.isLeaf() )
+		{
+			leaf = leaf.child( 0 );
+		}
+		while ( leaf != null )
+		{
+			for ( int i = 0; i < leaf.size(); i++ )
+			{
+				result.add( new Entry( leaf.key( i ), leaf.ids[ i ] ) );
+			}
+			long next = leaf.getNext();
+			leaf = next == -1 ? null : load( next );
+		}
+		return result;
+	}
+	
+	/**
+	 * Builds a tree bottom-up from {@code entries}, which are sorted and
+	 * rid of duplicates in place. The tree isn't reachable until it's
+	 * passed to {@link #swapRoot(long, long)}. Builds in transactions of its
+	 * own, one per {@code batchSize} tree nodes, so it should be called
+	 * outside of a transaction. If it fails the new nodes are deleted.
+	 * 
+	 * @return the id of the root of the new tree, or {@code -1} if there
+	 * were no entries.
+	 */
+	long build( List<Entry> entries, int batchSize )
+	{
+		Collections.sort( entries );
+		int size = 0;
+		for ( Entry entry : entries )
+		{
+			if ( size == 0 || entries.get( size - 1 ).compareTo( entry ) != 0 )
+			{
+				entries.set( size++, entry );
+			}
+		}
+		entries.subList( size, entries.size() ).clear();
+		
+		List<Long> created = new ArrayList<Long>();
+		Batch batch = new Batch( batchSize );
+		boolean success = false;
+		try
+		{
+			List<Entry> level = entries;
+			boolean leaves = true;
+			do
+			{
+				level = buildLevel( level, leaves, batch, created );
+				leaves = false;
+			}
+			while ( level.size() > 1 );
+			success = true;
+			return level.isEmpty() ? -1 : level.get( 0 ).child;
+		}
+		finally
+		{
+			batch.finish( success );
+			if ( !success )
+			{
+				deleteNodes( committedNodes( created ), batchSize );
+			}
+		}
+	}
+	
+	/**
+	 * Creates the tree nodes for {@code entries}, evenly filled up to
+	 * {@link #BULK_ENTRIES} entries each.
+	 * 
+	 * @return one entry for each created node, to build the level above.
+	 */
+	private List<Entry> buildLevel( List<Entry> entries, boolean leaves,
+		Batch batch, List<Long> created )
+	{
+		int count = entries.size();
+		int nodeCount = ( count + BULK_ENTRIES - 1 ) / BULK_ENTRIES;
+		List<Entry> result = new ArrayList<Entry>( nodeCount );
+		TreeNode previous = null;
+		for ( int i = 0; i < nodeCount; i++ )
+		{
+			int from = ( int ) ( ( long ) count * i / nodeCount );
+			int to = ( int ) ( ( long ) count * ( i + 1 ) / nodeCount );
+			batch.step();
+			TreeNode node = newTreeNode( leaves );
+			created.add( node.getId() );
+			Entry first = entries.get( from );
+			node.keys = SortedArrays.newArray( first.key, to - from );
+			node.ids = new long[ to - from ];
+			node.children = leaves ? null : new long[ to - from ];
+			node.counts = leaves ? null : new int[ to - from ];
+			for ( int j = from; j < to; j++ )
+			{
+				Entry entry = entries.get( j );
+				SortedArrays.set( node.keys, j - from, entry.key );
+				node.ids[ j - from ] = entry.id;
+				if ( !leaves )
+				{
+					node.children[ j - from ] = entry.child;
+					node.counts[ j - from ] = entry.count;
+				}
+			}
+			if ( leaves && previous != null )
+			{
+				previous.setNext( node.getId() );
+				node.setPrevious( previous.getId() );
+			}
+			node.save();
+			result.add( new Entry( first.key, first.id, node.getId(),
+				node.count() ) );
+			previous = node;
+		}
+		return result;
+	}
+	
+	/**
+	 * Makes the tree built by {@link #build(List, int)} the tree of this
+	 * anchor, in the current transaction.
+	 * 
+	 * @param stamp the {@link #stamp()} from before the entries which the
+	 * tree was built from were read.
+	 * @return the root of the replaced tree, for
+	 * {@link #deleteTree(long, int)}, or {@code -1} if there was none.
+	 * @throws ConcurrentModificationException if the tree has been modified
+	 * since {@code stamp}, since the new tree would lose those changes.
+	 */
+	long swapRoot( long rootId, long stamp )
+	{
+		GraphDatabaseUtil.acquireWriteLock( anchor );
+		if ( stamp() != stamp )
+		{
+			throw new ConcurrentModificationException(
+				"Tree modified while it was being rebuilt" );
+		}
+		modified();
+		Long oldRootId = ( Long ) anchor.getProperty( KEY_ROOT, null );
+		if ( rootId == -1 )
+		{
+			anchor.removeProperty( KEY_ROOT );
+		}
+		else
+		{
+			anchor.setProperty( KEY_ROOT, rootId );
+		}
+		return oldRootId != null ? oldRootId : -1;
+	}
+	
+	/**
+	 * Deletes a tree which isn't reachable from the anchor anymore, in
+	 * transactions of {@code batchSize} tree nodes.
+	 */
+	void deleteTree( long rootId, int batchSize )
+	{
+		if ( rootId == -1 )
+		{
+			return;
+		}
+		List<Long> nodeIds = new ArrayList<Long>();
+		nodeIds.add( rootId );
+		for ( int i = 0; i < nodeIds.size(); i++ )
+		{
+			long[] children = ( long[] ) graphDb.getNodeById(
+				nodeIds.get( i ) ).getProperty( KEY_CHILDREN, NO_IDS );
+			for ( long child : children )
+			{
+				nodeIds.add( child );
+			}
+		}
+		deleteNodes( nodeIds, batchSize );
+	}
+	
+	private List<Long> committedNodes( List<Long> nodeIds )
+	{
+		List<Long> result = new ArrayList<Long>();
+		for ( long nodeId : nodeIds )
+		{
+			try
+			{
+				graphDb.getNodeById( nodeId );
+				result.add( nodeId );
+			}
+			catch ( NotFoundException e )
+			{
+				// Rolled back with the failed batch
+			}
+		}
+		return result;
+	}
+	
+	private void deleteNodes( List<Long> nodeIds, int batchSize )
+	{
+		Batch batch = new Batch( batchSize );
+		boolean success = false;
+		try
+		{
+			for ( long nodeId : nodeIds )
+			{
+				batch.step();
+				deleteTreeNode( graphDb.getNodeById( nodeId ) );
+			}
+			success = true;
+		}
+		finally
+		{
+			batch.finish( success );
+		}
+	}
+	
+	/**
+	 * An entry of the tree, with the id and entry count of the tree node
+	 * it's the least entry of when building upper levels.
+	 */
+	static class Entry implements Comparable<Entry>
+	{
+		private final Object key;
+		private final long id;
+		private final long child;
+		private final int count;
+		
+		Entry( Object key, long id )
+		{
+			this( key, id, -1, 1 );
+		}
+		
+		private Entry( Object key, long id, long child, int count )
+		{
+			this.key = key;
+			this.id = id;
+			this.child = child;
+			this.count = count;
+		}
+		
+		public int compareTo( Entry other )
+		{
+			int comparison = compareKeys( key, other.key );
+			if ( comparison != 0 )
+			{
+				return comparison;
+			}
+			return id < other.id ? -1 : ( id == other.id ? 0 : 1 );
+		}
+	}
+	
+	/**
+	 * Commits a transaction every {@code size} steps.
+	 */
+	private class Batch
+	{
+		private final int size;
+		private Transaction tx;
+		private int count;
+		
+		Batch( int size )
+		{
+			this.size = size;
+		}
+		
+		void step()
+		{
+			if ( tx != null && ++count < size )
+			{
+				return;
+			}
+			finish( true );
+			tx = graphDb.beginTx();
+			count = 0;
+		}
+		
+		void finish( boolean success )
+		{
+			if ( tx != null )
+			{
+				if ( success )
+				{
+					tx.success();
+				}
+				tx.finish();
+				tx = null;
+			}
+		}
+	}
+	
+	private class EntryIterator implements Iterator<Long>
+	{
+		private TreeNode leaf;
+		private int index;
+		private final Object lowKey;
+		private final long lowId;
+		private final Object highKey;
+		private final long highId;
+		private final boolean descending;
+		
+		EntryIterator( TreeNode leaf, int index, Object lowKey, long lowId,
+			Object highKey, long highId, boolean descending )
+		{
+			this.leaf = leaf;
+			this.index = index;
+			this.lowKey = lowKey;
+			this.lowId = lowId;
+			this.highKey = highKey;
+			this.highId = highId;
+			this.descending = descending;
+		}
+		
+		public boolean hasNext()
+		{
+			while ( leaf != null && ( index < 0 || index >= leaf.size() ) )
+			{
+				long sibling = descending ? leaf.getPrevious() :
+					leaf.getNext();
+				leaf = sibling == -1 ? null : load( sibling );
+				index = leaf == null || !descending ? 0 : leaf.size() - 1;
+			}
+			if ( leaf != null && ( descending ?
+				lowKey != null && leaf.compare( index, lowKey, lowId ) < 0 :
+				highKey != null && leaf.compare( index, highKey, highId ) > 0 ) )
+			{
+				leaf = null;
+			}
+			return leaf != null;
+		}
+		
+		public Long next()
+		{
+			if ( !hasNext() )
+			{
+				throw new NoSuchElementException();
+			}
+			long result = leaf.ids[ index ];
+			index += descending ? -1 : 1;
+			return result;
+		}
+		
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * A node of the tree, with its arrays read once.
+	 */
+	private class TreeNode
+	{
+		private final Node node;
+		private Object keys;
+		private long[] ids;
+		private long[] children;
+		private int[] counts;
+		
+		TreeNode( Node node )
+		{
+			this.node = node;
+			this.keys = node.getProperty( KEY_KEYS, null );
+			this.ids = ( long[] ) node.getProperty( KEY_IDS, NO_IDS );
+			this.children = ( long[] ) node.getProperty( KEY_CHILDREN, null );
+			this.counts = ( int[] ) node.getProperty( KEY_COUNTS, null );
+		}
+		
+		long getId()
+		{
+			return node.getId();
+		}
+		
+		boolean isLeaf()
+		{
+			return children == null;
+		}
+		
+		int size()
+		{
+			return ids.length;
+		}
+		
+		Object key( int index )
+		{
+			return SortedArrays.get( keys, index );
+		}
+		
+		int compare( int index, Object key, long id )
+		{
+			int comparison = compareKeys( key( index ), key );
+			if ( comparison != 0 )
+			{
+				return comparison;
+			}
+			return ids[ index ] < id ? -1 : ( ids[ index ] == id ? 0 : 1 );
+		}
+		
+		TreeNode child( int index )
+		{
+			return load( children[ index ] );
+		}
+		
+		/**
+		 * @return the number of entries in the subtree of this node.
+		 */
+		int count()
+		{
+			if ( isLeaf() )
+			{
+				return size();
+			}
+			int result = 0;
+			for ( int count : counts )
+			{
+				result += count;
+			}
+			return result;
+		}
+		
+		void insertEntry( int index, Object key, long id, long child,
+			int count )
+		{
+			keys = keys == null ? SortedArrays.singleton( key ) :
+				SortedArrays.insert( keys, index, key );
+			ids = ( long[] ) SortedArrays.insert( ids, index, id );
+			if ( children != null )
+			{
+				children = ( long[] ) SortedArrays.insert( children, index,
+					child );
+				counts = ( int[] ) SortedArrays.insert( counts, index, count );
+			}
+		}
+		
+		void removeEntry( int index )
+		{
+			keys = size() == 1 ? null : SortedArrays.remove( keys, index );
+			ids = ( long[] ) SortedArrays.remove( ids, index );
+			if ( children != null )
+			{
+				children = ( long[] ) SortedArrays.remove( children, index );
+				counts = ( int[] ) SortedArrays.remove( counts, index );
+			}
+		}
+		
+		long getNext()
+		{
+			return ( Long ) node.getProperty( KEY_NEXT, -1L );
+		}
+		
+		long getPrevious()
+		{
+			return ( Long ) node.getProperty( KEY_PREV, -1L );
+		}
+		
+		void setNext( long id )
+		{
+			setLink( KEY_NEXT, id );
+		}
+		
+		void setPrevious( long id )
+		{
+			setLink( KEY_PREV, id );
+		}
+		
+		private void setLink( String key, long id )
+		{
+			if ( id == -1 )
+			{
+				node.removeProperty( key );
+			}
+			else
+			{
+				node.setProperty( key, id );
+			}
+		}
+		
+		void save()
+		{
+			if ( keys == null )
+			{
+				node.removeProperty( KEY_KEYS );
+				node.removeProperty( KEY_IDS );
+			}
+			else
+			{
+				node.setProperty( KEY_KEYS, keys );
+				node.setProperty( KEY_IDS, ids );
+			}
+			if ( children != null )
+			{
+				node.setProperty( KEY_CHILDREN, children );
+				node.setProperty( KEY_COUNTS, counts );
+			}
+		}
+	}
+}
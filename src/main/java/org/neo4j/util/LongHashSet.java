@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+/**
+ * A set of primitive longs, f.ex. node ids, using open addressing so that
+ * large sets doesn't need an object per value.
+ */
+class LongHashSet
+{
+	private static final long FREE = 0;
+	
+	private long[] table;
+	private boolean containsFree;
+	private int size;
+	
+	LongHashSet()
+	{
+		this( 16 );
+	}
+	
+	/**
+	 * @param expectedSize the number of values expected to be added.
+	 */
+	LongHashSet( int expectedSize )
+	{
+		int capacity = 16;
+		while ( capacity < expectedSize * 2 )
+		{
+			capacity <<= 1;
+		}
+		this.table = new long[ capacity ];
+	}
+	
+	private static int slot( long value, int mask )
+	{
+		long hash = value * 0x9E3779B97F4A7C15L;
+		return ( int ) ( hash ^ ( hash >>> 32 ) ) & mask;
+	}
+	
+	/**
+	 * @param value the value to add.
+	 * @return {@code true} if the value wasn't already in the set.
+	 */
+	boolean add( long value )
+	{
+		if ( value == FREE )
+		{
+			if ( containsFree )
+			{
+				return false;
+			}
+			containsFree = true;
+			size++;
+			return true;
+		}
+		
+		int mask = table.length - 1;
+		int slot = slot( value, mask );
+		while ( table[ slot ] != FREE )
+		{
+			if ( table[ slot ] == value )
+			{
+				return false;
+			}
+			slot = ( slot + 1 ) & mask;
+		}
+		table[ slot ] = value;
+		size++;
+		if ( size * 2 > table.length )
+		{
+			grow();
+		}
+		return true;
+	}
+	
+	boolean contains( long value )
+	{
+		if ( value == FREE )
+		{
+			return containsFree;
+		}
+		
+		int mask = table.length - 1;
+		int slot = slot( value, mask );
+		while ( table[ slot ] != FREE )
+		{
+			if ( table[ slot ] == value )
+			{
+				return true;
+			}
+			slot = ( slot + 1 ) & mask;
+		}
+		return false;
+	}
+	
+	int size()
+	{
+		return size;
+	}
+	
+	private void grow()
+	{
+		long[] oldTable = table;
+		table = new long[ oldTable.length * 2 ];
+		int mask = table.length - 1;
+		for ( long value : oldTable )
+		{
+			if ( value != FREE )
+			{
+				int slot = slot( value, mask );
+				while ( table[ slot ] != FREE )
+				{
+					slot = ( slot + 1 ) & mask;
+				}
+				table[ slot ] = value;
+			}
+		}
+	}
+}
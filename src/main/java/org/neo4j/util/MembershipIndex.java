@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * A persistent hashed index from member key to relationship for a
+ * {@link RelationshipSet}, so that membership can be checked without
+ * iterating relationships. A member key is either a node id ({@link Long})
+ * or a value ({@link String}). The index node holds the ids of a fixed
+ * number of bucket nodes, each of which holds the keys of its members,
+ * sorted so that they can be binary searched, and their relationship ids
+ * in two arrays, i.e:
+ * 
+ * [CollectionNode] -- MEMBERSHIP_INDEX --> [IndexNode]
+ * [IndexNode] -- MEMBERSHIP_BUCKET --> [BucketNode]
+ */
+class MembershipIndex
+{
+	static enum MembershipRelTypes implements RelationshipType
+	{
+		MEMBERSHIP_INDEX,
+		MEMBERSHIP_BUCKET,
+	}
+	
+	static final int DEFAULT_NUMBER_OF_BUCKETS = 256;
+	
+	private static final String KEY_INDEX_PREFIX = "membership_index_";
+	private static final String KEY_BUCKETS = "membership_buckets";
+	private static final String KEY_BUCKET_PREFIX = "bucket_";
+	private static final String KEY_MEMBER_KEYS = "member_keys";
+	private static final String KEY_RELATIONSHIP_IDS = "relationship_ids";
+	
+	private final Node indexNode;
+	private final int numberOfBuckets;
+	
+	private MembershipIndex( Node indexNode )
+	{
+		this.indexNode = indexNode;
+		this.numberOfBuckets = ( Integer ) indexNode.getProperty( KEY_BUCKETS );
+	}
+	
+	private static String indexKey( RelationshipType type,
+		Direction direction )
+	{
+		return KEY_INDEX_PREFIX + type.name() + "_" + direction.name();
+	}
+	
+	/**
+	 * @param collectionNode the collection node of the set.
+	 * @param type the relationship type of the set.
+	 * @param direction the direction of the set.
+	 * @return the index for the set, or {@code null} if it has none.
+	 */
+	static MembershipIndex find( Node collectionNode, RelationshipType type,
+		Direction direction )
+	{
+		Long indexNodeId = ( Long ) collectionNode.getProperty(
+			indexKey( type, direction ), null );
+		return indexNodeId == null ? null : new MembershipIndex(
+			collectionNode.getGraphDatabase().getNodeById( indexNodeId ) );
+	}
+	
+	/**
+	 * Creates an empty index for a set, which the caller must populate.
+	 */
+	static MembershipIndex create( Node collectionNode, RelationshipType type,
+		Direction direction, int numberOfBuckets )
+	{
+		if ( numberOfBuckets < 1 )
+		{
+			throw new IllegalArgumentException( "Invalid number of buckets " +
+				numberOfBuckets );
+		}
+		Node indexNode = collectionNode.getGraphDatabase().createNode();
+		indexNode.setProperty( KEY_BUCKETS, numberOfBuckets );
+		collectionNode.createRelationshipTo( indexNode,
+			MembershipRelTypes.MEMBERSHIP_INDEX );
+		collectionNode.setProperty( indexKey( type, direction ),
+			indexNode.getId() );
+		return new MembershipIndex( indexNode );
+	}
+	
+	/**
+	 * Deletes the index of a set, if it has one.
+	 */
+	static void delete( Node collectionNode, RelationshipType type,
+		Direction direction )
+	{
+		MembershipIndex index = find( collectionNode, type, direction );
+		if ( index == null )
+		{
+			return;
+		}
+		
+		for ( Relationship rel : index.indexNode.getRelationships(
+			MembershipRelTypes.MEMBERSHIP_BUCKET, Direction.OUTGOING ) )
+		{
+			Node bucket = rel.getEndNode();
+			rel.delete();
+			bucket.delete();
+		}
+		index.indexNode.getSingleRelationship(
+			MembershipRelTypes.MEMBERSHIP_INDEX, Direction.INCOMING ).delete();
+		index.indexNode.delete();
+		collectionNode.removeProperty( indexKey( type, direction ) );
+	}
+	
+	private String bucketKey( Object key )
+	{
+		long hash = key instanceof Long ? ( Long ) key : key.hashCode();
+		hash = ( hash * 0x9E3779B97F4A7C15L ) >>> 33;
+		return KEY_BUCKET_PREFIX + ( hash % numberOfBuckets );
+	}
+	
+	private Node getBucket( Object key, boolean allowCreate )
+	{
+		String bucketKey = bucketKey( key );
+		Long bucketId = ( Long ) indexNode.getProperty( bucketKey, null );
+		if ( bucketId == null && allowCreate )
+		{
+			GraphDatabaseUtil.acquireWriteLock( indexNode );
+			bucketId = ( Long ) indexNode.getProperty( bucketKey, null );
+			if ( bucketId == null )
+			{
+				Node bucket = indexNode.getGraphDatabase().createNode();
+				indexNode.createRelationshipTo( bucket,
+					MembershipRelTypes.MEMBERSHIP_BUCKET );
+				indexNode.setProperty( bucketKey, bucket.getId() );
+				return bucket;
+			}
+		}
+		return bucketId == null ? null :
+			indexNode.getGraphDatabase().getNodeById( bucketId );
+	}
+	
+	/**
+	 * Write locks the bucket of {@code key} so that concurrent
+	 * transactions can't add the same member.
+	 */
+	void lock( Object key )
+	{
+		GraphDatabaseUtil.acquireWriteLock( getBucket( key, true ) );
+	}
+	
+	/**
+	 * @param key the member key.
+	 * @return the relationship to the member, or {@code null} if it
+	 * isn't indexed.
+	 */
+	Relationship get( Object key )
+	{
+		Node bucket = getBucket( key, false );
+		Object keys = bucket == null ? null :
+			bucket.getProperty( KEY_MEMBER_KEYS, null );
+		int index = keys == null ? -1 : SortedArrays.search( keys, key );
+		if ( index < 0 )
+		{
+			return null;
+		}
+		
+		long relId = ( ( long[] ) bucket.getProperty(
+			KEY_RELATIONSHIP_IDS ) )[ index ];
+		try
+		{
+			return indexNode.getGraphDatabase().getRelationshipById( relId );
+		}
+		catch ( NotFoundException e )
+		{
+			// The relationship has been deleted outside of the set
+			return null;
+		}
+	}
+	
+	void put( Object key, Relationship relationship )
+	{
+		Node bucket = getBucket( key, true );
+		Object keys = bucket.getProperty( KEY_MEMBER_KEYS, null );
+		long[] relIds = ( long[] ) bucket.getProperty( KEY_RELATIONSHIP_IDS,
+			new long[ 0 ] );
+		if ( keys == null )
+		{
+			bucket.setProperty( KEY_MEMBER_KEYS, SortedArrays.singleton( key ) );
+			bucket.setProperty( KEY_RELATIONSHIP_IDS,
+				new long[] { relationship.getId() } );
+			return;
+		}
+		
+		int index = SortedArrays.search( keys, key );
+		if ( index < 0 )
+		{
+			index = -index - 1;
+			bucket.setProperty( KEY_MEMBER_KEYS,
+				SortedArrays.insert( keys, index, key ) );
+			relIds = ( long[] ) SortedArrays.insert( relIds, index,
+				relationship.getId() );
+		}
+		else
+		{
+			relIds[ index ] = relationship.getId();
+		}
+		bucket.setProperty( KEY_RELATIONSHIP_IDS, relIds );
+	}
+	
+	void remove( Object key )
+	{
+		Node bucket = getBucket( key, false );
+		if ( bucket == null )
+		{
+			return;
+		}
+		
+		// Locked before reading, or a concurrent put in the same bucket
+		// would be overwritten with what was read here
+		GraphDatabaseUtil.acquireWriteLock( bucket );
+		Object keys = bucket.getProperty( KEY_MEMBER_KEYS, null );
+		int index = keys == null ? -1 : SortedArrays.search( keys, key );
+		if ( index < 0 )
+		{
+			return;
+		}
+		
+		if ( SortedArrays.length( keys ) == 1 )
+		{
+			bucket.removeProperty( KEY_MEMBER_KEYS );
+			bucket.removeProperty( KEY_RELATIONSHIP_IDS );
+			return;
+		}
+		
+		long[] relIds = ( long[] ) bucket.getProperty( KEY_RELATIONSHIP_IDS );
+		bucket.setProperty( KEY_MEMBER_KEYS,
+			SortedArrays.remove( keys, index ) );
+		bucket.setProperty( KEY_RELATIONSHIP_IDS,
+			SortedArrays.remove( relIds, index ) );
+	}
+}
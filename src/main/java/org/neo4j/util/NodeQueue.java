@@ -20,26 +20,134 @@
 package org.neo4j.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 
 /**
  * Wraps a linked list of nodes in Neo4j.
+ * 
+ * The number of entries is kept in a property on the root node so that
+ * {@link #size()} doesn't have to walk the list. If a block size greater
+ * than one is given the queue is segmented, i.e. each node in the linked
+ * list holds the ids of up to that many entry nodes, so that peeking or
+ * removing N entries costs about N/blockSize hops instead of N.
+ * 
+ * If a number of stripes is given the queue is striped, i.e. producers
+ * append to one of several sub-queues (selected by thread or by a key)
+ * which are connected to the root node. Each producer only locks its own
+ * sub-queue and so producers doesn't serialize on the root node. The
+ * order is kept within each sub-queue, but not between them.
+ * {@link #peek(int)} reads the main queue and then the sub-queues in order
+ * of their index, without taking any locks. {@link #remove(Node[])} removes
+ * peeked entries from the head of the main queue and the sub-queues,
+ * locking the root node and then the sub-queues in order of their index.
  * @author mattias
  */
 public class NodeQueue
 {
+	private static final String KEY_SIZE = "queue_size";
+	private static final String KEY_BLOCK_SIZE = "queue_block_size";
+	private static final String KEY_ENTRIES = "queue_entries";
+	private static final String KEY_STRIPE = "queue_stripe";
+	
 	private final Node rootNode;
 	private final RelationshipType relType;
+	private final int blockSize;
+	private final int stripes;
+	private final RelationshipType stripeRelType;
 	
 	public NodeQueue( Node rootNode, RelationshipType relType )
 	{
+		this( rootNode, relType, 1 );
+	}
+	
+	/**
+	 * @param rootNode the root node of the queue.
+	 * @param relType the relationship type to link the queue with.
+	 * @param blockSize the max number of entries each node in the linked
+	 * list holds. {@code 1} means the plain layout where each entry is a
+	 * node in the list. The block size is stored on the root node and
+	 * a queue cannot be opened with another block size than the one it
+	 * was created with.
+	 */
+	public NodeQueue( Node rootNode, RelationshipType relType, int blockSize )
+	{
+		this( rootNode, relType, blockSize, 0 );
+	}
+	
+	/**
+	 * @param rootNode the root node of the queue.
+	 * @param relType the relationship type to link the queue with.
+	 * @param blockSize see {@link #NodeQueue(Node, RelationshipType, int)}.
+	 * @param stripes the number of sub-queues producers append to,
+	 * {@code 0} means that producers append directly to the main queue.
+	 */
+	public NodeQueue( Node rootNode, RelationshipType relType, int blockSize,
+		int stripes )
+	{
+		if ( blockSize < 1 )
+		{
+			throw new IllegalArgumentException( "Invalid block size " +
+				blockSize );
+		}
+		if ( stripes < 0 )
+		{
+			throw new IllegalArgumentException( "Invalid number of stripes " +
+				stripes );
+		}
+		Integer storedBlockSize =
+			( Integer ) rootNode.getProperty( KEY_BLOCK_SIZE, null );
+		if ( storedBlockSize == null &&
+			rootNode.hasRelationship( relType, Direction.OUTGOING ) )
+		{
+			// Queues from before the block size was stored are plain
+			storedBlockSize = 1;
+		}
+		if ( storedBlockSize != null && storedBlockSize != blockSize )
+		{
+			throw new IllegalArgumentException( "Queue " + rootNode +
+				" has block size " + storedBlockSize + ", not " + blockSize );
+		}
 		this.rootNode = rootNode;
 		this.relType = relType;
+		this.blockSize = blockSize;
+		this.stripes = stripes;
+		this.stripeRelType = DynamicRelationshipType.withName(
+			relType.name() + "_STRIPE" );
+	}
+	
+	public Node getRootNode()
+	{
+		return this.rootNode;
+	}
+	
+	public int getBlockSize()
+	{
+		return this.blockSize;
+	}
+	
+	public int getNumberOfStripes()
+	{
+		return this.stripes;
+	}
+	
+	private boolean isStriped()
+	{
+		return this.stripes > 0;
+	}
+	
+	private boolean isSegmented()
+	{
+		return this.blockSize > 1;
 	}
 	
 	private Relationship getFirstRelationship()
@@ -52,10 +160,71 @@ public class NodeQueue
 		return rootNode.getSingleRelationship( relType, Direction.INCOMING );
 	}
 	
-	public Node add()
+	private GraphDatabaseService graphDb()
 	{
-	    GraphDatabaseUtil.acquireWriteLock( rootNode );
-		Node node = rootNode.getGraphDatabase().createNode();
+		return rootNode.getGraphDatabase();
+	}
+	
+	/**
+	 * @return the number of entries in this queue. This is read from
+	 * a counter on the root node, queues created before the counter
+	 * was introduced are counted the first time. For a striped queue the
+	 * counters of the sub-queues are added as well.
+	 */
+	public int size()
+	{
+		int size = chainSize();
+		for ( NodeQueue stripe : getStripes() )
+		{
+			size += stripe.chainSize();
+		}
+		return size;
+	}
+	
+	private int chainSize()
+	{
+		Integer size = ( Integer ) rootNode.getProperty( KEY_SIZE, null );
+		return size != null ? size : countEntries();
+	}
+	
+	private int countEntries()
+	{
+		int count = 0;
+		Node node = rootNode;
+		while ( true )
+		{
+			Relationship rel = node.getSingleRelationship( relType,
+				Direction.OUTGOING );
+			if ( rel == null )
+			{
+				break;
+			}
+			node = rel.getEndNode();
+			if ( node.equals( rootNode ) )
+			{
+				break;
+			}
+			count += isSegmented() ? getBlock( node ).length : 1;
+		}
+		return count;
+	}
+	
+	private void setSize( int size )
+	{
+		rootNode.setProperty( KEY_SIZE, size );
+	}
+	
+	private void storeBlockSize()
+	{
+		if ( !rootNode.hasProperty( KEY_BLOCK_SIZE ) )
+		{
+			rootNode.setProperty( KEY_BLOCK_SIZE, blockSize );
+		}
+	}
+	
+	private Node appendToList()
+	{
+		Node node = graphDb().createNode();
 		Relationship rel = getLastRelationship();
 		if ( rel == null )
 		{
@@ -71,32 +240,241 @@ public class NodeQueue
 		return node;
 	}
 	
+	/**
+	 * Adds an entry to the end of the queue. For a striped queue the entry
+	 * is added to the sub-queue of the current thread.
+	 * @return the new entry node.
+	 */
+	public Node add()
+	{
+		if ( isStriped() )
+		{
+			return getOrCreateStripe(
+				stripeIndex( Thread.currentThread().getId() ) ).add();
+		}
+		
+	    GraphDatabaseUtil.acquireWriteLock( rootNode );
+	    storeBlockSize();
+	    int size = chainSize();
+	    Node node = null;
+	    if ( isSegmented() )
+	    {
+	    	node = graphDb().createNode();
+	    	Relationship rel = getLastRelationship();
+	    	Node block = rel != null ? rel.getStartNode() : null;
+	    	long[] ids = block != null ? getBlock( block ) : null;
+	    	if ( ids == null || ids.length >= blockSize )
+	    	{
+	    		block = appendToList();
+	    		ids = new long[ 0 ];
+	    	}
+	    	long[] newIds = Arrays.copyOf( ids, ids.length + 1 );
+	    	newIds[ ids.length ] = node.getId();
+	    	block.setProperty( KEY_ENTRIES, newIds );
+	    }
+	    else
+	    {
+	    	node = appendToList();
+	    }
+	    setSize( size + 1 );
+		return node;
+	}
+	
+	/**
+	 * Adds an entry to the end of the queue. For a striped queue the entry
+	 * is added to the sub-queue selected by {@code stripeKey}, so that
+	 * entries with the same key keep their order.
+	 * @param stripeKey the key which selects the sub-queue.
+	 * @return the new entry node.
+	 */
+	public Node add( Object stripeKey )
+	{
+		if ( isStriped() )
+		{
+			return getOrCreateStripe(
+				stripeIndex( stripeKey.hashCode() ) ).add();
+		}
+		return add();
+	}
+	
+	private int stripeIndex( long hash )
+	{
+		return ( int ) ( ( hash & Long.MAX_VALUE ) % stripes );
+	}
+	
+	/**
+	 * @return the sub-queues, in order of their index.
+	 */
+	private Collection<NodeQueue> getStripes()
+	{
+		Map<Integer, NodeQueue> result = new TreeMap<Integer, NodeQueue>();
+		for ( Relationship rel : rootNode.getRelationships( stripeRelType,
+			Direction.OUTGOING ) )
+		{
+			Node node = rel.getEndNode();
+			result.put( ( Integer ) node.getProperty( KEY_STRIPE ),
+				newStripe( node ) );
+		}
+		return result.values();
+	}
+	
+	private NodeQueue newStripe( Node stripeRootNode )
+	{
+		return new NodeQueue( stripeRootNode, relType, blockSize );
+	}
+	
+	private Node findStripeNode( int index )
+	{
+		for ( Relationship rel : rootNode.getRelationships( stripeRelType,
+			Direction.OUTGOING ) )
+		{
+			Node node = rel.getEndNode();
+			if ( node.getProperty( KEY_STRIPE ).equals( index ) )
+			{
+				return node;
+			}
+		}
+		return null;
+	}
+	
+	private NodeQueue getOrCreateStripe( int index )
+	{
+		Node node = findStripeNode( index );
+		if ( node == null )
+		{
+			GraphDatabaseUtil.acquireWriteLock( rootNode );
+			node = findStripeNode( index );
+			if ( node == null )
+			{
+				storeBlockSize();
+				node = graphDb().createNode();
+				node.setProperty( KEY_STRIPE, index );
+				rootNode.createRelationshipTo( node, stripeRelType );
+			}
+		}
+		return newStripe( node );
+	}
+	
+	private long[] getBlock( Node block )
+	{
+		return ( long[] ) block.getProperty( KEY_ENTRIES );
+	}
+	
     public boolean remove()
 	{
 	    return remove( 1 ) == 1;
 	}
 	
+	/**
+	 * Removes the first {@code max} entries, in the order
+	 * {@link #peek(int)} returns them. For a striped queue use
+	 * {@link #remove(Node[])} to remove entries which were peeked earlier,
+	 * since entries may have been added to the sub-queues since.
+	 * @param max the max number of entries to remove.
+	 * @return the number of removed entries.
+	 */
 	public int remove( int max )
+	{
+		if ( isStriped() )
+		{
+			return remove( peek( max ) );
+		}
+		return removeFromChain( max );
+	}
+	
+	/**
+	 * Removes entries returned from {@link #peek(int)}. The entries are
+	 * removed from the head of the main queue and, for a striped queue, of
+	 * the sub-queues, in the order {@link #peek(int)} returns them. Entries
+	 * added after the peek are left in the queue.
+	 * @param entries the peeked entries to remove.
+	 * @return the number of removed entries.
+	 */
+	public int remove( Node[] entries )
+	{
+		GraphDatabaseUtil.acquireWriteLock( rootNode );
+		int removed = removeFromChain( countPeeked( entries, 0 ) );
+		if ( isStriped() )
+		{
+			for ( NodeQueue stripe : getStripes() )
+			{
+				if ( removed == entries.length )
+				{
+					break;
+				}
+				Node[] first = stripe.peekChain( 1 );
+				if ( first.length > 0 &&
+					first[ 0 ].equals( entries[ removed ] ) )
+				{
+					GraphDatabaseUtil.acquireWriteLock( stripe.rootNode );
+					removed += stripe.removeFromChain(
+						stripe.countPeeked( entries, removed ) );
+				}
+			}
+		}
+		return removed;
+	}
+	
+	/**
+	 * @return the number of entries from {@code offset} in
+	 * {@code entries} which are at the head of this chain.
+	 */
+	private int countPeeked( Node[] entries, int offset )
+	{
+		Node[] head = peekChain( entries.length - offset );
+		int count = 0;
+		while ( count < head.length &&
+			head[ count ].equals( entries[ offset + count ] ) )
+		{
+			count++;
+		}
+		return count;
+	}
+	
+	private int removeFromChain( int max )
 	{
 	    GraphDatabaseUtil.acquireWriteLock( rootNode );
+	    int size = chainSize();
         Relationship rel = getFirstRelationship();
         int removed = 0;
         if ( rel != null )
         {
-            Node node = rel.getEndNode();
+            Node first = rel.getEndNode();
+            Node node = first;
             Node nextNode = null;
-            for ( int i = 0; i < max; i++ )
+            while ( removed < max )
             {
                 Relationship relToNext = node.getSingleRelationship(
                     relType, Direction.OUTGOING );
                 nextNode = relToNext.getEndNode();
+                if ( isSegmented() )
+                {
+                	long[] ids = getBlock( node );
+                	int count = Math.min( max - removed, ids.length );
+                	for ( int i = 0; i < count; i++ )
+                	{
+                		graphDb().getNodeById( ids[ i ] ).delete();
+                	}
+                	removed += count;
+                	if ( count < ids.length )
+                	{
+                		node.setProperty( KEY_ENTRIES,
+                			Arrays.copyOfRange( ids, count, ids.length ) );
+                		// Only relink if the blocks before it were removed
+                		nextNode = node.equals( first ) ? null : node;
+                		break;
+                	}
+                }
+                else
+                {
+                	removed++;
+                }
                 for ( Relationship relToDel : node.getRelationships(
                     relType ) )
                 {
                     relToDel.delete();
                 }
                 node.delete();
-                removed++;
                 if ( nextNode.equals( rootNode ) )
                 {
                     break;
@@ -109,25 +487,65 @@ public class NodeQueue
                 rootNode.createRelationshipTo( nextNode, relType );
             }
         }
+        if ( removed > 0 )
+        {
+        	setSize( Math.max( 0, size - removed ) );
+        }
         return removed;
 	}
 	
 	public Node peek()
 	{
+		if ( isStriped() )
+		{
+			Node[] nodes = peek( 1 );
+			return nodes.length > 0 ? nodes[ 0 ] : null;
+		}
 		Relationship rel = getFirstRelationship();
 		Node result = null;
 		if ( rel != null )
 		{
 			result = rel.getEndNode();
+			if ( isSegmented() )
+			{
+				result = graphDb().getNodeById( getBlock( result )[ 0 ] );
+			}
 		}
 		return result;
 	}
 	
+	/**
+	 * Returns the first entries of the queue, for a striped queue the
+	 * entries of the main queue followed by the entries of each sub-queue
+	 * in order of their index. No locks are taken.
+	 * @param max the max number of entries to return.
+	 * @return the first entries of the queue.
+	 */
 	public Node[] peek( int max )
+	{
+		Node[] result = peekChain( max );
+		if ( !isStriped() || result.length == max )
+		{
+			return result;
+		}
+		
+		Collection<Node> all = new ArrayList<Node>( Arrays.asList( result ) );
+		for ( NodeQueue stripe : getStripes() )
+		{
+			if ( all.size() == max )
+			{
+				break;
+			}
+			all.addAll( Arrays.asList( stripe.peekChain( max - all.size() ) ) );
+		}
+		return all.toArray( new Node[ 0 ] );
+	}
+	
+	private Node[] peekChain( int max )
 	{
         Collection<Node> result = new ArrayList<Node>( max );
         Node node = rootNode;
-        for ( int i = 0; i < max; i++ )
+        while ( result.size() < max )
         {
             Relationship rel = node.getSingleRelationship( relType,
                 Direction.OUTGOING );
@@ -140,7 +558,21 @@ public class NodeQueue
             {
                 break;
             }
-            result.add( otherNode );
+            if ( isSegmented() )
+            {
+            	for ( long id : getBlock( otherNode ) )
+            	{
+            		if ( result.size() == max )
+            		{
+            			break;
+            		}
+            		result.add( graphDb().getNodeById( id ) );
+            	}
+            }
+            else
+            {
+            	result.add( otherNode );
+            }
             node = otherNode;
         }
         return result.toArray( new Node[ 0 ] );
@@ -22,20 +22,71 @@ package org.neo4j.util;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
 
+/**
+ * Handles entries from a {@link NodeQueue} in batches in its own thread.
+ * The thread is woken up when a transaction which has added entries with
+ * {@link #add(Map)} commits, so it doesn't have to poll the queue.
+ * 
+ * Optionally entries can go through a bounded in-memory buffer, see
+ * {@link #setWriteBehindBuffer(int)}, so that entries are written in one
+ * go when their transaction commits and never have to be read back from
+ * the graph.
+ * 
+ * Optionally each batch can be handled by several threads, see
+ * {@link #setParallelism(int, String)}.
+ * 
+ * An entry which fails is put in a {@link RetryQueue} and tried again
+ * later, as decided by the {@link RetryPolicy}, so that it doesn't hold
+ * up the entries after it.
+ */
 public abstract class NodeQueueWorker extends Thread
 {
     private final GraphDatabaseService graphDb;
     private final NodeQueue queue;
-    private boolean halted;
-    private boolean requestedToPause;
-    private boolean paused;
+    private volatile boolean halted;
+    private volatile boolean requestedToPause;
+    private volatile boolean paused;
+    private boolean signalled;
+    /**
+     * Guards pausing and waking up. Not the monitor of this thread, since
+     * {@link Thread#join()} waits on and is notified through that one.
+     */
+    private final Object lock = new Object();
     private int batchSize;
+    private Map<Long, Map<String, Object>> buffer;
+    private int bufferCapacity;
+    private final AtomicInteger reservedBufferSlots = new AtomicInteger();
+    private final Map<javax.transaction.Transaction, CommitHook> commitHooks =
+        new ConcurrentHashMap<javax.transaction.Transaction, CommitHook>();
+    private RetryPolicy retryPolicy =
+        new ExponentialBackoffRetryPolicy( 10, 500, 5 * 60 * 1000 );
+    private volatile RetryQueue retryQueue;
+    private boolean compactEntries;
+    private final List<EntryView> views = new ArrayList<EntryView>();
+    private ExecutorService consumers;
+    private int numberOfConsumers;
+    private String orderingKey;
     
     public NodeQueueWorker( GraphDatabaseService graphDb, NodeQueue queue, int batchSize,
         String name )
@@ -44,6 +95,7 @@ public abstract class NodeQueueWorker extends Thread
         this.graphDb = graphDb;
         this.queue = queue;
         this.batchSize = batchSize;
+        this.retryQueue = newRetryQueue();
     }
     
     public NodeQueueWorker( GraphDatabaseService graphDb, NodeQueue queue, int batchSize )
@@ -56,58 +108,225 @@ public abstract class NodeQueueWorker extends Thread
         return this.queue;
     }
     
-    public void setPaused( boolean paused )
+    /**
+     * Makes entries added with {@link #add(Map)} be kept in memory until
+     * their transaction commits, and then be written to the queue together,
+     * as part of that transaction. They are also kept in a bounded in-memory
+     * buffer, so that the worker doesn't have to read them back from the
+     * graph. Entries which aren't in the buffer, f.ex. after a restart or if
+     * the buffer was full, are read from the graph as usual.
+     * 
+     * Must be called before any entries are added.
+     * 
+     * @param capacity the max number of entries in the buffer.
+     */
+    public void setWriteBehindBuffer( int capacity )
     {
-        if ( this.paused == paused )
+        if ( this.buffer != null )
         {
-            return;
+            throw new IllegalStateException( "Buffer already set" );
         }
-        
-        if ( paused && this.requestedToPause )
+        this.buffer = new ConcurrentHashMap<Long, Map<String, Object>>();
+        this.bufferCapacity = capacity;
+    }
+    
+    /**
+     * @return the number of entries in the write-behind buffer. For testing.
+     */
+    int getBufferedCount()
+    {
+        return this.buffer != null ? this.buffer.size() : 0;
+    }
+    
+    /**
+     * Makes each batch be split up and handled by {@code numberOfConsumers}
+     * threads, each in its own transaction, instead of by this thread in
+     * the transaction which also removes the entries from the queue. The
+     * entries are removed from the queue in a separate transaction when all
+     * parts of the batch has been handled, so an entry may be handled
+     * more than once if a part fails. {@link #beforeBatch()} and
+     * {@link #afterBatch()} are called once per part, in the consumer
+     * thread.
+     * 
+     * Entries with the same value for {@code orderingKeyOrNull} are always
+     * handled by the same consumer, in the order they were added. Entries
+     * without it are spread out evenly. While an entry is waiting in the
+     * {@link RetryQueue} the later entries with the same value are parked
+     * behind it, so that they are handled after it.
+     * 
+     * Must be called before {@link #startUp()}.
+     * 
+     * @param numberOfConsumers the number of threads handling each batch.
+     * @param orderingKeyOrNull the entry key which decides the order
+     * entries must be handled in, may be {@code null}.
+     */
+    public void setParallelism( int numberOfConsumers,
+        String orderingKeyOrNull )
+    {
+        if ( numberOfConsumers < 1 )
         {
-            waitUntilReallyPaused();
-            return;
+            throw new IllegalArgumentException( "Invalid number of consumers " +
+                numberOfConsumers );
         }
-        
-        this.requestedToPause = paused;
-        if ( paused )
+        this.numberOfConsumers = numberOfConsumers;
+        this.orderingKey = orderingKeyOrNull;
+        this.retryQueue = newRetryQueue();
+        this.consumers = new ThreadPoolExecutor( numberOfConsumers,
+            numberOfConsumers, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                private final AtomicInteger counter = new AtomicInteger( 1 );
+                
+                public Thread newThread( Runnable runnable )
+                {
+                    return new Thread( runnable, getName() + " Consumer[" +
+                        counter.getAndIncrement() + "]" );
+                }
+            } );
+    }
+    
+    /**
+     * Makes {@link #add(Map)} store entries compactly with {@link EntryCodec}
+     * so that the worker can read each entry with one property lookup into
+     * a reused {@link EntryView}. Such a view is only valid until the batch
+     * has been handled, so {@link #handleEntry(Map)} must copy an entry it
+     * wants to keep. Entries stored earlier are read as usual.
+     * @param compactEntries whether or not to store entries compactly.
+     */
+    public void setCompactEntries( boolean compactEntries )
+    {
+        this.compactEntries = compactEntries;
+    }
+    
+    /**
+     * Sets the {@link RetryPolicy} for entries which fails. The default
+     * policy tries an entry ten times with exponential backoff, starting at
+     * 500 milliseconds. Must be called before {@link #startUp()}.
+     * @param policy the {@link RetryPolicy} to use.
+     */
+    public void setRetryPolicy( RetryPolicy policy )
+    {
+        this.retryPolicy = policy;
+        this.retryQueue = newRetryQueue();
+    }
+    
+    private RetryQueue newRetryQueue()
+    {
+        return new RetryQueue( queue.getRootNode(), retryPolicy, orderingKey );
+    }
+    
+    /**
+     * @return the {@link RetryQueue} where failed entries are kept, it's
+     * connected to the root node of the queue.
+     */
+    public RetryQueue getRetryQueue()
+    {
+        return this.retryQueue;
+    }
+    
+    /**
+     * Pauses or resumes the worker. Pausing waits until the worker has
+     * finished its current batch and is really paused.
+     * @param paused whether or not the worker should be paused.
+     */
+    public void setPaused( boolean paused )
+    {
+        synchronized ( lock )
         {
-            waitUntilReallyPaused();
+            if ( paused )
+            {
+                if ( !this.paused )
+                {
+                    this.requestedToPause = true;
+                    lock.notifyAll();
+                    waitUntilReallyPaused();
+                }
+            }
+            else
+            {
+                this.requestedToPause = false;
+                this.paused = false;
+                lock.notifyAll();
+            }
         }
-        else
+    }
+    
+    private void waitUntilReallyPaused()
+    {
+        synchronized ( lock )
         {
-            this.paused = false;
+            while ( !this.paused && !this.halted )
+            {
+                waitQuiet( 0 );
+            }
         }
     }
+
+    public boolean isPaused()
+    {
+        return this.paused;
+    }
     
-    private void waitUntilReallyPaused()
+    private void waitQuiet( long millis )
     {
-        while ( !this.paused )
+        synchronized ( lock )
         {
             try
             {
-                Thread.sleep( 100 );
+                lock.wait( millis );
             }
             catch ( InterruptedException e )
-            { // OK
+            {
+                // Ok
             }
         }
     }
-
-    public boolean isPaused()
+    
+    /**
+     * Wakes up the worker if it's waiting for entries.
+     */
+    public void wakeUp()
     {
-        return this.paused;
+        synchronized ( lock )
+        {
+            this.signalled = true;
+            lock.notifyAll();
+        }
     }
     
-    private void sleepQuiet( long millis )
+    /**
+     * @return the max time the worker waits for a wake up before it looks
+     * in the queue anyway, f.ex. for entries which were added to the
+     * {@link NodeQueue} directly instead of via {@link #add(Map)}.
+     */
+    protected long getMaxIdleTime()
     {
-        try
+        return 1000;
+    }
+    
+    private void waitForWakeUp()
+    {
+        synchronized ( lock )
         {
-            Thread.sleep( millis );
+            if ( !this.signalled && !this.halted && !this.requestedToPause )
+            {
+                waitQuiet( getMaxIdleTime() );
+            }
+            this.signalled = false;
         }
-        catch ( InterruptedException e )
+    }
+    
+    private void pauseUntilResumed()
+    {
+        synchronized ( lock )
         {
-            // Ok
+            this.paused = true;
+            this.requestedToPause = false;
+            lock.notifyAll();
+            while ( this.paused && !this.halted )
+            {
+                waitQuiet( 0 );
+            }
         }
     }
     
@@ -118,26 +337,93 @@ public abstract class NodeQueueWorker extends Thread
         {
             if ( this.requestedToPause || this.paused )
             {
-                this.paused = true;
-                this.requestedToPause = false;
-                sleepQuiet( 1000 );
+                pauseUntilResumed();
                 continue;
             }
             
-            if ( !executeOneBatch() )
+            boolean didSomething = consumers != null ?
+                executeOneParallelBatch() : executeOneBatch();
+            if ( executeDueRetries() )
             {
-                sleepQuiet( 100 );
+                didSomething = true;
+            }
+            if ( !didSomething )
+            {
+                waitForWakeUp();
             }
         }
     }
     
     public void add( Map<String, Object> values )
+    {
+        CommitHook hook = getCommitHook();
+        if ( hook != null && buffer != null )
+        {
+            hook.entries.add( new HashMap<String, Object>( values ) );
+            return;
+        }
+        addToQueue( values );
+    }
+    
+    /**
+     * @return the {@link CommitHook} of the current transaction, or
+     * {@code null} if it couldn't be registered. In that case the worker
+     * will find the entries after {@link #getMaxIdleTime()} anyway.
+     */
+    private CommitHook getCommitHook()
+    {
+        try
+        {
+            javax.transaction.Transaction tx = GraphDatabaseUtil.
+                getTransactionManager( graphDb ).getTransaction();
+            if ( tx == null )
+            {
+                return null;
+            }
+            CommitHook hook = commitHooks.get( tx );
+            if ( hook == null )
+            {
+                hook = new CommitHook( tx );
+                tx.registerSynchronization( hook );
+                commitHooks.put( tx, hook );
+            }
+            return hook;
+        }
+        catch ( Exception e )
+        {
+            return null;
+        }
+    }
+    
+    private Node addToQueue( Map<String, Object> values )
     {
         Node entry = this.queue.add();
+        if ( compactEntries )
+        {
+            EntryCodec.write( entry, values );
+            return entry;
+        }
         for ( Map.Entry<String, Object> value : values.entrySet() )
         {
             entry.setProperty( value.getKey(), value.getValue() );
         }
+        return entry;
+    }
+    
+    private boolean reserveBufferSlot()
+    {
+        while ( true )
+        {
+            int reserved = reservedBufferSlots.get();
+            if ( reserved >= bufferCapacity )
+            {
+                return false;
+            }
+            if ( reservedBufferSlots.compareAndSet( reserved, reserved + 1 ) )
+            {
+                return true;
+            }
+        }
     }
     
     protected void beforeBatch()
@@ -150,23 +436,16 @@ public abstract class NodeQueueWorker extends Thread
     
     private boolean executeOneBatch()
     {
-        int entrySize = 0;
         Collection<Map<String, Object>> entries = null;
         Transaction tx = graphDb.beginTx();
         try
         {
-            Node[] nodes = this.queue.peek( batchSize );
+            final Node[] nodes = this.queue.peek( batchSize );
             if ( nodes.length == 0 )
             {
                 return false;
             }
-            entrySize = nodes.length;
-            
-            entries = new ArrayList<Map<String,Object>>( entrySize );
-            for ( Node node : nodes )
-            {
-                entries.add( readNode( node ) );
-            }
+            entries = readNodes( nodes );
 
             beforeBatch();
             try
@@ -176,13 +455,12 @@ public abstract class NodeQueueWorker extends Thread
                     doOne( entry );
                 }
                 
-                final int size = entrySize;
                 new DeadlockCapsule<Object>( "remover" )
                 {
                     @Override
                     public Object tryOnce()
                     {
-                        queue.remove( size );
+                        queue.remove( nodes );
                         return null;
                     }
                 }.run();
@@ -206,41 +484,225 @@ public abstract class NodeQueueWorker extends Thread
         return true;
     }
     
-    private Map<String, Object> readNode( Node node )
+    private boolean executeOneParallelBatch()
+    {
+        Node[] nodes = null;
+        Collection<Map<String, Object>> entries = null;
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            nodes = this.queue.peek( batchSize );
+            entries = readNodes( nodes );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        
+        if ( entries.isEmpty() )
+        {
+            return false;
+        }
+        
+        if ( !handleInParallel( entries ) )
+        {
+            // Failed entries are still in the queue, we'll try next time.
+            return true;
+        }
+        
+        tx = graphDb.beginTx();
+        try
+        {
+            final Node[] peeked = nodes;
+            new DeadlockCapsule<Object>( "remover" )
+            {
+                @Override
+                public Object tryOnce()
+                {
+                    queue.remove( peeked );
+                    return null;
+                }
+            }.run();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        return true;
+    }
+    
+    private boolean handleInParallel( Collection<Map<String, Object>> entries )
+    {
+        List<Collection<Map<String, Object>>> parts =
+            new ArrayList<Collection<Map<String,Object>>>( numberOfConsumers );
+        for ( int i = 0; i < numberOfConsumers; i++ )
+        {
+            parts.add( new ArrayList<Map<String,Object>>() );
+        }
+        int counter = 0;
+        for ( Map<String, Object> entry : entries )
+        {
+            Object key = orderingKey != null ? entry.get( orderingKey ) : null;
+            int index = key != null ?
+                ( key.hashCode() & Integer.MAX_VALUE ) % numberOfConsumers :
+                counter++ % numberOfConsumers;
+            parts.get( index ).add( entry );
+        }
+        
+        Collection<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for ( Collection<Map<String, Object>> part : parts )
+        {
+            if ( !part.isEmpty() )
+            {
+                tasks.add( new PartHandler( part ) );
+            }
+        }
+        
+        boolean handled = true;
+        try
+        {
+            for ( Future<Object> future : consumers.invokeAll( tasks ) )
+            {
+                try
+                {
+                    future.get();
+                }
+                catch ( ExecutionException e )
+                {
+                    handled = false;
+                }
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.interrupted();
+            handled = false;
+        }
+        return handled;
+    }
+    
+    private Collection<Map<String, Object>> readNodes( Node[] nodes )
     {
-        Map<String, Object> result = new HashMap<String, Object>();
-        for ( String key : node.getPropertyKeys() )
+        Collection<Map<String, Object>> entries =
+            new ArrayList<Map<String,Object>>( nodes.length );
+        for ( int i = 0; i < nodes.length; i++ )
         {
-            result.put( key, node.getProperty( key ) );
+            Map<String, Object> buffered = buffer != null ?
+                buffer.remove( nodes[ i ].getId() ) : null;
+            if ( buffered != null )
+            {
+                reservedBufferSlots.decrementAndGet();
+                entries.add( buffered );
+                continue;
+            }
+            if ( views.size() == i )
+            {
+                views.add( new EntryView() );
+            }
+            entries.add( EntryCodec.read( nodes[ i ], views.get( i ) ) );
         }
-        return result;
+        return entries;
     }
 
     private void doOne( Map<String, Object> entry ) throws Exception
     {
-        // Try a max of ten times if it fails.
-        Exception exception = null;
-        for ( int i = 0; !this.halted && i < 10; i++ )
+        if ( getRetryQueue().park( entry ) )
+        {
+            // An earlier entry with the same ordering value is waiting
+            // to be retried, this one goes after it.
+            return;
+        }
+        try
+        {
+            doHandleEntry( entry );
+        }
+        catch ( Exception e )
+        {
+            entryFailed( entry, 1, e );
+        }
+    }
+    
+    private void entryFailed( Map<String, Object> entry, int failedAttempts,
+        Exception exception ) throws Exception
+    {
+        if ( !getRetryQueue().failed( entry, failedAttempts, exception ) )
+        {
+            handleEntryError( entry, exception );
+            getRetryQueue().release( entry );
+        }
+    }
+    
+    /**
+     * Tries the entries in the retry queue which are due, in one
+     * transaction.
+     * @return {@code true} if due entries were tried, {@code false} if there
+     * were none or if the batch failed and was rolled back, so that the
+     * worker waits before trying them again.
+     */
+    private boolean executeDueRetries()
+    {
+        Transaction tx = graphDb.beginTx();
+        try
         {
+            List<RetryQueue.Entry> entries =
+                getRetryQueue().peekDue( batchSize );
+            if ( entries.isEmpty() )
+            {
+                return false;
+            }
+            
+            beforeBatch();
             try
             {
-                doHandleEntry( entry );
-                return;
+                for ( RetryQueue.Entry entry : entries )
+                {
+                    try
+                    {
+                        doHandleEntry( entry.getValues() );
+                        getRetryQueue().release( entry.getValues() );
+                    }
+                    catch ( Exception e )
+                    {
+                        entryFailed( entry.getValues(),
+                            entry.getFailedAttempts() + 1, e );
+                    }
+                }
+                getRetryQueue().remove( entries );
+                tx.success();
             }
             catch ( Exception e )
             {
-                exception = e;
+                // We got an exception, the tx will roll back so that we can
+                // try next time instead. Don't count it as work done, or
+                // we'd be trying it again right away.
+                return false;
+            }
+            finally
+            {
+                afterBatch();
             }
-            sleepQuiet( 500 );
         }
-        handleEntryError( entry, exception );
+        finally
+        {
+            tx.finish();
+        }
+        return true;
     }
     
+    /**
+     * Called when the {@link RetryPolicy} has given up on an entry.
+     * The default implementation puts it in the dead letter queue of the
+     * {@link RetryQueue}.
+     * @param entry the entry which failed.
+     * @param exception the exception from the last attempt.
+     * @throws Exception if the entry couldn't be taken care of.
+     */
     protected void handleEntryError( Map<String, Object> entry,
         Exception exception ) throws Exception
     {
-        // Add it to the end of the queue
-        add( entry );
+        getRetryQueue().addDeadLetter( entry, exception );
     }
     
     private void doHandleEntry( Map<String, Object> entry )
@@ -258,9 +720,125 @@ public abstract class NodeQueueWorker extends Thread
     public void shutDown()
     {
         this.halted = true;
-        while ( this.isAlive() )
+        wakeUp();
+        try
+        {
+            join();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.interrupted();
+            // It's ok
+        }
+        if ( consumers != null )
+        {
+            consumers.shutdown();
+        }
+    }
+    
+    /**
+     * Handles one part of a batch in its own transaction.
+     */
+    private class PartHandler implements Callable<Object>
+    {
+        private final Collection<Map<String, Object>> entries;
+        
+        PartHandler( Collection<Map<String, Object>> entries )
         {
-            sleepQuiet( 200 );
+            this.entries = entries;
+        }
+        
+        public Object call() throws Exception
+        {
+            Transaction tx = graphDb.beginTx();
+            try
+            {
+                beforeBatch();
+                try
+                {
+                    for ( Map<String, Object> entry : entries )
+                    {
+                        doOne( entry );
+                    }
+                }
+                finally
+                {
+                    afterBatch();
+                }
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Wakes up the worker when a transaction which has added entries
+     * commits. In write-behind mode it also writes the entries added in the
+     * transaction to the queue, right before it commits, and puts them in
+     * the buffer. They are put there before the commit, so that the worker
+     * can't see the nodes before they're in the buffer, and taken out again
+     * if the transaction rolls back.
+     */
+    private class CommitHook implements Synchronization
+    {
+        private final javax.transaction.Transaction tx;
+        private final Collection<Map<String, Object>> entries =
+            new ArrayList<Map<String,Object>>();
+        private final Collection<Long> bufferedIds = new ArrayList<Long>();
+        
+        CommitHook( javax.transaction.Transaction tx )
+        {
+            this.tx = tx;
+        }
+        
+        public void beforeCompletion()
+        {
+            try
+            {
+                for ( Map<String, Object> values : entries )
+                {
+                    Node node = addToQueue( values );
+                    if ( reserveBufferSlot() )
+                    {
+                        buffer.put( node.getId(), values );
+                        bufferedIds.add( node.getId() );
+                    }
+                }
+            }
+            catch ( RuntimeException e )
+            {
+                // The entries must not be lost, so don't let it commit.
+                try
+                {
+                    tx.setRollbackOnly();
+                }
+                catch ( SystemException ee )
+                {
+                    // Rethrowing below will have to do then
+                }
+                throw e;
+            }
+        }
+
+        public void afterCompletion( int status )
+        {
+            commitHooks.remove( tx );
+            if ( status == Status.STATUS_COMMITTED )
+            {
+                wakeUp();
+                return;
+            }
+            for ( Long id : bufferedIds )
+            {
+                if ( buffer.remove( id ) != null )
+                {
+                    reservedBufferSlots.decrementAndGet();
+                }
+            }
         }
     }
 }
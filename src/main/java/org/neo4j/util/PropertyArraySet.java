@@ -30,6 +30,12 @@ import org.neo4j.helpers.collection.CollectionWrapper;
 /**
  * This class uses the fact that node property values can be arrays.
  * It looks at one property on a node as if it was a collection of values.
+ * 
+ * In sorted mode the values are kept as a sorted array of primitives or
+ * strings, so that membership is a binary search and adding or removing a
+ * value copies the array once, without boxing. All values must then be of
+ * the same type and the property must only be written in sorted mode.
+ * Values can't be put at a specific index in sorted mode.
  *
  * @param <T> the type of values.
  */
@@ -38,12 +44,43 @@ public class PropertyArraySet<T> extends AbstractSet<T>
 {
 	private final PropertyContainer container;
 	private final String key;
+	private final boolean sorted;
 
 	public PropertyArraySet( PropertyContainer container,
 	    String key )
+	{
+		this( container, key, false );
+	}
+	
+	/**
+	 * @param container the entity holding the property.
+	 * @param key the property key.
+	 * @param sorted whether or not to keep the values in a sorted array.
+	 */
+	public PropertyArraySet( PropertyContainer container,
+	    String key, boolean sorted )
 	{
 		this.container = container;
 		this.key = key;
+		this.sorted = sorted;
+	}
+	
+	private Object sortedArray()
+	{
+		Object value = container().getProperty( key(), null );
+		return value == null ? null : SortedArrays.asArray( value );
+	}
+	
+	private void setSortedArray( Object array )
+	{
+		if ( SortedArrays.length( array ) == 0 )
+		{
+			container().removeProperty( key() );
+		}
+		else
+		{
+			container().setProperty( key(), array );
+		}
 	}
 
 	protected PropertyContainer container()
@@ -58,6 +95,22 @@ public class PropertyArraySet<T> extends AbstractSet<T>
 
 	public boolean add( T o )
 	{
+		if ( sorted )
+		{
+			Object array = sortedArray();
+			if ( array == null )
+			{
+				setSortedArray( SortedArrays.singleton( o ) );
+				return true;
+			}
+			int index = SortedArrays.search( array, o );
+			if ( index >= 0 )
+			{
+				return false;
+			}
+			setSortedArray( SortedArrays.insert( array, -index - 1, o ) );
+			return true;
+		}
 		return GraphDatabaseUtil.addValueToArray( container(), key(), o );
 	}
 
@@ -78,12 +131,13 @@ public class PropertyArraySet<T> extends AbstractSet<T>
 
 	public boolean contains( Object o )
 	{
-		return values().contains( o );
+		return indexOf( o ) != -1;
 	}
 
 	public boolean isEmpty()
 	{
-		return values().isEmpty();
+		return sorted ? !container().hasProperty( key() ) :
+			values().isEmpty();
 	}
 
 	public Iterator<T> iterator()
@@ -107,11 +161,34 @@ public class PropertyArraySet<T> extends AbstractSet<T>
 
 	public boolean remove( Object o )
 	{
+		if ( sorted )
+		{
+			int index = indexOf( o );
+			if ( index == -1 )
+			{
+				return false;
+			}
+			setSortedArray( SortedArrays.remove( sortedArray(), index ) );
+			return true;
+		}
 		return GraphDatabaseUtil.removeValueFromArray( container(), key(), o );
 	}
 
 	public boolean retainAll( Collection<?> c )
 	{
+		if ( sorted )
+		{
+			Object array = sortedArray();
+			Object result = array == null ? null :
+				SortedArrays.retain( array, c );
+			if ( result == array )
+			{
+				return false;
+			}
+			setSortedArray( result );
+			return true;
+		}
+		
 		Collection<Object> values = values();
 		boolean altered = values.retainAll( c );
 		if ( altered )
@@ -131,6 +208,11 @@ public class PropertyArraySet<T> extends AbstractSet<T>
 
 	public int size()
 	{
+		if ( sorted )
+		{
+			Object array = sortedArray();
+			return array == null ? 0 : SortedArrays.length( array );
+		}
 		return values().size();
 	}
 
@@ -146,6 +228,7 @@ public class PropertyArraySet<T> extends AbstractSet<T>
 
 	public T set( int index, T value )
 	{
+		assertNotSorted();
 		List<Object> values = values();
 		T oldValue = ( T ) values.set( index, value );
 		setValues( values );
@@ -154,6 +237,18 @@ public class PropertyArraySet<T> extends AbstractSet<T>
 
 	public T remove( int index )
 	{
+		if ( sorted )
+		{
+			Object array = sortedArray();
+			if ( array == null )
+			{
+				throw new IndexOutOfBoundsException( "" + index );
+			}
+			T oldValue = ( T ) SortedArrays.get( array, index );
+			setSortedArray( SortedArrays.remove( array, index ) );
+			return oldValue;
+		}
+		
 		List<Object> values = values();
 		T oldValue = ( T ) values.remove( index );
 		setValues( values );
@@ -162,16 +257,28 @@ public class PropertyArraySet<T> extends AbstractSet<T>
 
 	public int lastIndexOf( Object value )
 	{
-		return values().lastIndexOf( value );
+		return sorted ? indexOf( value ) : values().lastIndexOf( value );
 	}
 
 	public int indexOf( Object value )
 	{
+		if ( sorted )
+		{
+			Object array = sortedArray();
+			int index = array == null ? -1 :
+				SortedArrays.search( array, value );
+			return index < 0 ? -1 : index;
+		}
 		return values().indexOf( value );
 	}
 
 	public boolean addAll( int index, Collection collection )
 	{
+		if ( sorted )
+		{
+			return addAll( collection );
+		}
+		
 		List<Object> values = values();
 		boolean result = values.addAll( collection );
 		if ( result )
@@ -183,6 +290,7 @@ public class PropertyArraySet<T> extends AbstractSet<T>
 
 	public void add( int index, T item )
 	{
+		assertNotSorted();
 		List<Object> values = values();
 		values.add( index, item );
 		setValues( values );
@@ -205,6 +313,24 @@ public class PropertyArraySet<T> extends AbstractSet<T>
 
 	public T get( int index )
 	{
+		if ( sorted )
+		{
+			Object array = sortedArray();
+			if ( array == null )
+			{
+				throw new IndexOutOfBoundsException( "" + index );
+			}
+			return ( T ) SortedArrays.get( array, index );
+		}
 		return ( T ) values().get( index );
 	}
+	
+	private void assertNotSorted()
+	{
+		if ( sorted )
+		{
+			throw new UnsupportedOperationException(
+				"Not supported in sorted mode" );
+		}
+	}
 }
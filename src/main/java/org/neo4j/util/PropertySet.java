@@ -19,12 +19,16 @@
  */
 package org.neo4j.util;
 
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.transaction.Synchronization;
 
 import org.neo4j.graphdb.Node;
 
@@ -43,9 +47,14 @@ public abstract class PropertySet<T> extends AbstractSet<T>
 	 */
 	public static final String DEFAULT_DELIMITER = "|";
 	
+	private static final ConcurrentMap<javax.transaction.Transaction, TxCache>
+		txCaches = new ConcurrentHashMap<javax.transaction.Transaction,
+		TxCache>();
+	
 	private final Node node;
 	private final String key;
 	private final String delimiter;
+	private final String cacheKey;
 	
 	/**
 	 * @param node the node to act as the collection.
@@ -66,33 +75,131 @@ public abstract class PropertySet<T> extends AbstractSet<T>
 	public PropertySet( Node node, String propertyKey,
 		String delimiter )
 	{
+		if ( delimiter.length() == 0 )
+		{
+			throw new IllegalArgumentException( "Empty delimiter" );
+		}
 		this.node = node;
 		this.key = propertyKey;
 		this.delimiter = delimiter;
+		this.cacheKey = node.getId() + "\u0000" + propertyKey + "\u0000" +
+			delimiter;
 	}
 	
 	protected abstract String itemToString( Object item );
 	
 	protected abstract T stringToItem( String string );
 	
+	/**
+	 * The tokens of a property are parsed once per transaction and cached
+	 * together with the value they were parsed from. A cached set is only
+	 * used if the property still has that very value, so writes which
+	 * doesn't go through a {@link PropertySet} are noticed as well.
+	 * @return the tokens of the property, which mustn't be modified.
+	 */
 	private Set<String> tokenize()
+	{
+		String value = ( String ) this.node.getProperty( this.key, null );
+		TxCache cache = getTxCache();
+		Tokens tokens = cache == null ? null : cache.tokens.get( cacheKey );
+		if ( tokens != null && tokens.value == value )
+		{
+			return tokens.set;
+		}
+		
+		Set<String> set = split( value );
+		if ( cache != null )
+		{
+			cache.tokens.put( cacheKey, new Tokens( value, set ) );
+		}
+		return set;
+	}
+	
+	/**
+	 * Splits {@code value} on the delimiter like {@link String#split(String)}
+	 * would, i.e. trailing empty tokens are ignored, but without regular
+	 * expressions.
+	 */
+	private Set<String> split( String value )
 	{
 		Set<String> set = new HashSet<String>();
-		if ( this.node.hasProperty( this.key ) )
+		if ( value == null )
 		{
-			String value = ( String ) this.node.getProperty( this.key );
-			if ( value.length() > 0 )
+			return set;
+		}
+		
+		int length = this.delimiter.length();
+		int end = value.length();
+		while ( end >= length && value.startsWith( this.delimiter,
+			end - length ) )
+		{
+			end -= length;
+		}
+		int start = 0;
+		while ( start < end )
+		{
+			int next = value.indexOf( this.delimiter, start );
+			if ( next == -1 || next >= end )
 			{
-				for ( String token :
-					value.split( Pattern.quote( this.delimiter ) ) )
-				{
-					set.add( token );
-				}
+				next = end;
 			}
+			set.add( value.substring( start, next ) );
+			start = next + length;
 		}
 		return set;
 	}
 	
+	/**
+	 * @return whether or not {@code token} is one of the tokens in
+	 * {@code value}, without allocating anything.
+	 */
+	private boolean containsToken( String value, String token )
+	{
+		int length = token.length();
+		int start = 0;
+		while ( start <= value.length() )
+		{
+			int next = value.indexOf( this.delimiter, start );
+			int end = next == -1 ? value.length() : next;
+			if ( end - start == length &&
+				value.regionMatches( start, token, 0, length ) )
+			{
+				return true;
+			}
+			if ( next == -1 )
+			{
+				break;
+			}
+			start = next + this.delimiter.length();
+		}
+		return false;
+	}
+	
+	private TxCache getTxCache()
+	{
+		try
+		{
+			javax.transaction.Transaction tx = GraphDatabaseUtil.
+				getTransactionManager( node.getGraphDatabase() ).getTransaction();
+			if ( tx == null )
+			{
+				return null;
+			}
+			TxCache cache = txCaches.get( tx );
+			if ( cache == null )
+			{
+				cache = new TxCache( tx );
+				tx.registerSynchronization( cache );
+				txCaches.put( tx, cache );
+			}
+			return cache;
+		}
+		catch ( Exception e )
+		{
+			return null;
+		}
+	}
+	
 	private String glue( Set<String> set )
 	{
 		StringBuffer buffer = new StringBuffer();
@@ -107,21 +214,27 @@ public abstract class PropertySet<T> extends AbstractSet<T>
 		return buffer.toString();
 	}
 	
-	private void store( String value, boolean changed )
+	private void store( Set<String> set, boolean changed )
 	{
 		if ( !changed )
 		{
 			return;
 		}
 		
+		String value = glue( set );
 		this.node.setProperty( this.key, value );
+		TxCache cache = getTxCache();
+		if ( cache != null )
+		{
+			cache.tokens.put( cacheKey, new Tokens( value, set ) );
+		}
 	}
 	
 	public boolean add( T item )
 	{
-		Set<String> set = tokenize();
+		Set<String> set = new HashSet<String>( tokenize() );
 		boolean changed = set.add( itemToString( item ) );
-		store( glue( set ), changed );
+		store( set, changed );
 		return changed;
 	}
 
@@ -135,7 +248,13 @@ public abstract class PropertySet<T> extends AbstractSet<T>
 
 	public boolean contains( Object item )
 	{
-		return this.tokenize().contains( itemToString( item ) );
+		String token = itemToString( item );
+		if ( token.length() > 0 && getTxCache() == null )
+		{
+			String value = ( String ) this.node.getProperty( this.key, null );
+			return value != null && containsToken( value, token );
+		}
+		return this.tokenize().contains( token );
 	}
 
 	public boolean isEmpty()
@@ -150,23 +269,28 @@ public abstract class PropertySet<T> extends AbstractSet<T>
 
 	public boolean remove( Object item )
 	{
-		Set<String> set = tokenize();
-		boolean changed = set.remove( itemToString( item ) );
-		store( glue( set ), changed );
+		return removeToken( itemToString( item ) );
+	}
+	
+	private boolean removeToken( String token )
+	{
+		Set<String> set = new HashSet<String>( tokenize() );
+		boolean changed = set.remove( token );
+		store( set, changed );
 		return changed;
 	}
 
 	public boolean retainAll( Collection<?> realItems )
 	{
-		Collection<String> items = new ArrayList<String>();
+		Collection<String> items = new HashSet<String>();
 		for ( Object item : realItems )
 		{
 			items.add( itemToString( item ) );
 		}
 		
-		Set<String> set = tokenize();
+		Set<String> set = new HashSet<String>( tokenize() );
 		boolean changed = set.retainAll( items );
-		store( glue( set ), changed );
+		store( set, changed );
 		return changed;
 	}
 
@@ -193,6 +317,7 @@ public abstract class PropertySet<T> extends AbstractSet<T>
 	private class ItemIterator implements Iterator<T>
 	{
 		private Iterator<String> iterator;
+		private String last;
 		
 		ItemIterator( Iterator<String> iterator )
 		{
@@ -206,12 +331,55 @@ public abstract class PropertySet<T> extends AbstractSet<T>
 
 		public T next()
 		{
-			return stringToItem( iterator.next() );
+			last = iterator.next();
+			return stringToItem( last );
 		}
 
 		public void remove()
 		{
-			this.iterator.remove();
+			if ( last == null )
+			{
+				throw new IllegalStateException();
+			}
+			removeToken( last );
+			last = null;
+		}
+	}
+	
+	private static class Tokens
+	{
+		private final String value;
+		private final Set<String> set;
+		
+		Tokens( String value, Set<String> set )
+		{
+			this.value = value;
+			this.set = set;
+		}
+	}
+	
+	/**
+	 * The parsed properties of one transaction, removed when the
+	 * transaction completes. A transaction is only used by one thread.
+	 */
+	private static class TxCache implements Synchronization
+	{
+		private final javax.transaction.Transaction tx;
+		private final Map<String, Tokens> tokens =
+			new HashMap<String, Tokens>();
+		
+		TxCache( javax.transaction.Transaction tx )
+		{
+			this.tx = tx;
+		}
+		
+		public void beforeCompletion()
+		{
+		}
+
+		public void afterCompletion( int status )
+		{
+			txCaches.remove( tx );
 		}
 	}
 }
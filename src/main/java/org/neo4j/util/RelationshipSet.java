@@ -21,7 +21,6 @@ package org.neo4j.util;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -100,20 +99,210 @@ public abstract class RelationshipSet<T> extends AbstractSet<T>
 		return getDirection() == Direction.OUTGOING;
 	}
 	
+	/**
+	 * Creates a persistent membership index for this set, if it doesn't
+	 * already have one, and adds the current members to it. With the index
+	 * {@link #contains(Object)}, {@link #add(Object)} and
+	 * {@link #remove(Object)} doesn't have to iterate the relationships of
+	 * the member node, which is good for members in many sets. The index
+	 * is only kept up to date if members are added and removed through
+	 * sets of this class.
+	 * @param numberOfBuckets the number of hash buckets in the index. Each
+	 * bucket node keeps the keys of its members in a sorted array, which is
+	 * binary searched on lookups and rewritten when members are added or
+	 * removed, so more buckets means smaller arrays to rewrite.
+	 */
+	public void enableMembershipIndex( int numberOfBuckets )
+	{
+		GraphDatabaseUtil.acquireWriteLock( node );
+		if ( getMembershipIndex() != null )
+		{
+			return;
+		}
+		
+		MembershipIndex index = MembershipIndex.create( node, type,
+			direction, numberOfBuckets );
+		Iterator<Relationship> itr = getAllRelationships();
+		while ( itr.hasNext() )
+		{
+			Relationship rel = itr.next();
+			index.put( getMemberKey( rel ), rel );
+		}
+	}
+	
+	/**
+	 * Creates a membership index with the default number of buckets.
+	 * @see #enableMembershipIndex(int)
+	 */
+	public void enableMembershipIndex()
+	{
+		enableMembershipIndex( MembershipIndex.DEFAULT_NUMBER_OF_BUCKETS );
+	}
+	
+	/**
+	 * Deletes the membership index of this set, if it has one.
+	 */
+	public void disableMembershipIndex()
+	{
+		GraphDatabaseUtil.acquireWriteLock( node );
+		MembershipIndex.delete( node, type, direction );
+	}
+	
+	/**
+	 * @return whether or not this set has a membership index.
+	 */
+	public boolean hasMembershipIndex()
+	{
+		return getMembershipIndex() != null;
+	}
+	
+	private MembershipIndex getMembershipIndex()
+	{
+		return MembershipIndex.find( node, type, direction );
+	}
+	
+	/**
+	 * Returns the key of {@code item} in the membership index, by default
+	 * the id of its node. Must be equal to {@link #getMemberKey(Relationship)}
+	 * for the relationship of the same item and be a {@link Long} or a
+	 * {@link String}.
+	 * @param item the item to get the key for.
+	 * @return the key of {@code item} in the membership index.
+	 */
+	protected Object getItemKey( Object item )
+	{
+		return getNodeFromItem( item ).getId();
+	}
+	
+	/**
+	 * @param relationship the relationship of a member in this set.
+	 * @return the key of the member in the membership index.
+	 * @see #getItemKey(Object)
+	 */
+	protected Object getMemberKey( Relationship relationship )
+	{
+		return getOtherNode( relationship ).getId();
+	}
+	
+	private String sizeKey()
+	{
+		return "set_size_" + type.name() + "_" + direction.name();
+	}
+	
+	/**
+	 * Makes this set keep its size in a property on the collection node, so
+	 * that {@link #size()} and {@link #isEmpty()} doesn't have to iterate
+	 * all relationships. The count is only kept up to date if members are
+	 * added and removed through sets of this class.
+	 */
+	public void enableCountedSize()
+	{
+		GraphDatabaseUtil.acquireWriteLock( node );
+		if ( !hasCountedSize() )
+		{
+			node.setProperty( sizeKey(), countRelationships() );
+		}
+	}
+	
+	/**
+	 * Removes the size property of this set, if it has one.
+	 */
+	public void disableCountedSize()
+	{
+		GraphDatabaseUtil.acquireWriteLock( node );
+		node.removeProperty( sizeKey() );
+	}
+	
+	private void adjustSize( int delta )
+	{
+		GraphDatabaseUtil.acquireWriteLock( node );
+		int size = ( Integer ) node.getProperty( sizeKey() ) + delta;
+		node.setProperty( sizeKey(), Math.max( size, 0 ) );
+	}
+	
+	/**
+	 * @return whether or not this set keeps its size in a property.
+	 */
+	public boolean hasCountedSize()
+	{
+		return node.hasProperty( sizeKey() );
+	}
+	
 	public boolean add( T item )
 	{
+		MembershipIndex index = getMembershipIndex();
+		if ( index != null )
+		{
+			index.lock( getItemKey( item ) );
+		}
 		if ( contains( item ) )
 		{
 			return false;
 		}
 		
-		Node otherNode = getNodeFromItem( item );
+		createMember( item, getNodeFromItem( item ) );
+		return true;
+	}
+	
+	/**
+	 * Adds {@code otherNode} to this set without checking if it's already
+	 * a member.
+	 * @param item the item which {@code otherNode} represents.
+	 * @param otherNode the node to add.
+	 * @return the created relationship.
+	 */
+	protected Relationship createMember( T item, Node otherNode )
+	{
+		MembershipIndex index = getMembershipIndex();
 		Node startNode = directionIsOut() ? node : otherNode;
 		Node endNode = directionIsOut() ? otherNode : node;
 		Relationship relationship =
 			startNode.createRelationshipTo( endNode, type );
+		if ( index != null )
+		{
+			index.put( getMemberKey( relationship ), relationship );
+		}
+		if ( hasCountedSize() )
+		{
+			adjustSize( 1 );
+		}
 		itemAdded( item, relationship );
-		return true;
+		return relationship;
+	}
+	
+	/**
+	 * Adds all {@code items} in one pass over the current members, instead
+	 * of one {@link #contains(Object)} per item. If this set has a
+	 * membership index the items are added one at a time, since that's
+	 * cheaper then.
+	 */
+	@Override
+	public boolean addAll( Collection<? extends T> items )
+	{
+		if ( getMembershipIndex() != null )
+		{
+			return super.addAll( items );
+		}
+		
+		GraphDatabaseUtil.acquireWriteLock( node );
+		LongHashSet memberIds = new LongHashSet();
+		Iterator<Relationship> itr = getAllRelationships();
+		while ( itr.hasNext() )
+		{
+			memberIds.add( getOtherNode( itr.next() ).getId() );
+		}
+		
+		boolean changed = false;
+		for ( T item : items )
+		{
+			Node otherNode = getNodeFromItem( item );
+			if ( memberIds.add( otherNode.getId() ) )
+			{
+				createMember( item, otherNode );
+				changed = true;
+			}
+		}
+		return changed;
 	}
 	
 	protected void itemAdded( T item, Relationship relationship )
@@ -155,6 +344,14 @@ public abstract class RelationshipSet<T> extends AbstractSet<T>
 	
 	protected Relationship findRelationship( Object item )
 	{
+		MembershipIndex index = getMembershipIndex();
+		if ( index != null )
+		{
+			Relationship rel = index.get( getItemKey( item ) );
+			return rel != null && shouldIncludeRelationship( rel ) ?
+				rel : null;
+		}
+		
 		Node otherNode = getNodeFromItem( item );
 		Relationship result = null;
 		for ( Relationship rel : otherNode.getRelationships(
@@ -176,7 +373,8 @@ public abstract class RelationshipSet<T> extends AbstractSet<T>
 
 	public boolean isEmpty()
 	{
-	    return !getAllRelationships().hasNext();
+		Integer size = ( Integer ) node.getProperty( sizeKey(), null );
+		return size != null ? size == 0 : !getAllRelationships().hasNext();
 	}
 
 	public Iterator<T> iterator()
@@ -196,6 +394,15 @@ public abstract class RelationshipSet<T> extends AbstractSet<T>
 	
 	protected void removeItem( Relationship rel )
 	{
+		MembershipIndex index = getMembershipIndex();
+		if ( index != null )
+		{
+			index.remove( getMemberKey( rel ) );
+		}
+		if ( hasCountedSize() )
+		{
+			adjustSize( -1 );
+		}
 		rel.delete();
 	}
 
@@ -211,36 +418,67 @@ public abstract class RelationshipSet<T> extends AbstractSet<T>
 		return changed;
 	}
 
+	/**
+	 * Removes all {@code items} in one pass over the current members,
+	 * instead of one {@link #findRelationship(Object)} per item. If this
+	 * set has a membership index the items are removed one at a time,
+	 * since that's cheaper then.
+	 */
+	@Override
+	public boolean removeAll( Collection<?> items )
+	{
+		if ( getMembershipIndex() != null )
+		{
+			return super.removeAll( items );
+		}
+		return removeMembers( getNodeIds( items ), true );
+	}
+
 	public boolean retainAll( Collection<?> items )
 	{
-	    Collection<Relationship> relationships =
-	        new HashSet<Relationship>();
-	    Iterator<Relationship> allRelationships = getAllRelationships();
-	    while ( allRelationships.hasNext() )
-	    {
-	        relationships.add( allRelationships.next() );
-	    }
-	    
+		return removeMembers( getNodeIds( items ), false );
+	}
+	
+	private LongHashSet getNodeIds( Collection<?> items )
+	{
+		LongHashSet ids = new LongHashSet( items.size() );
 		for ( Object item : items )
 		{
-			Relationship rel = findRelationship( item );
-			if ( rel != null )
+			ids.add( getNodeFromItem( item ).getId() );
+		}
+		return ids;
+	}
+	
+	/**
+	 * Removes the members which are ({@code inIds == true}) or aren't in
+	 * {@code ids}.
+	 */
+	private boolean removeMembers( LongHashSet ids, boolean inIds )
+	{
+		Collection<Relationship> toRemove = new ArrayList<Relationship>();
+		Iterator<Relationship> itr = getAllRelationships();
+		while ( itr.hasNext() )
+		{
+			Relationship rel = itr.next();
+			if ( ids.contains( getOtherNode( rel ).getId() ) == inIds )
 			{
-			    relationships.remove( rel );
+				toRemove.add( rel );
 			}
 		}
-	    
-		Collection<T> itemsToRemove = new HashSet<T>();
-		for ( Relationship rel : relationships )
+		for ( Relationship rel : toRemove )
 		{
-		    itemsToRemove.add( newObject( getOtherNode( rel ), rel ) );
+			removeItem( rel );
 		}
-		
-		boolean result = this.removeAll( itemsToRemove );
-		return result;
+		return !toRemove.isEmpty();
 	}
 
 	public int size()
+	{
+		Integer size = ( Integer ) node.getProperty( sizeKey(), null );
+		return size != null ? size : countRelationships();
+	}
+	
+	private int countRelationships()
 	{
 		int counter = 0;
 		Iterator<Relationship> itr = getAllRelationships();
@@ -280,13 +518,7 @@ public abstract class RelationshipSet<T> extends AbstractSet<T>
 			Relationship rel = itr.next();
 			result.add( ( R ) newObject( getOtherNode( rel ), rel ) );
 		}
-		
-		int i = 0;
-		for ( R item : result )
-		{
-			array[ i++ ] = item;
-		}
-		return array;
+		return result.toArray( array );
 	}
 	
 	protected <R> Collection<R> newArrayCollection()
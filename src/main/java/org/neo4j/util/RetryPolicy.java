@@ -0,0 +1,36 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+/**
+ * Decides if and when an entry which failed to be handled by a queue worker
+ * should be tried again, see {@link RetryQueue}.
+ */
+public interface RetryPolicy
+{
+	/**
+	 * @param failedAttempts the number of times the entry has failed so far,
+	 * at least {@code 1}.
+	 * @param exception the exception from the last attempt.
+	 * @return the number of milliseconds to wait before trying the entry
+	 * again, or a negative value if the entry should be given up on.
+	 */
+	long getRetryDelay( int failedAttempts, Exception exception );
+}
@@ -0,0 +1,386 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * Keeps entries which failed to be handled by a queue worker out of the
+ * way of the other entries. Failed entries are put in a retry queue,
+ * together with the time they should be tried again as decided by a
+ * {@link RetryPolicy}. Entries which the policy gives up on can be put in
+ * a dead letter queue, where they are kept for inspection.
+ * 
+ * The dead letter queue is a {@link NodeQueue}. The retry queue is kept
+ * ordered by the time the entries should be tried again, in a
+ * {@link KeyTree}, so that an entry with a long delay doesn't hold back
+ * the ones after it. Both have root nodes connected to the given root
+ * node. All methods must be called within a transaction.
+ * 
+ * If an ordering key is given, entries with the same value for that key
+ * are kept in order: while an entry is waiting to be retried, later
+ * entries with the same value are parked behind it, see
+ * {@link #park(Map)}. When it has been handled or given up on, see
+ * {@link #release(Map)}, the first parked entry is due to be tried.
+ */
+public class RetryQueue
+{
+	public static enum RetryRelTypes implements RelationshipType
+	{
+		RETRY_QUEUE,
+		DEAD_LETTER_QUEUE,
+		QUEUE_ENTRY,
+		BLOCKED_KEY,
+	}
+	
+	private static final String KEY_FAILED_ATTEMPTS = "___failed_attempts___";
+	private static final String KEY_RETRY_AT = "___retry_at___";
+	private static final String KEY_ERROR = "___error___";
+	private static final String KEY_BLOCKED_VALUE = "___blocked_value___";
+	
+	private final Node rootNode;
+	private final RetryPolicy policy;
+	private final String orderingKey;
+	
+	/**
+	 * @param rootNode the node to connect the retry queue and dead letter
+	 * queue to.
+	 * @param policy the {@link RetryPolicy} which decides when to retry.
+	 */
+	public RetryQueue( Node rootNode, RetryPolicy policy )
+	{
+		this( rootNode, policy, null );
+	}
+	
+	/**
+	 * @param rootNode the node to connect the retry queue and dead letter
+	 * queue to.
+	 * @param policy the {@link RetryPolicy} which decides when to retry.
+	 * @param orderingKeyOrNull the entry key which decides the order
+	 * entries must be handled in, may be {@code null}.
+	 */
+	public RetryQueue( Node rootNode, RetryPolicy policy,
+		String orderingKeyOrNull )
+	{
+		this.rootNode = rootNode;
+		this.policy = policy;
+		this.orderingKey = orderingKeyOrNull;
+	}
+	
+	public RetryPolicy getPolicy()
+	{
+		return this.policy;
+	}
+	
+	private Node getQueueRootNode( RelationshipType type, boolean allowCreate )
+	{
+		return allowCreate ?
+			GraphDatabaseUtil.getOrCreateSingleOtherNode( rootNode, type,
+				Direction.OUTGOING ) :
+			GraphDatabaseUtil.getSingleOtherNode( rootNode, type,
+				Direction.OUTGOING );
+	}
+	
+	private NodeQueue getQueue( RelationshipType type, boolean allowCreate )
+	{
+		Node queueRootNode = getQueueRootNode( type, allowCreate );
+		return queueRootNode == null ? null :
+			new NodeQueue( queueRootNode, RetryRelTypes.QUEUE_ENTRY );
+	}
+	
+	/**
+	 * Puts a failed entry in the retry queue, if the {@link RetryPolicy}
+	 * says it should be retried.
+	 * @param values the values of the entry.
+	 * @param failedAttempts the number of times the entry has failed,
+	 * including this time.
+	 * @param exception the exception from this attempt.
+	 * @return {@code true} if the entry will be retried, {@code false} if
+	 * the policy gave up on it.
+	 */
+	public boolean failed( Map<String, Object> values, int failedAttempts,
+		Exception exception )
+	{
+		long delay = policy.getRetryDelay( failedAttempts, exception );
+		if ( delay < 0 )
+		{
+			return false;
+		}
+		
+		Node queueRootNode = schedule( values, failedAttempts,
+			System.currentTimeMillis() + delay );
+		Object value = getOrderingValue( values );
+		if ( value != null && getKeyNode( value ) == null )
+		{
+			Node keyNode = rootNode.getGraphDatabase().createNode();
+			keyNode.setProperty( KEY_BLOCKED_VALUE, value );
+			queueRootNode.createRelationshipTo( keyNode,
+				RetryRelTypes.BLOCKED_KEY );
+		}
+		return true;
+	}
+	
+	private Node schedule( Map<String, Object> values, int failedAttempts,
+		long retryAt )
+	{
+		Node queueRootNode =
+			getQueueRootNode( RetryRelTypes.RETRY_QUEUE, true );
+		Node node = rootNode.getGraphDatabase().createNode();
+		queueRootNode.createRelationshipTo( node, RetryRelTypes.QUEUE_ENTRY );
+		setValues( node, values );
+		node.setProperty( KEY_FAILED_ATTEMPTS, failedAttempts );
+		node.setProperty( KEY_RETRY_AT, retryAt );
+		new KeyTree( queueRootNode ).add( retryAt, node.getId() );
+		return queueRootNode;
+	}
+	
+	private Object getOrderingValue( Map<String, Object> values )
+	{
+		return orderingKey != null ? values.get( orderingKey ) : null;
+	}
+	
+	/**
+	 * The node which marks that an entry with the given ordering value is
+	 * waiting to be retried, it's also the root of the queue where later
+	 * entries with that value are parked.
+	 */
+	private Node getKeyNode( Object value )
+	{
+		Node queueRootNode =
+			getQueueRootNode( RetryRelTypes.RETRY_QUEUE, false );
+		if ( queueRootNode == null )
+		{
+			return null;
+		}
+		for ( Relationship rel : queueRootNode.getRelationships(
+			RetryRelTypes.BLOCKED_KEY, Direction.OUTGOING ) )
+		{
+			Node keyNode = rel.getEndNode();
+			if ( value.equals( keyNode.getProperty( KEY_BLOCKED_VALUE ) ) )
+			{
+				return keyNode;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Parks an entry behind an earlier entry with the same ordering value,
+	 * if such an entry is waiting to be retried. A parked entry must not be
+	 * handled now, it will be due to be tried when the entries before it
+	 * have been released, see {@link #release(Map)}.
+	 * @param values the values of the entry.
+	 * @return {@code true} if the entry was parked, {@code false} if it
+	 * can be handled now.
+	 */
+	public boolean park( Map<String, Object> values )
+	{
+		Object value = getOrderingValue( values );
+		Node keyNode = value != null ? getKeyNode( value ) : null;
+		if ( keyNode == null )
+		{
+			return false;
+		}
+		Node node = new NodeQueue( keyNode, RetryRelTypes.QUEUE_ENTRY ).add();
+		setValues( node, values );
+		return true;
+	}
+	
+	/**
+	 * Should be called when an entry from the retry queue has been handled,
+	 * or when an entry has been given up on, so that the first entry parked
+	 * behind it, if any, is due to be tried.
+	 * @param values the values of the entry.
+	 */
+	public void release( Map<String, Object> values )
+	{
+		Object value = getOrderingValue( values );
+		Node keyNode = value != null ? getKeyNode( value ) : null;
+		if ( keyNode == null )
+		{
+			return;
+		}
+		NodeQueue parked = new NodeQueue( keyNode, RetryRelTypes.QUEUE_ENTRY );
+		Node next = parked.peek();
+		if ( next == null )
+		{
+			keyNode.getSingleRelationship( RetryRelTypes.BLOCKED_KEY,
+				Direction.INCOMING ).delete();
+			keyNode.delete();
+			return;
+		}
+		// It's still blocked, now by the entry which was parked first
+		schedule( readValues( next ), 0, System.currentTimeMillis() );
+		parked.remove();
+	}
+	
+	/**
+	 * Puts an entry which has been given up on in the dead letter queue.
+	 * @param values the values of the entry.
+	 * @param exceptionOrNull the exception from the last attempt, its
+	 * string representation is stored with the entry.
+	 */
+	public void addDeadLetter( Map<String, Object> values,
+		Exception exceptionOrNull )
+	{
+		Node node = add( RetryRelTypes.DEAD_LETTER_QUEUE, values );
+		if ( exceptionOrNull != null )
+		{
+			node.setProperty( KEY_ERROR, exceptionOrNull.toString() );
+		}
+	}
+	
+	private Node add( RelationshipType type, Map<String, Object> values )
+	{
+		Node node = getQueue( type, true ).add();
+		setValues( node, values );
+		return node;
+	}
+	
+	private void setValues( Node node, Map<String, Object> values )
+	{
+		for ( Map.Entry<String, Object> value : values.entrySet() )
+		{
+			node.setProperty( value.getKey(), value.getValue() );
+		}
+	}
+	
+	/**
+	 * Returns the entries in the retry queue which are due to be tried
+	 * again, the ones which have been due the longest first. Those entries
+	 * should be removed with {@link #remove(List)} when they have been
+	 * tried. An entry which had been parked has {@code 0} failed attempts.
+	 * @param max the max number of entries to return.
+	 * @return the due entries, ordered by when they were due.
+	 */
+	public List<Entry> peekDue( int max )
+	{
+		List<Entry> result = new ArrayList<Entry>();
+		Node queueRootNode =
+			getQueueRootNode( RetryRelTypes.RETRY_QUEUE, false );
+		if ( queueRootNode == null )
+		{
+			return result;
+		}
+		
+		Iterator<Long> ids = new KeyTree( queueRootNode ).iterator( null, 0,
+			System.currentTimeMillis(), Long.MAX_VALUE, false );
+		while ( result.size() < max && ids.hasNext() )
+		{
+			Node node = rootNode.getGraphDatabase().getNodeById( ids.next() );
+			result.add( new Entry( node.getId(),
+				( Long ) node.getProperty( KEY_RETRY_AT ), readValues( node ),
+				( Integer ) node.getProperty( KEY_FAILED_ATTEMPTS ) ) );
+		}
+		return result;
+	}
+	
+	private Map<String, Object> readValues( Node node )
+	{
+		Map<String, Object> result = new HashMap<String, Object>();
+		for ( String key : node.getPropertyKeys() )
+		{
+			if ( !key.equals( KEY_FAILED_ATTEMPTS ) &&
+				!key.equals( KEY_RETRY_AT ) )
+			{
+				result.put( key, node.getProperty( key ) );
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Removes entries, returned from {@link #peekDue(int)}, from the retry
+	 * queue.
+	 * @param entries the entries to remove.
+	 */
+	public void remove( List<Entry> entries )
+	{
+		Node queueRootNode =
+			getQueueRootNode( RetryRelTypes.RETRY_QUEUE, false );
+		if ( queueRootNode == null )
+		{
+			return;
+		}
+		
+		KeyTree tree = new KeyTree( queueRootNode );
+		for ( Entry entry : entries )
+		{
+			if ( tree.remove( entry.retryAt, entry.nodeId ) )
+			{
+				Node node = rootNode.getGraphDatabase().getNodeById(
+					entry.nodeId );
+				for ( Relationship rel : node.getRelationships() )
+				{
+					rel.delete();
+				}
+				node.delete();
+			}
+		}
+	}
+	
+	/**
+	 * @return the dead letter queue, or {@code null} if no entry has been
+	 * given up on yet.
+	 */
+	public NodeQueue getDeadLetterQueue()
+	{
+		return getQueue( RetryRelTypes.DEAD_LETTER_QUEUE, false );
+	}
+	
+	/**
+	 * An entry from the retry queue.
+	 */
+	public static class Entry
+	{
+		private final long nodeId;
+		private final long retryAt;
+		private final Map<String, Object> values;
+		private final int failedAttempts;
+		
+		Entry( long nodeId, long retryAt, Map<String, Object> values,
+			int failedAttempts )
+		{
+			this.nodeId = nodeId;
+			this.retryAt = retryAt;
+			this.values = values;
+			this.failedAttempts = failedAttempts;
+		}
+		
+		public Map<String, Object> getValues()
+		{
+			return this.values;
+		}
+		
+		public int getFailedAttempts()
+		{
+			return this.failedAttempts;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * A counter spread over a number of shard nodes, so that concurrent
+ * transactions incrementing it doesn't wait for each other. Neo4j locks
+ * whole nodes, so each shard is a node of its own. Increments goes to the
+ * shard of the current thread and reads sums all shards.
+ * 
+ * [Node] -- COUNTER_SHARD --> [ShardNode]
+ * 
+ * The ids of the shard nodes are kept in a property on the counter node.
+ * Use a {@link CounterAggregator} to also batch increments in memory.
+ */
+public class ShardedCounter
+{
+	static enum CounterRelTypes implements RelationshipType
+	{
+		COUNTER_SHARD,
+	}
+	
+	/**
+	 * The default number of shards.
+	 */
+	public static final int DEFAULT_NUMBER_OF_SHARDS = 16;
+	
+	private static final String KEY_SHARDS_PREFIX = "counter_shards_";
+	private static final String KEY_VALUE = "counter_value";
+	
+	private final Node node;
+	private final String shardsKey;
+	private final int numberOfShards;
+	
+	/**
+	 * @param node the node to hold the counter.
+	 * @param name the name of the counter, unique for {@code node}.
+	 * @param numberOfShards the number of shards to spread increments over,
+	 * only used when the counter is created.
+	 */
+	public ShardedCounter( Node node, String name, int numberOfShards )
+	{
+		if ( numberOfShards < 1 )
+		{
+			throw new IllegalArgumentException( "Invalid number of shards " +
+				numberOfShards );
+		}
+		this.node = node;
+		this.shardsKey = KEY_SHARDS_PREFIX + name;
+		this.numberOfShards = numberOfShards;
+	}
+	
+	/**
+	 * @param node the node to hold the counter.
+	 * @param name the name of the counter, unique for {@code node}.
+	 */
+	public ShardedCounter( Node node, String name )
+	{
+		this( node, name, DEFAULT_NUMBER_OF_SHARDS );
+	}
+	
+	private long[] getShardIds( boolean allowCreate )
+	{
+		long[] ids = ( long[] ) node.getProperty( shardsKey, null );
+		if ( ids == null && allowCreate )
+		{
+			GraphDatabaseUtil.acquireWriteLock( node );
+			ids = ( long[] ) node.getProperty( shardsKey, null );
+			if ( ids == null )
+			{
+				ids = new long[ numberOfShards ];
+				for ( int i = 0; i < ids.length; i++ )
+				{
+					Node shard = node.getGraphDatabase().createNode();
+					node.createRelationshipTo( shard,
+						CounterRelTypes.COUNTER_SHARD );
+					ids[ i ] = shard.getId();
+				}
+				node.setProperty( shardsKey, ids );
+			}
+		}
+		return ids;
+	}
+	
+	/**
+	 * Adds {@code delta} to the shard of the current thread. Must be called
+	 * in a transaction.
+	 * @param delta the value to add, may be negative.
+	 */
+	public void add( long delta )
+	{
+		long[] ids = getShardIds( true );
+		int index = ( int ) ( Thread.currentThread().getId() % ids.length );
+		Node shard = node.getGraphDatabase().getNodeById( ids[ index ] );
+		GraphDatabaseUtil.acquireWriteLock( shard );
+		shard.setProperty( KEY_VALUE,
+			( Long ) shard.getProperty( KEY_VALUE, 0L ) + delta );
+	}
+	
+	public void increment()
+	{
+		add( 1 );
+	}
+	
+	public void decrement()
+	{
+		add( -1 );
+	}
+	
+	/**
+	 * Sums the shards without locking them, so increments by concurrent
+	 * transactions may or may not be included.
+	 * @return the value of the counter.
+	 */
+	public long get()
+	{
+		long[] ids = getShardIds( false );
+		if ( ids == null )
+		{
+			return 0;
+		}
+		long sum = 0;
+		for ( long id : ids )
+		{
+			sum += ( Long ) node.getGraphDatabase().getNodeById(
+				id ).getProperty( KEY_VALUE, 0L );
+		}
+		return sum;
+	}
+}
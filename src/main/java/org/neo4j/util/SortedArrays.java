@@ -0,0 +1,334 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Operations on sorted property arrays, i.e. arrays of primitives or
+ * strings in ascending order, without going through
+ * {@link java.lang.reflect.Array} or boxing the whole array. Membership is
+ * checked with {@link Arrays#binarySearch(long[], long)} and the like, and
+ * inserting or removing a value copies the array once.
+ */
+class SortedArrays
+{
+	private SortedArrays()
+	{
+	}
+	
+	/**
+	 * @param value the value to store in an array.
+	 * @return an array of the primitive type of {@code value}, or a
+	 * {@link String} array, containing only {@code value}.
+	 */
+	static Object singleton( Object value )
+	{
+		Object array = newArray( value, 1 );
+		set( array, 0, value );
+		return array;
+	}
+	
+	/**
+	 * @param propertyValue a property value, an array or a single value.
+	 * @return {@code propertyValue} as an array.
+	 */
+	static Object asArray( Object propertyValue )
+	{
+		return propertyValue.getClass().isArray() ? propertyValue :
+			singleton( propertyValue );
+	}
+	
+	/**
+	 * @param template an array, or a value, of the wanted type.
+	 * @param length the length of the new array.
+	 * @return a new array of the same type as {@code template}.
+	 */
+	static Object newArray( Object template, int length )
+	{
+		if ( template instanceof long[] || template instanceof Long )
+		{
+			return new long[ length ];
+		}
+		else if ( template instanceof int[] || template instanceof Integer )
+		{
+			return new int[ length ];
+		}
+		else if ( template instanceof short[] || template instanceof Short )
+		{
+			return new short[ length ];
+		}
+		else if ( template instanceof byte[] || template instanceof Byte )
+		{
+			return new byte[ length ];
+		}
+		else if ( template instanceof char[] ||
+			template instanceof Character )
+		{
+			return new char[ length ];
+		}
+		else if ( template instanceof double[] ||
+			template instanceof Double )
+		{
+			return new double[ length ];
+		}
+		else if ( template instanceof float[] || template instanceof Float )
+		{
+			return new float[ length ];
+		}
+		else if ( template instanceof String[] || template instanceof String )
+		{
+			return new String[ length ];
+		}
+		throw new IllegalArgumentException( "Unsortable type " +
+			template.getClass() );
+	}
+	
+	static int length( Object array )
+	{
+		if ( array instanceof long[] )
+		{
+			return ( ( long[] ) array ).length;
+		}
+		else if ( array instanceof int[] )
+		{
+			return ( ( int[] ) array ).length;
+		}
+		else if ( array instanceof short[] )
+		{
+			return ( ( short[] ) array ).length;
+		}
+		else if ( array instanceof byte[] )
+		{
+			return ( ( byte[] ) array ).length;
+		}
+		else if ( array instanceof char[] )
+		{
+			return ( ( char[] ) array ).length;
+		}
+		else if ( array instanceof double[] )
+		{
+			return ( ( double[] ) array ).length;
+		}
+		else if ( array instanceof float[] )
+		{
+			return ( ( float[] ) array ).length;
+		}
+		return ( ( Object[] ) array ).length;
+	}
+	
+	static Object get( Object array, int index )
+	{
+		if ( array instanceof long[] )
+		{
+			return ( ( long[] ) array )[ index ];
+		}
+		else if ( array instanceof int[] )
+		{
+			return ( ( int[] ) array )[ index ];
+		}
+		else if ( array instanceof short[] )
+		{
+			return ( ( short[] ) array )[ index ];
+		}
+		else if ( array instanceof byte[] )
+		{
+			return ( ( byte[] ) array )[ index ];
+		}
+		else if ( array instanceof char[] )
+		{
+			return ( ( char[] ) array )[ index ];
+		}
+		else if ( array instanceof double[] )
+		{
+			return ( ( double[] ) array )[ index ];
+		}
+		else if ( array instanceof float[] )
+		{
+			return ( ( float[] ) array )[ index ];
+		}
+		return ( ( Object[] ) array )[ index ];
+	}
+	
+	/**
+	 * Sets the value at {@code index}, unboxing it for primitive arrays.
+	 */
+	static void set( Object array, int index, Object value )
+	{
+		if ( array instanceof long[] )
+		{
+			( ( long[] ) array )[ index ] = ( Long ) value;
+		}
+		else if ( array instanceof int[] )
+		{
+			( ( int[] ) array )[ index ] = ( Integer ) value;
+		}
+		else if ( array instanceof short[] )
+		{
+			( ( short[] ) array )[ index ] = ( Short ) value;
+		}
+		else if ( array instanceof byte[] )
+		{
+			( ( byte[] ) array )[ index ] = ( Byte ) value;
+		}
+		else if ( array instanceof char[] )
+		{
+			( ( char[] ) array )[ index ] = ( Character ) value;
+		}
+		else if ( array instanceof double[] )
+		{
+			( ( double[] ) array )[ index ] = ( Double ) value;
+		}
+		else if ( array instanceof float[] )
+		{
+			( ( float[] ) array )[ index ] = ( Float ) value;
+		}
+		else
+		{
+			( ( String[] ) array )[ index ] = ( String ) value;
+		}
+	}
+	
+	/**
+	 * @param array the sorted array to search.
+	 * @param value the value to search for.
+	 * @return the index of {@code value}, or {@code -(insertion point) - 1}
+	 * if it isn't in the array, like {@link Arrays#binarySearch(long[], long)}.
+	 * If {@code value} is of another type than the array it's regarded as
+	 * not in the array, with insertion point {@code 0}.
+	 */
+	static int search( Object array, Object value )
+	{
+		if ( array instanceof long[] && value instanceof Long )
+		{
+			return Arrays.binarySearch( ( long[] ) array, ( Long ) value );
+		}
+		else if ( array instanceof int[] && value instanceof Integer )
+		{
+			return Arrays.binarySearch( ( int[] ) array, ( Integer ) value );
+		}
+		else if ( array instanceof short[] && value instanceof Short )
+		{
+			return Arrays.binarySearch( ( short[] ) array, ( Short ) value );
+		}
+		else if ( array instanceof byte[] && value instanceof Byte )
+		{
+			return Arrays.binarySearch( ( byte[] ) array, ( Byte ) value );
+		}
+		else if ( array instanceof char[] && value instanceof Character )
+		{
+			return Arrays.binarySearch( ( char[] ) array,
+				( Character ) value );
+		}
+		else if ( array instanceof double[] && value instanceof Double )
+		{
+			return Arrays.binarySearch( ( double[] ) array, ( Double ) value );
+		}
+		else if ( array instanceof float[] && value instanceof Float )
+		{
+			return Arrays.binarySearch( ( float[] ) array, ( Float ) value );
+		}
+		else if ( array instanceof String[] && value instanceof String )
+		{
+			return Arrays.binarySearch( ( String[] ) array, value );
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param array the sorted array.
+	 * @param insertionPoint the index to insert {@code value} at, see
+	 * {@link #search(Object, Object)}.
+	 * @param value the value to insert.
+	 * @return a new array with {@code value} inserted.
+	 */
+	static Object insert( Object array, int insertionPoint, Object value )
+	{
+		int length = length( array );
+		Object result = newArray( array, length + 1 );
+		System.arraycopy( array, 0, result, 0, insertionPoint );
+		System.arraycopy( array, insertionPoint, result, insertionPoint + 1,
+			length - insertionPoint );
+		set( result, insertionPoint, value );
+		return result;
+	}
+	
+	/**
+	 * @param array the array.
+	 * @param index the index of the value to remove.
+	 * @return a new array without the value at {@code index}.
+	 */
+	static Object remove( Object array, int index )
+	{
+		int length = length( array );
+		Object result = newArray( array, length - 1 );
+		System.arraycopy( array, 0, result, 0, index );
+		System.arraycopy( array, index + 1, result, index,
+			length - index - 1 );
+		return result;
+	}
+	
+	/**
+	 * @param array the array.
+	 * @param from the first index to copy.
+	 * @param to the index after the last one to copy.
+	 * @return a new array with the values from {@code from} to {@code to}.
+	 */
+	static Object copyOfRange( Object array, int from, int to )
+	{
+		Object result = newArray( array, to - from );
+		System.arraycopy( array, from, result, 0, to - from );
+		return result;
+	}
+	
+	/**
+	 * @param array the array.
+	 * @param values the values to keep.
+	 * @return a new array with only the values in {@code values}, or
+	 * {@code array} itself if all of them are in {@code values}.
+	 */
+	static Object retain( Object array, Collection<?> values )
+	{
+		int length = length( array );
+		boolean[] keep = new boolean[ length ];
+		int kept = 0;
+		for ( int i = 0; i < length; i++ )
+		{
+			keep[ i ] = values.contains( get( array, i ) );
+			kept += keep[ i ] ? 1 : 0;
+		}
+		if ( kept == length )
+		{
+			return array;
+		}
+		
+		Object result = newArray( array, kept );
+		int target = 0;
+		for ( int i = 0; i < length; i++ )
+		{
+			if ( keep[ i ] )
+			{
+				System.arraycopy( array, i, result, target++, 1 );
+			}
+		}
+		return result;
+	}
+}
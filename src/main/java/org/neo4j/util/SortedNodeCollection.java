@@ -23,21 +23,42 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.helpers.collection.IterableWrapper;
+import org.neo4j.helpers.collection.IteratorWrapper;
 import org.neo4j.index.impl.btree.BTree.RelTypes;
 import org.neo4j.index.impl.sortedtree.SortedTree;
 
+/**
+ * A sorted set of {@link NodeWrapper} items, ordered either by a
+ * {@link Comparator} or by keys from a {@link KeyExtractor}. With a
+ * comparator each comparison instantiates and reads both items, whereas
+ * with a key extractor the keys are stored in the tree so that each item
+ * is read once, when it's added or removed. The key of an item mustn't
+ * change while the item is in the collection.
+ * 
+ * Collections ordered by keys also have range views and can seek to a
+ * key, so that a page deep into the collection costs O(log n + page size)
+ * rather than O(offset). Keys passed to those methods must be of the type
+ * which the {@link KeyExtractor} returns. They also answer
+ * {@link #rankOf(NodeWrapper)} and {@link #get(int)} in O(log n).
+ */
 public class SortedNodeCollection<T extends NodeWrapper>
 	extends AbstractSet<T>
 {
+	private static final String KEY_SIZE = "sorted_collection_size";
+	
 	private Node rootNode;
 	private Class<T> instanceClass;
 	private Comparator<T> comparator;
 	private SortedTree index;
+	private KeyExtractor<?> keyExtractor;
+	private KeyTree keyTree;
 	
 	public SortedNodeCollection( Node rootNode,
 		Comparator<T> comparator, Class<T> instanceClass )
@@ -48,6 +69,19 @@ public class SortedNodeCollection<T extends NodeWrapper>
 		instantiateIndex();
 	}
 	
+	/**
+	 * Creates a collection ordered by the keys which {@code keyExtractor}
+	 * extracts from the item nodes, tie-broken by node id.
+	 */
+	public <K extends Comparable<K>> SortedNodeCollection( Node rootNode,
+		KeyExtractor<K> keyExtractor, Class<T> instanceClass )
+	{
+		this.rootNode = rootNode;
+		this.instanceClass = instanceClass;
+		this.keyExtractor = keyExtractor;
+		this.keyTree = new KeyTree( ensureTheresARoot() );
+	}
+	
 	private Node ensureTheresARoot()
 	{
 		Node result = null;
@@ -77,42 +111,99 @@ public class SortedNodeCollection<T extends NodeWrapper>
 		return this.rootNode;
 	}
 	
+	/**
+	 * @return the underlying tree, or {@code null} if this collection is
+	 * ordered by a {@link KeyExtractor}.
+	 */
 	protected SortedTree index()
 	{
 		return this.index;
 	}
 	
+	private Object keyOf( Node node )
+	{
+		return keyExtractor.getKey( node );
+	}
+	
 	protected T instantiateItem( Node itemNode )
 	{
 		return NodeWrapperImpl.newInstance( instanceClass, itemNode );
 	}
 	
+	/**
+	 * Keeps the size property up to date. A collection created before
+	 * sizes were kept gets its size counted on the first modification.
+	 */
+	private void adjustSize( int delta )
+	{
+		GraphDatabaseUtil.acquireWriteLock( rootNode );
+		Integer size = ( Integer ) rootNode.getProperty( KEY_SIZE, null );
+		rootNode.setProperty( KEY_SIZE,
+			size != null ? Math.max( size + delta, 0 ) : countNodes() );
+	}
+	
+	private int countNodes()
+	{
+		int count = 0;
+		for ( Iterator<Node> nodes = sortedNodes().iterator();
+			nodes.hasNext(); nodes.next() )
+		{
+			count++;
+		}
+		return count;
+	}
+	
 	public boolean add( T item )
 	{
-		return index().addNode( item.getUnderlyingNode() );
+		Node node = item.getUnderlyingNode();
+		boolean added = keyTree != null ?
+			keyTree.add( keyOf( node ), node.getId() ) :
+			index().addNode( node );
+		if ( added )
+		{
+			adjustSize( 1 );
+		}
+		return added;
 	}
 
 	public void clear()
 	{
-		index().delete();
-		instantiateIndex();
+		if ( keyTree != null )
+		{
+			keyTree.delete();
+		}
+		else
+		{
+			index().delete();
+			instantiateIndex();
+		}
+		GraphDatabaseUtil.acquireWriteLock( rootNode );
+		rootNode.setProperty( KEY_SIZE, 0 );
 	}
 
 	public boolean contains( Object item )
 	{
 		T nodeItem = ( T ) item;
-		return index().containsNode( nodeItem.getUnderlyingNode() );
+		Node node = nodeItem.getUnderlyingNode();
+		if ( keyTree != null )
+		{
+			return keyTree.contains( keyOf( node ), node.getId() );
+		}
+		return index().containsNode( node );
 	}
 
 	public boolean isEmpty()
 	{
-		return index().getSortedNodes().iterator().hasNext();
+		if ( rootNode.hasProperty( KEY_SIZE ) )
+		{
+			return size() == 0;
+		}
+		return !sortedNodes().iterator().hasNext();
 	}
 
 	public Iterator<T> iterator()
 	{
-		return new IterableWrapper<T, Node>(
-			index().getSortedNodes() )
+		return new IterableWrapper<T, Node>( sortedNodes() )
 		{
 			@Override
 			protected T underlyingObjectToObject( Node node )
@@ -121,11 +212,233 @@ public class SortedNodeCollection<T extends NodeWrapper>
 			}
 		}.iterator();
 	}
+	
+	private Iterable<Node> sortedNodes()
+	{
+		if ( keyTree == null )
+		{
+			return index().getSortedNodes();
+		}
+		return new IterableWrapper<Node, Long>( new Iterable<Long>()
+		{
+			public Iterator<Long> iterator()
+			{
+				return keyTree.iterator();
+			}
+		} )
+		{
+			@Override
+			protected Node underlyingObjectToObject( Long nodeId )
+			{
+				return rootNode.getGraphDatabase().getNodeById( nodeId );
+			}
+		};
+	}
+
+	/**
+	 * Adds {@code items} by building a new tree bottom-up rather than
+	 * adding them one at a time. The new items and the current ones are
+	 * sorted in memory, the tree is built in transactions of
+	 * {@code batchSize} tree nodes each and then swapped in, after which
+	 * the old tree is deleted the same way. It should be called outside
+	 * of a transaction. Only supported for collections ordered by a
+	 * {@link KeyExtractor}.
+	 * 
+	 * @param items the items to add.
+	 * @param batchSize the number of tree nodes to create or delete per
+	 * transaction.
+	 * @throws java.util.ConcurrentModificationException if the
+	 * collection was modified meanwhile, in which case nothing is added.
+	 */
+	public void bulkLoad( Iterable<T> items, int batchSize )
+	{
+		assertKeyMode();
+		long stamp = keyTree.stamp();
+		List<KeyTree.Entry> entries = keyTree.entries();
+		for ( T item : items )
+		{
+			Node node = item.getUnderlyingNode();
+			entries.add( new KeyTree.Entry( keyOf( node ), node.getId() ) );
+		}
+		long rootId = keyTree.build( entries, batchSize );
+		
+		long oldRootId = -1;
+		boolean swapped = false;
+		try
+		{
+			Transaction tx = rootNode.getGraphDatabase().beginTx();
+			try
+			{
+				oldRootId = keyTree.swapRoot( rootId, stamp );
+				GraphDatabaseUtil.acquireWriteLock( rootNode );
+				rootNode.setProperty( KEY_SIZE, entries.size() );
+				tx.success();
+			}
+			finally
+			{
+				tx.finish();
+			}
+			swapped = true;
+		}
+		finally
+		{
+			keyTree.deleteTree( swapped ? oldRootId : rootId, batchSize );
+		}
+	}
+	
+	/**
+	 * @param toKey the key to stop before.
+	 * @return a lazy view of the items with keys less than {@code toKey}.
+	 */
+	public Iterable<T> headSet( Object toKey )
+	{
+		return range( null, Long.MIN_VALUE, toKey, Long.MIN_VALUE );
+	}
+	
+	/**
+	 * @param fromKey the key to start at.
+	 * @return a lazy view of the items with keys greater than or equal to
+	 * {@code fromKey}.
+	 */
+	public Iterable<T> tailSet( Object fromKey )
+	{
+		return range( fromKey, Long.MIN_VALUE, null, Long.MIN_VALUE );
+	}
+	
+	/**
+	 * @param fromKey the key to start at.
+	 * @param toKey the key to stop before.
+	 * @return a lazy view of the items with keys from {@code fromKey},
+	 * inclusive, to {@code toKey}, exclusive.
+	 */
+	public Iterable<T> subSet( Object fromKey, Object toKey )
+	{
+		return range( fromKey, Long.MIN_VALUE, toKey, Long.MIN_VALUE );
+	}
+	
+	private Iterable<T> range( final Object lowKey, final long lowId,
+		final Object highKey, final long highId )
+	{
+		assertKeyMode();
+		return new Iterable<T>()
+		{
+			public Iterator<T> iterator()
+			{
+				return items( keyTree.iterator( lowKey, lowId, highKey,
+					highId, false ) );
+			}
+		};
+	}
+	
+	/**
+	 * Seeks to a key in O(log n) and iterates lazily from there.
+	 * 
+	 * @param fromKey the key to start at, or {@code null} to start at the
+	 * first (or, if {@code descending}, the last) item.
+	 * @param descending whether to iterate towards lower keys or not.
+	 * @return the items from {@code fromKey}, inclusive, in the given
+	 * direction.
+	 */
+	public Iterator<T> iterator( Object fromKey, boolean descending )
+	{
+		assertKeyMode();
+		return items( descending ?
+			keyTree.iterator( null, 0, fromKey, Long.MAX_VALUE, true ) :
+			keyTree.iterator( fromKey, Long.MIN_VALUE, null, 0, false ) );
+	}
+	
+	/**
+	 * Resumes an iteration after {@code item}, f.ex. the last item of
+	 * the previous page. {@code item} doesn't have to be in the collection
+	 * anymore, but its key must be the same as when it was seen.
+	 * 
+	 * @param item the item to continue after.
+	 * @param descending whether to iterate towards lower keys or not.
+	 * @return the items after {@code item}, in the given direction.
+	 */
+	public Iterator<T> iteratorAfter( T item, boolean descending )
+	{
+		assertKeyMode();
+		Node node = item.getUnderlyingNode();
+		Object key = keyOf( node );
+		return items( descending ?
+			keyTree.iterator( null, 0, key, node.getId() - 1, true ) :
+			keyTree.iterator( key, node.getId() + 1, null, 0, false ) );
+	}
+	
+	/**
+	 * Returns the position of {@code item} in O(log n), using the entry
+	 * counts which the tree keeps for its subtrees. Takes a read lock on
+	 * the collection while reading, so that concurrent additions and
+	 * removals are either fully seen or not at all. Doesn't need a
+	 * transaction, only committed items are seen without one.
+	 * 
+	 * @param item the item to get the position of.
+	 * @return the number of items before {@code item}, or {@code -1} if
+	 * it isn't in the collection.
+	 */
+	public int rankOf( T item )
+	{
+		assertKeyMode();
+		Node node = item.getUnderlyingNode();
+		int rank = keyTree.rank( keyOf( node ), node.getId() );
+		return rank >= 0 ? rank : -1;
+	}
+	
+	/**
+	 * Returns the item at {@code index} in O(log n), reading the
+	 * collection the same way as {@link #rankOf(NodeWrapper)}.
+	 * 
+	 * @param index the position of the item.
+	 * @return the item at {@code index}.
+	 * @throws IndexOutOfBoundsException if there's no such position.
+	 */
+	public T get( int index )
+	{
+		assertKeyMode();
+		long nodeId = keyTree.select( index );
+		if ( nodeId == -1 )
+		{
+			throw new IndexOutOfBoundsException( "" + index );
+		}
+		return instantiateItem( rootNode.getGraphDatabase().getNodeById(
+			nodeId ) );
+	}
+	
+	private void assertKeyMode()
+	{
+		if ( keyTree == null )
+		{
+			throw new UnsupportedOperationException(
+				"Only supported for collections ordered by a KeyExtractor" );
+		}
+	}
+	
+	private Iterator<T> items( Iterator<Long> nodeIds )
+	{
+		return new IteratorWrapper<T, Long>( nodeIds )
+		{
+			@Override
+			protected T underlyingObjectToObject( Long nodeId )
+			{
+				return instantiateItem(
+					rootNode.getGraphDatabase().getNodeById( nodeId ) );
+			}
+		};
+	}
 
 	public boolean remove( Object item )
 	{
 		T nodeItem = ( T ) item;
-		return index().removeNode( nodeItem.getUnderlyingNode() );
+		Node node = nodeItem.getUnderlyingNode();
+		boolean removed = keyTree != null ?
+			keyTree.remove( keyOf( node ), node.getId() ) :
+			index().removeNode( node );
+		if ( removed )
+		{
+			adjustSize( -1 );
+		}
+		return removed;
 	}
 
 	public boolean retainAll( Collection<?> items )
@@ -133,15 +446,21 @@ public class SortedNodeCollection<T extends NodeWrapper>
 		throw new UnsupportedOperationException( "Not implemented yet" );
 	}
 
+	/**
+	 * @return the size of this collection, read from a property on the
+	 * root node. A collection created before sizes were kept is counted
+	 * until it's modified.
+	 */
 	public int size()
 	{
-		return toArray().length;
+		Integer size = ( Integer ) rootNode.getProperty( KEY_SIZE, null );
+		return size != null ? size : countNodes();
 	}
 	
 	private <R> Collection<R> toCollection()
 	{
 		Collection<R> result = new ArrayList<R>();
-		for ( Node node : index().getSortedNodes() )
+		for ( Node node : sortedNodes() )
 		{
 			result.add( ( R ) instantiateItem( node ) );
 		}
@@ -165,6 +484,17 @@ public class SortedNodeCollection<T extends NodeWrapper>
 	 */
 	public void delete()
 	{
+		rootNode.removeProperty( KEY_SIZE );
+		if ( keyTree != null )
+		{
+			keyTree.delete();
+			Relationship relationship = rootNode.getSingleRelationship(
+				RelTypes.TREE_ROOT, Direction.OUTGOING );
+			Node treeRootNode = relationship.getEndNode();
+			relationship.delete();
+			treeRootNode.delete();
+			return;
+		}
 		index().delete();
 	}
 	
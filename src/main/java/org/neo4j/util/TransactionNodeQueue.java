@@ -23,17 +23,32 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
 
 import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
 
 /**
  * Wraps several {@link NodeQueue} instances (per transaction).
  * See {@link TransactionNodeQueueWorker} for usage.
+ * 
+ * The queues are kept track of in memory, in a registry per root node
+ * and database. A queue is registered when the transaction which created
+ * it commits and unregistered when the transaction which emptied it
+ * commits, so {@link #getQueues()}
+ * doesn't have to look in the graph. The registries of a database are
+ * dropped when it shuts down.
  * @author mattias
  */
 public class TransactionNodeQueue
@@ -46,15 +61,65 @@ public class TransactionNodeQueue
 	
 	private static final String INDEX_TX_ID = "txid";
 	
-	private static Map<Integer, TxQueue> queueNodes =
-		Collections.synchronizedMap( new HashMap<Integer, TxQueue>() );
+	private static final Map<GraphDatabaseService,
+		ConcurrentMap<Long, Registry>> registries =
+		new HashMap<GraphDatabaseService, ConcurrentMap<Long, Registry>>();
 	
 	private final Node rootNode;
+	private final Registry registry;
+	private boolean compactEntries;
 	
 	public TransactionNodeQueue( Node rootNode )
 	{
 		this.rootNode = rootNode;
-		initialize();
+		Registry newRegistry = new Registry();
+		Registry existing = getRegistries( rootNode.getGraphDatabase() ).
+			putIfAbsent( rootNode.getId(), newRegistry );
+		this.registry = existing != null ? existing : newRegistry;
+		if ( existing == null )
+		{
+			initialize();
+		}
+	}
+	
+	private static ConcurrentMap<Long, Registry> getRegistries(
+		final GraphDatabaseService graphDb )
+	{
+		synchronized ( registries )
+		{
+			ConcurrentMap<Long, Registry> result = registries.get( graphDb );
+			if ( result == null )
+			{
+				result = new ConcurrentHashMap<Long, Registry>();
+				registries.put( graphDb, result );
+				graphDb.registerKernelEventHandler( new KernelEventHandler()
+				{
+					public void beforeShutdown()
+					{
+						synchronized ( registries )
+						{
+							registries.remove( graphDb );
+						}
+					}
+					
+					public void kernelPanic( ErrorState error )
+					{
+					}
+					
+					public Object getResource()
+					{
+						return null;
+					}
+					
+					public ExecutionOrder orderComparedTo(
+						KernelEventHandler other )
+					{
+						return ExecutionOrder.DOESNT_MATTER;
+					}
+				} );
+			}
+			return result;
+		}
 	}
 	
 	private void initialize()
@@ -66,7 +131,7 @@ public class TransactionNodeQueue
 			TxQueue queue = new TxQueue( rel.getEndNode() );
 			if ( queue.peek() != null )
 			{
-				queueNodes.put( queue.getTxId(), queue );
+				registry.queues.put( queue.getTxId(), queue );
 			}
 			else
 			{
@@ -86,13 +151,54 @@ public class TransactionNodeQueue
 	{
 		// We must be in a transaction, else the calling code isn't right
 		TxQueue queue = findQueue( txId, true );
-		queue.add( values );
+		queue.add( values, compactEntries );
+	}
+	
+	/**
+	 * Makes {@link #add(int, Map)} store entries compactly with
+	 * {@link EntryCodec}, so that they can be read with one property
+	 * lookup, see {@link TxQueue#peek(int, List)}.
+	 * @param compactEntries whether or not to store entries compactly.
+	 */
+	public void setCompactEntries( boolean compactEntries )
+	{
+		this.compactEntries = compactEntries;
 	}
 	
-	private void remove( TxQueue queue )
+	private void removeWhenCommitted( final TxQueue queue )
 	{
-		int txId = queue.getTxId();
-		queueNodes.remove( txId );
+		final int txId = queue.getTxId();
+		try
+		{
+			GraphDatabaseUtil.getTransactionManager(
+				rootNode.getGraphDatabase() ).getTransaction().
+				registerSynchronization( new Synchronization()
+			{
+				public void beforeCompletion()
+				{
+				}
+				
+				public void afterCompletion( int status )
+				{
+					if ( status == Status.STATUS_COMMITTED )
+					{
+						remove( txId, queue );
+					}
+				}
+			} );
+		}
+		catch ( Exception e )
+		{
+			// Couldn't hook into the transaction, remove it right away
+			// instead and hope that the transaction commits.
+			remove( txId, queue );
+		}
+	}
+	
+	private void remove( int txId, TxQueue queue )
+	{
+		registry.queues.remove( txId, queue );
+		queue.deleted = true;
 	}
 	
 	protected Node getRefNode()
@@ -102,7 +208,11 @@ public class TransactionNodeQueue
 	
 	private TxQueue findQueue( int txId, boolean allowCreate )
 	{
-		TxQueue queue = queueNodes.get( txId );
+		TxQueue queue = registry.queues.get( txId );
+		if ( queue == null )
+		{
+			queue = registry.pending.get( txId );
+		}
 		if ( queue != null )
 		{
 			return queue;
@@ -115,46 +225,82 @@ public class TransactionNodeQueue
 			getRefNode().createRelationshipTo( queueNode,
 				QueueRelTypes.UPDATE_QUEUE );
 			queue = new TxQueue( queueNode );
-			queueNodes.put( txId, queue );
+			registerWhenCommitted( txId, queue );
 			return queue;
 		}
 		return null;
 	}
 	
-	public Map<Integer, TxQueue> getQueues()
+	private void registerWhenCommitted( final int txId, final TxQueue queue )
 	{
-		Map<Integer, TxQueue> map = new HashMap<Integer, TxQueue>();
-		Map.Entry<Integer, TxQueue>[] entries = queueNodes.entrySet().
-			toArray( new Map.Entry[ queueNodes.size() ] );
-		for ( Map.Entry<Integer, TxQueue> entry : entries )
+		registry.pending.put( txId, queue );
+		try
 		{
-			TxQueue queue = entry.getValue();
-			try
+			GraphDatabaseUtil.getTransactionManager(
+				rootNode.getGraphDatabase() ).getTransaction().
+				registerSynchronization( new Synchronization()
 			{
-				if ( queue.peek() != null )
+				public void beforeCompletion()
 				{
-					map.put( queue.getTxId(), queue );
 				}
-			}
-			catch ( NotFoundException e )
-			{
-				// Since queueNodes is a cache which is filled inside
-				// transactions it may be the case that a queue is created
-				// and then the transaction is rolled back... then the
-				// queueNodes map would still have a queue instance for
-				// the node which was created in the transaction, but
-				// not committed.
-				queueNodes.remove( entry.getKey() );
-			}
+				
+				public void afterCompletion( int status )
+				{
+					registry.pending.remove( txId );
+					if ( status == Status.STATUS_COMMITTED )
+					{
+						registry.queues.put( txId, queue );
+						queueAdded( queue );
+					}
+				}
+			} );
+		}
+		catch ( Exception e )
+		{
+			// Couldn't hook into the transaction, register it right away
+			// instead and hope that the transaction commits.
+			registry.pending.remove( txId );
+			registry.queues.put( txId, queue );
+			queueAdded( queue );
 		}
-		return Collections.unmodifiableMap( map );
+	}
+	
+	/**
+	 * Called when a transaction which has added entries via this instance
+	 * has committed, i.e. when its queue can be consumed.
+	 * @param queue the queue of the committed transaction.
+	 */
+	protected void queueAdded( TxQueue queue )
+	{
+	}
+	
+	/**
+	 * @return the non-empty queues of committed transactions, mapped by
+	 * their transaction id. The returned map is a snapshot.
+	 */
+	public Map<Integer, TxQueue> getQueues()
+	{
+		return Collections.unmodifiableMap(
+			new HashMap<Integer, TxQueue>( registry.queues ) );
+	}
+	
+	/**
+	 * The queues of one root node. {@code pending} holds queues created in
+	 * transactions which hasn't committed yet.
+	 */
+	private static class Registry
+	{
+		private final ConcurrentMap<Integer, TxQueue> queues =
+			new ConcurrentHashMap<Integer, TxQueue>();
+		private final ConcurrentMap<Integer, TxQueue> pending =
+			new ConcurrentHashMap<Integer, TxQueue>();
 	}
 	
 	public class TxQueue
 	{
 		private final NodeQueue queue;
 		private final Node node;
-		private boolean deleted;
+		private volatile boolean deleted;
 		
 		public TxQueue( Node rootNode )
 		{
@@ -172,9 +318,14 @@ public class TransactionNodeQueue
 			return ( Integer ) node.getProperty( INDEX_TX_ID );
 		}
 		
-		private void add( Map<String, Object> values )
+		private void add( Map<String, Object> values, boolean compact )
 		{
 			Node node = queue.add();
+			if ( compact )
+			{
+				EntryCodec.write( node, values );
+				return;
+			}
 			for ( Map.Entry<String, Object> entry : values.entrySet() )
 			{
 				node.setProperty( entry.getKey(), entry.getValue() );
@@ -188,32 +339,49 @@ public class TransactionNodeQueue
 		}
 		
 		public Collection<Map<String, Object>> peek( int max )
+		{
+			return peek( max, null );
+		}
+		
+		/**
+		 * Like {@link #peek(int)}, but compactly stored entries are read
+		 * into the views in {@code reusableViews}, which grows as needed.
+		 * The returned entries are only valid until the views are reused.
+		 * @param max the max number of entries to return.
+		 * @param reusableViews the views to reuse, or {@code null}.
+		 * @return the entries, or {@code null} if this queue is deleted.
+		 */
+		public Collection<Map<String, Object>> peek( int max,
+			List<EntryView> reusableViews )
 		{
             if ( deleted )
             {
                 return null;
             }
             
-            Collection<Map<String, Object>> result =
-                new ArrayList<Map<String,Object>>( max );
             Node[] nodes = queue.peek( max );
-            for ( Node node : nodes )
+            Collection<Map<String, Object>> result =
+                new ArrayList<Map<String,Object>>( nodes.length );
+            for ( int i = 0; i < nodes.length; i++ )
             {
-                result.add( readEntry( node ) );
+                EntryView view = null;
+                if ( reusableViews == null )
+                {
+                    view = new EntryView();
+                }
+                else
+                {
+                    if ( reusableViews.size() == i )
+                    {
+                        reusableViews.add( new EntryView() );
+                    }
+                    view = reusableViews.get( i );
+                }
+                result.add( EntryCodec.read( nodes[ i ], view ) );
             }
             return result;
 		}
 		
-		private Map<String, Object> readEntry( Node node )
-		{
-			Map<String, Object> result = new HashMap<String, Object>();
-			for ( String key : node.getPropertyKeys() )
-			{
-				result.put( key, node.getProperty( key ) );
-			}
-			return result;
-		}
-		
 		public void remove()
 		{
 		    remove( 1 );
@@ -227,10 +395,10 @@ public class TransactionNodeQueue
 			}
 			
 			queue.remove( max );
-			if ( queue.peek() == null )
+			if ( queue.size() == 0 )
 			{
-				TransactionNodeQueue.this.remove( this );
-				deleted = true;
+				// Stays registered if the transaction rolls back
+				removeWhenCommitted( this );
 			}
 		}
 	}
@@ -19,13 +19,16 @@
  */
 package org.neo4j.util;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -40,20 +43,36 @@ import org.neo4j.util.TransactionNodeQueue.TxQueue;
 /**
  * Handles entries from a {@link TransactionNodeQueue} using one or more
  * working threads to "eat" the queue items.
+ * 
+ * A consumer is started as soon as a transaction which added entries
+ * commits, if there's a free consumer slot. A consumer which has emptied
+ * its queue continues with a waiting queue, if any. The balancing thread
+ * is only a safety net which also looks for waiting queues every
+ * {@link #getWaitTimeoutBetweenBalancing()} milliseconds.
+ * 
+ * An entry which fails is put in a {@link RetryQueue} and tried again by
+ * the balancing thread, as decided by the {@link RetryPolicy}, so that it
+ * doesn't hold up the entries after it.
  * @author mattias
  */
 public abstract class TransactionNodeQueueWorker extends Thread
 {
 	private GraphDatabaseService graphDb;
 	private TransactionNodeQueue workQueue;
-	private boolean halted;
+	private volatile boolean halted;
+	private volatile boolean started;
 	private int maxConsumers;
 	private ExecutorService consumers;
 	private Set<Integer> consumerTxIds = Collections.synchronizedSet(
 		new HashSet<Integer>() );
-	private boolean paused;
+	private volatile boolean paused;
 	private boolean fallThrough;
 	private int batchSize;
+	private int maxBatchesPerCommit = 1;
+	private long maxTimePerCommit = Long.MAX_VALUE;
+	private RetryPolicy retryPolicy =
+		new ExponentialBackoffRetryPolicy( 10, 500, 5 * 60 * 1000 );
+	private volatile RetryQueue retryQueue;
 	
     public TransactionNodeQueueWorker( GraphDatabaseService graphDb, Node rootNode,
         int maxConsumers )
@@ -69,6 +88,7 @@ public abstract class TransactionNodeQueueWorker extends Thread
 		this.maxConsumers = maxConsumers;
 		this.workQueue = createQueue( rootNode );
 		this.batchSize = batchSize;
+		this.retryQueue = newRetryQueue();
 	}
 	
 	public void add( Map<String, Object> values )
@@ -105,14 +125,97 @@ public abstract class TransactionNodeQueueWorker extends Thread
 		return this.workQueue;
 	}
 	
+	/**
+	 * Creates the queue for this worker. An overriding implementation should
+	 * call {@link #queueAdded(TxQueue)} from
+	 * {@link TransactionNodeQueue#queueAdded(TxQueue)}, or else new queues
+	 * are only picked up by the balancing thread.
+	 * @param rootNode the root node of the queue.
+	 * @return the queue for this worker.
+	 */
 	protected TransactionNodeQueue createQueue( Node rootNode )
 	{
-		return new TransactionNodeQueue( rootNode );
+		return new TransactionNodeQueue( rootNode )
+		{
+			@Override
+			protected void queueAdded( TxQueue queue )
+			{
+				TransactionNodeQueueWorker.this.queueAdded( queue );
+			}
+		};
+	}
+	
+	protected void queueAdded( TxQueue queue )
+	{
+		dispatch();
+	}
+	
+	/**
+	 * Makes consumers remove handled entries from their queues in one
+	 * transaction per {@code maxBatches} batches instead of one per batch,
+	 * which saves a lot of commits if handling an entry is cheap. A commit
+	 * is also done when handling the batches since the last commit has
+	 * taken more than {@code maxMillis} milliseconds. Entries which has
+	 * been handled, but not yet removed, are handled again if the JVM dies.
+	 * @param maxBatches the max number of batches per commit.
+	 * @param maxMillis the max time between commits.
+	 */
+	public void setCommitInterval( int maxBatches, long maxMillis )
+	{
+		if ( maxBatches < 1 )
+		{
+			throw new IllegalArgumentException( "Invalid number of batches " +
+				maxBatches );
+		}
+		this.maxBatchesPerCommit = maxBatches;
+		this.maxTimePerCommit = maxMillis;
+	}
+	
+	/**
+	 * Makes the queue store entries compactly, so that consumers can read
+	 * them into reused {@link EntryView}s. Such an entry is only valid
+	 * until its batch has been handled, so {@link #handleEntry(Map)} must copy
+	 * an entry it wants to keep.
+	 * @param compactEntries whether or not to store entries compactly.
+	 */
+	public void setCompactEntries( boolean compactEntries )
+	{
+		getQueue().setCompactEntries( compactEntries );
+	}
+	
+	/**
+	 * Sets the {@link RetryPolicy} for entries which fails. The default
+	 * policy tries an entry ten times with exponential backoff, starting at
+	 * 500 milliseconds. Must be called before {@link #startUp()}.
+	 * @param policy the {@link RetryPolicy} to use.
+	 */
+	public void setRetryPolicy( RetryPolicy policy )
+	{
+		this.retryPolicy = policy;
+		this.retryQueue = newRetryQueue();
+	}
+	
+	private RetryQueue newRetryQueue()
+	{
+		return new RetryQueue( getQueue().getRefNode(), retryPolicy );
+	}
+	
+	/**
+	 * @return the {@link RetryQueue} where failed entries are kept, it's
+	 * connected to the root node of the queue.
+	 */
+	public RetryQueue getRetryQueue()
+	{
+		return this.retryQueue;
 	}
 	
 	public void setPaused( boolean paused )
 	{
 		this.paused = paused;
+		if ( !paused )
+		{
+			dispatch();
+		}
 	}
 	
 	public boolean isPaused()
@@ -135,7 +238,7 @@ public abstract class TransactionNodeQueueWorker extends Thread
 	public void startUp()
 	{
 		this.consumers = new ThreadPoolExecutor( maxConsumers, maxConsumers, 30,
-			TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>( maxConsumers ),
+			TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
 			new ThreadFactory()
 			{
 				private int counter = 1;
@@ -185,13 +288,15 @@ public abstract class TransactionNodeQueueWorker extends Thread
 	public void run()
 	{
 		waitBeforeRun();
+		this.started = true;
 		while ( !this.halted )
 		{
 			try
 			{
+				dispatch();
 				if ( !isPaused() )
 				{
-					balanceQueue();
+					retryDueEntries();
 				}
 			}
 			catch ( DeadlockDetectedException e )
@@ -238,6 +343,73 @@ public abstract class TransactionNodeQueueWorker extends Thread
 		handleEntry( entry );
 	}
 	
+	private void entryFailed( Map<String, Object> entry, int failedAttempts,
+		Exception exception )
+	{
+		if ( !getRetryQueue().failed( entry, failedAttempts, exception ) )
+		{
+			handleEntryError( entry, exception );
+		}
+	}
+	
+	/**
+	 * Called when the {@link RetryPolicy} has given up on an entry.
+	 * The default implementation puts it in the dead letter queue of the
+	 * {@link RetryQueue}. Called within a transaction.
+	 * @param entry the entry which failed.
+	 * @param exception the exception from the last attempt.
+	 */
+	protected void handleEntryError( Map<String, Object> entry,
+		Exception exception )
+	{
+		getRetryQueue().addDeadLetter( entry, exception );
+	}
+	
+	/**
+	 * Tries the entries in the retry queue which are due, in one
+	 * transaction.
+	 */
+	private void retryDueEntries()
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			List<RetryQueue.Entry> entries =
+				getRetryQueue().peekDue( batchSize );
+			if ( entries.isEmpty() )
+			{
+				return;
+			}
+			
+			beforeBatch();
+			try
+			{
+				for ( RetryQueue.Entry entry : entries )
+				{
+					try
+					{
+						doHandleEntry( entry.getValues() );
+					}
+					catch ( Exception e )
+					{
+						entryFailed( entry.getValues(),
+							entry.getFailedAttempts() + 1, e );
+					}
+				}
+			}
+			finally
+			{
+				afterBatch();
+			}
+			getRetryQueue().remove( entries );
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
 	protected void beforeBatch()
 	{
 	}
@@ -270,35 +442,123 @@ public abstract class TransactionNodeQueueWorker extends Thread
 		return consumerTxIds.size();
 	}
 	
-	private void balanceQueue()
+	private boolean mayDispatch()
+	{
+		return this.started && !this.halted && !isPaused();
+	}
+	
+	/**
+	 * Starts consumers for waiting queues as long as there are free
+	 * consumer slots.
+	 */
+	private void dispatch()
 	{
-		Map<Integer, TxQueue> queues = getQueue().getQueues();
-		Set<Integer> queueIds = new HashSet<Integer>( queues.keySet() );
-		while ( !halted && numberOfConsumers() < maxConsumers &&
-			!queueIds.isEmpty() )
+		if ( !mayDispatch() )
 		{
-			Integer txId = queueIds.iterator().next();
-			synchronized ( consumerTxIds )
+			return;
+		}
+		
+		synchronized ( consumerTxIds )
+		{
+			for ( Map.Entry<Integer, TxQueue> entry :
+				getQueue().getQueues().entrySet() )
+			{
+				if ( numberOfConsumers() >= maxConsumers )
+				{
+					break;
+				}
+				if ( consumerTxIds.add( entry.getKey() ) )
+				{
+					addConsumer( new Consumer( entry.getValue(),
+						entry.getKey() ) );
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return a waiting queue, which is then claimed by the caller,
+	 * or {@code null} if there's none.
+	 */
+	private Map.Entry<Integer, TxQueue> claimWaitingQueue()
+	{
+		if ( !mayDispatch() )
+		{
+			return null;
+		}
+		
+		synchronized ( consumerTxIds )
+		{
+			for ( Map.Entry<Integer, TxQueue> entry :
+				getQueue().getQueues().entrySet() )
 			{
-				if ( !consumerTxIds.contains( txId ) )
+				if ( consumerTxIds.add( entry.getKey() ) )
 				{
-					addConsumer( new Consumer( queues.get( txId ) ) );
-					consumerTxIds.add( txId );
+					return entry;
 				}
 			}
-			queueIds.remove( txId );
 		}
+		return null;
 	}
 	
 	private class Consumer implements Runnable
 	{
 		private TxQueue updateQueue;
 		private int txId;
+		private final List<EntryView> views = new ArrayList<EntryView>();
 		
-		Consumer( TxQueue updateQueue )
+		Consumer( TxQueue updateQueue, int txId )
 		{
 			this.updateQueue = updateQueue;
-			this.txId = updateQueue.getTxId();
+			this.txId = txId;
+		}
+		
+		/**
+		 * Handles {@code entries} in batches of {@code batchSize}, until
+		 * all are handled or {@code maxTimePerCommit} has passed.
+		 * @return the number of handled entries.
+		 */
+		private int handleBatches( Collection<Map<String, Object>> entries )
+		{
+			long startTime = System.currentTimeMillis();
+			int handled = 0;
+			Iterator<Map<String, Object>> iterator = entries.iterator();
+			while ( iterator.hasNext() && !halted )
+			{
+				beforeBatch();
+				for ( int i = 0; i < batchSize && iterator.hasNext(); i++ )
+				{
+					doOne( iterator.next() );
+					handled++;
+				}
+				afterBatch();
+				if ( System.currentTimeMillis() - startTime >=
+					maxTimePerCommit )
+				{
+					break;
+				}
+			}
+			return handled;
+		}
+		
+		/**
+		 * Continues with a waiting queue instead of the current one, which
+		 * is empty.
+		 */
+		private boolean switchToWaitingQueue()
+		{
+			synchronized ( consumerTxIds )
+			{
+				Map.Entry<Integer, TxQueue> next = claimWaitingQueue();
+				if ( next == null )
+				{
+					return false;
+				}
+				consumerTxIds.remove( txId );
+				this.updateQueue = next.getValue();
+				this.txId = next.getKey();
+				return true;
+			}
 		}
 		
 		public void run()
@@ -314,15 +574,18 @@ public abstract class TransactionNodeQueueWorker extends Thread
                     else
                     {
                         Collection<Map<String, Object>> entries =
-                            updateQueue.peek( batchSize );
-                        beforeBatch();
-    				    for ( Map<String, Object> entry : entries )
-    				    {
-       						doOne( entry );
-    				    }
-    				    afterBatch();
+                            updateQueue.peek( batchSize * maxBatchesPerCommit,
+                                views );
+                        if ( entries == null || entries.isEmpty() )
+                        {
+                            if ( !switchToWaitingQueue() )
+                            {
+                                break;
+                            }
+                            continue;
+                        }
                         new EntryRemover( graphDb, updateQueue,
-                            entries.size() ).run();
+                            handleBatches( entries ) ).run();
                     }
 				}
 			}
@@ -351,40 +614,24 @@ public abstract class TransactionNodeQueueWorker extends Thread
 		
 		private void doOne( Map<String, Object> entry )
 		{
-			// Try a max of ten times if it fails.
-			Exception exception = null;
-			for ( int i = 0; !halted && i < 10; i++ )
+			try
 			{
+				doHandleEntry( entry );
+			}
+			catch ( Exception e )
+			{
+				// Put it in the retry queue so that the entries after it
+				// doesn't have to wait.
+				Transaction tx = graphDb.beginTx();
 				try
 				{
-					doHandleEntry( entry );
-					return;
+					entryFailed( entry, 1, e );
+					tx.success();
 				}
-				catch ( Exception e )
+				finally
 				{
-					exception = e;
+					tx.finish();
 				}
-				sleepSomeTime( 500 );
-			}
-			handleEntryError( entry, exception );
-		}
-		
-		private void handleEntryError( Map<String, Object> entry,
-			Exception exception )
-		{
-//			log.info( entry + " re-added last in the queue, que to " +
-//				( exception == null ? "" : exception.toString() ) );
-			
-			// Add it to the end of the queue
-			Transaction tx = graphDb.beginTx();
-			try
-			{
-				add( entry );
-				tx.success();
-			}
-			finally
-			{
-				tx.finish();
 			}
 		}
 	}
@@ -0,0 +1,349 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Tests the {@link AdjacencyCache} class.
+ */
+public class TestAdjacencyCache extends Neo4jTest
+{
+    @Test
+    public void testInvalidation() throws Exception
+    {
+        AdjacencyCache cache = new AdjacencyCache( graphDb(), 10, 100 );
+        cache.startUp();
+        try
+        {
+            final Node[] nodes = new Node[ 21 ];
+            final Relationship[] rels = new Relationship[ 1 ];
+            // Separate threads, since they must commit for events to fire
+            inOwnTransaction( new Runnable()
+            {
+                public void run()
+                {
+                    for ( int i = 0; i < nodes.length; i++ )
+                    {
+                        nodes[ i ] = graphDb().createNode();
+                    }
+                    for ( int i = 1; i < nodes.length - 1; i++ )
+                    {
+                        nodes[ 0 ].createRelationshipTo( nodes[ i ],
+                            TestRelTypes.TEST_TYPE );
+                    }
+                }
+            } );
+            
+            Node hub = nodes[ 0 ];
+            final Node last = nodes[ nodes.length - 1 ];
+            Relationship rel = cache.getRelationshipBetween( hub, nodes[ 5 ],
+                TestRelTypes.TEST_TYPE, Direction.OUTGOING );
+            assertEquals( nodes[ 5 ], rel.getEndNode() );
+            assertEquals( rel, cache.getRelationshipBetween( nodes[ 5 ], hub,
+                TestRelTypes.TEST_TYPE, Direction.INCOMING ) );
+            assertNull( cache.getRelationshipBetween( hub, last,
+                TestRelTypes.TEST_TYPE, Direction.OUTGOING ) );
+            
+            inOwnTransaction( new Runnable()
+            {
+                public void run()
+                {
+                    rels[ 0 ] = nodes[ 0 ].createRelationshipTo( last,
+                        TestRelTypes.TEST_TYPE );
+                }
+            } );
+            assertEquals( rels[ 0 ], cache.getRelationshipBetween( hub, last,
+                TestRelTypes.TEST_TYPE, Direction.OUTGOING ) );
+            deleteNodes( nodes );
+        }
+        finally
+        {
+            cache.shutDown();
+        }
+    }
+    
+    @Test
+    public void testRollback() throws Exception
+    {
+        AdjacencyCache cache = new AdjacencyCache( graphDb(), 3, 100 );
+        cache.startUp();
+        try
+        {
+            final Node[] nodes = new Node[ 5 ];
+            final Relationship[] rels = new Relationship[ nodes.length ];
+            inOwnTransaction( new Runnable()
+            {
+                public void run()
+                {
+                    for ( int i = 0; i < nodes.length; i++ )
+                    {
+                        nodes[ i ] = graphDb().createNode();
+                        if ( i > 0 )
+                        {
+                            rels[ i ] = nodes[ 0 ].createRelationshipTo(
+                                nodes[ i ], TestRelTypes.TEST_TYPE );
+                        }
+                    }
+                }
+            } );
+            
+            // Loaded while a transaction which deleted one of them is
+            // open, that transaction then rolls back
+            final AdjacencyCache theCache = cache;
+            inOwnTransaction( new Runnable()
+            {
+                public void run()
+                {
+                    rels[ 1 ].delete();
+                    theCache.getRelationshipBetween( nodes[ 0 ], nodes[ 2 ],
+                        TestRelTypes.TEST_TYPE, Direction.OUTGOING );
+                }
+            }, false );
+            assertEquals( rels[ 1 ], cache.getRelationshipBetween( nodes[ 0 ],
+                nodes[ 1 ], TestRelTypes.TEST_TYPE, Direction.OUTGOING ) );
+            deleteNodes( nodes );
+        }
+        finally
+        {
+            cache.shutDown();
+        }
+    }
+    
+    @Test
+    public void testCommitDuringLoad() throws Exception
+    {
+        AdjacencyCache cache = new AdjacencyCache( graphDb(), 3, 100 );
+        cache.startUp();
+        try
+        {
+            final Node[] nodes = new Node[ 7 ];
+            inOwnTransaction( new Runnable()
+            {
+                public void run()
+                {
+                    for ( int i = 0; i < nodes.length; i++ )
+                    {
+                        nodes[ i ] = graphDb().createNode();
+                    }
+                    for ( int i = 1; i < 5; i++ )
+                    {
+                        nodes[ 0 ].createRelationshipTo( nodes[ i ],
+                            TestRelTypes.TEST_TYPE );
+                    }
+                }
+            } );
+            
+            // A commit which doesn't touch the loaded node keeps the load
+            cache.setLoader( new TestLoader( new Runnable()
+            {
+                public void run()
+                {
+                    nodes[ 5 ].createRelationshipTo( nodes[ 6 ],
+                        TestRelTypes.TEST_TYPE );
+                }
+            }, false ) );
+            Node hub = nodes[ 0 ];
+            assertEquals( nodes[ 1 ], cache.getRelationshipBetween( hub,
+                nodes[ 1 ], TestRelTypes.TEST_TYPE,
+                Direction.OUTGOING ).getEndNode() );
+            assertTrue( cache.isCached( hub, TestRelTypes.TEST_TYPE,
+                Direction.OUTGOING ) );
+            
+            // A commit which does touch it discards the load
+            cache.clear();
+            cache.setLoader( new TestLoader( new Runnable()
+            {
+                public void run()
+                {
+                    nodes[ 0 ].createRelationshipTo( nodes[ 5 ],
+                        TestRelTypes.TEST_TYPE );
+                }
+            }, false ) );
+            cache.getRelationshipBetween( hub, nodes[ 1 ],
+                TestRelTypes.TEST_TYPE, Direction.OUTGOING );
+            assertFalse( cache.isCached( hub, TestRelTypes.TEST_TYPE,
+                Direction.OUTGOING ) );
+            deleteNodes( nodes );
+        }
+        finally
+        {
+            cache.shutDown();
+        }
+    }
+    
+    @Test
+    public void testLoaderBusy() throws Exception
+    {
+        // Not started, lookups in a transaction must work anyway
+        AdjacencyCache cache = new AdjacencyCache( graphDb(), 3, 100 );
+        Node[] nodes = new Node[ 5 ];
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            nodes[ i ] = graphDb().createNode();
+            if ( i > 0 )
+            {
+                nodes[ 0 ].createRelationshipTo( nodes[ i ],
+                    TestRelTypes.TEST_TYPE );
+            }
+        }
+        cache.setLoader( new TestLoader( null, true ) );
+        assertEquals( nodes[ 3 ], cache.getRelationshipBetween( nodes[ 0 ],
+            nodes[ 3 ], TestRelTypes.TEST_TYPE,
+            Direction.OUTGOING ).getEndNode() );
+        assertFalse( cache.isCached( nodes[ 0 ], TestRelTypes.TEST_TYPE,
+            Direction.OUTGOING ) );
+        deleteNodes( nodes );
+    }
+    
+    private void deleteNodes( Node[] nodes )
+    {
+        for ( Node node : nodes )
+        {
+            for ( Relationship rel : node.getRelationships() )
+            {
+                rel.delete();
+            }
+            node.delete();
+        }
+    }
+    
+    private void inOwnTransaction( Runnable runnable ) throws Exception
+    {
+        inOwnTransaction( runnable, true );
+    }
+    
+    private void inOwnTransaction( final Runnable runnable,
+        final boolean commit ) throws Exception
+    {
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                Transaction tx = graphDb().beginTx();
+                try
+                {
+                    runnable.run();
+                    if ( commit )
+                    {
+                        tx.success();
+                    }
+                }
+                finally
+                {
+                    tx.finish();
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+    }
+    
+    /**
+     * Runs each load in a new thread after committing a transaction in
+     * it, or rejects every load.
+     */
+    private class TestLoader extends AbstractExecutorService
+    {
+        private final Runnable beforeLoad;
+        private final boolean reject;
+        
+        TestLoader( Runnable beforeLoad, boolean reject )
+        {
+            this.beforeLoad = beforeLoad;
+            this.reject = reject;
+        }
+        
+        public void execute( final Runnable command )
+        {
+            if ( reject )
+            {
+                throw new RejectedExecutionException();
+            }
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    Transaction tx = graphDb().beginTx();
+                    try
+                    {
+                        beforeLoad.run();
+                        tx.success();
+                    }
+                    finally
+                    {
+                        tx.finish();
+                    }
+                    command.run();
+                }
+            };
+            thread.start();
+            try
+            {
+                thread.join();
+            }
+            catch ( InterruptedException e )
+            {
+                throw new RuntimeException( e );
+            }
+        }
+        
+        public void shutdown()
+        {
+        }
+        
+        public List<Runnable> shutdownNow()
+        {
+            return Collections.emptyList();
+        }
+        
+        public boolean isShutdown()
+        {
+            return false;
+        }
+        
+        public boolean isTerminated()
+        {
+            return false;
+        }
+        
+        public boolean awaitTermination( long timeout, TimeUnit unit )
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+
+/**
+ * Tests the {@link EntryCodec} and {@link EntryView} classes.
+ */
+public class TestEntryCodec extends Neo4jTest
+{
+    @Test
+    public void testRoundTrip()
+    {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put( "id", 10L );
+        values.put( "name", "n\u00e5got" );
+        values.put( "count", 3 );
+        values.put( "active", true );
+        values.put( "ratio", 0.5d );
+        
+        Node node = graphDb().createNode();
+        EntryCodec.write( node, values );
+        assertTrue( node.hasProperty( EntryCodec.KEY_PAYLOAD ) );
+        
+        EntryView view = new EntryView();
+        Map<String, Object> entry = EntryCodec.read( node, view );
+        assertSame( view, entry );
+        assertEquals( values.size(), entry.size() );
+        assertEquals( 10L, entry.get( "id" ) );
+        assertEquals( "n\u00e5got", entry.get( "name" ) );
+        assertTrue( entry.containsKey( "active" ) );
+        assertFalse( entry.containsKey( "missing" ) );
+        assertNull( entry.get( "missing" ) );
+        assertEquals( values, new HashMap<String, Object>( entry ) );
+    }
+    
+    @Test
+    public void testFallback()
+    {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put( "ids", new long[] { 1, 2 } );
+        values.put( "name", "name" );
+        
+        Node node = graphDb().createNode();
+        EntryCodec.write( node, values );
+        assertFalse( node.hasProperty( EntryCodec.KEY_PAYLOAD ) );
+        Map<String, Object> entry = EntryCodec.read( node, new EntryView() );
+        assertEquals( "name", entry.get( "name" ) );
+        assertEquals( 2, ( ( long[] ) entry.get( "ids" ) ).length );
+    }
+}
@@ -25,8 +25,14 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 import org.neo4j.graphdb.Direction;
@@ -34,6 +40,7 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipExpander;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.kernel.Traversal;
 
 public class TestGraphDbUtils extends TxNeo4jTest
@@ -102,6 +109,64 @@ public class TestGraphDbUtils extends TxNeo4jTest
 		node.delete();
 	}
 	
+	@Test
+    public void testTypedArrays()
+	{
+		Node node = graphDb().createNode();
+		assertTrue( GraphDatabaseUtil.addToLongArray( node, "longs", 5 ) );
+		assertFalse( GraphDatabaseUtil.addToLongArray( node, "longs", 5 ) );
+		assertEquals( 2, GraphDatabaseUtil.mergeIntoLongArray( node, "longs",
+			new long[] { 5, 7, 9, 7 } ) );
+		assertTrue( Arrays.equals( new long[] { 5, 7, 9 },
+			GraphDatabaseUtil.getLongArray( node, "longs" ) ) );
+		assertTrue( GraphDatabaseUtil.longArrayContains( node, "longs", 9 ) );
+		assertTrue( GraphDatabaseUtil.removeFromLongArray( node, "longs", 7 ) );
+		assertFalse( GraphDatabaseUtil.longArrayContains( node, "longs", 7 ) );
+		
+		// Values written by the reflective helpers can be read as well
+		GraphDatabaseUtil.addValueToArray( node, "ints", 3 );
+		assertTrue( GraphDatabaseUtil.intArrayContains( node, "ints", 3 ) );
+		assertTrue( GraphDatabaseUtil.addToIntArray( node, "ints", 4 ) );
+		assertCollection( GraphDatabaseUtil.getPropertyValues( node, "ints" ),
+			( Object ) 3, 4 );
+		
+		assertTrue( GraphDatabaseUtil.addToStringArray( node, "strings", "a" ) );
+		assertTrue( GraphDatabaseUtil.removeFromStringArray( node, "strings",
+			"a" ) );
+		assertFalse( node.hasProperty( "strings" ) );
+		assertEquals( 1, GraphDatabaseUtil.mergeIntoDoubleArray( node,
+			"doubles", new double[] { 0.5, 0.5 } ) );
+		node.delete();
+	}
+	
+	@Test
+    public void testSortedArraySet()
+	{
+		String key = "key_with_sorted_values";
+		Node node = graphDb().createNode();
+		PropertyArraySet<Long> values = new PropertyArraySet<Long>(
+			node, key, true );
+		assertTrue( values.add( 30L ) );
+		assertTrue( values.add( 10L ) );
+		assertTrue( values.add( 20L ) );
+		assertFalse( values.add( 10L ) );
+		assertTrue( Arrays.equals( new long[] { 10, 20, 30 },
+			( long[] ) node.getProperty( key ) ) );
+		assertTrue( values.contains( 20L ) );
+		assertFalse( values.contains( 25L ) );
+		assertEquals( 1, values.indexOf( 20L ) );
+		assertEquals( 3, values.size() );
+		assertTrue( values.remove( 20L ) );
+		assertFalse( values.remove( 20L ) );
+		assertCollection( values, 10L, 30L );
+		assertTrue( values.retainAll( Arrays.asList( 30L ) ) );
+		assertCollection( values, 30L );
+		values.remove( 30L );
+		assertTrue( values.isEmpty() );
+		assertFalse( node.hasProperty( key ) );
+		node.delete();
+	}
+	
 	@Test
     public void testSumContents() throws Exception
 	{
@@ -177,6 +242,191 @@ public class TestGraphDbUtils extends TxNeo4jTest
         }
 	}
 	
+    @Test
+    public void testRelationshipBetweenInPool() throws Exception
+    {
+        final RelationshipType type = TestRelTypes.TEST_TYPE;
+        final Node[] nodes = new Node[ 3 ];
+        // Committed from another thread since pool threads only see
+        // committed relationships
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                for ( int i = 0; i < nodes.length; i++ )
+                {
+                    nodes[ i ] = graphDb().createNode();
+                    createRelationships( nodes[ i ], type, 100 );
+                }
+                nodes[ 1 ].createRelationshipTo( nodes[ 0 ], type );
+            }
+        } );
+        RelationshipExpander expander =
+            Traversal.expanderForTypes( type, Direction.BOTH );
+        
+        // Past the threshold the second node is handed over to the pool
+        assertNotNull( GraphDatabaseUtil.getExistingRelationshipBetween(
+            nodes[ 0 ], nodes[ 1 ], expander, null, 1 ) );
+        assertNotNull( GraphDatabaseUtil.getExistingRelationshipBetween(
+            nodes[ 1 ], nodes[ 0 ], expander, null, 1 ) );
+        assertNull( GraphDatabaseUtil.getExistingRelationshipBetween(
+            nodes[ 0 ], nodes[ 2 ], expander, null, 1 ) );
+        
+        // A pool which rejects makes the calling thread do both nodes
+        ExecutorService rejecting = Executors.newSingleThreadExecutor();
+        rejecting.shutdown();
+        GraphDatabaseUtil.setRelationshipFinders( rejecting );
+        try
+        {
+            assertNotNull( GraphDatabaseUtil.getExistingRelationshipBetween(
+                nodes[ 0 ], nodes[ 1 ], expander, null, 1 ) );
+            assertNull( GraphDatabaseUtil.getExistingRelationshipBetween(
+                nodes[ 0 ], nodes[ 2 ], expander, null, 1 ) );
+        }
+        finally
+        {
+            GraphDatabaseUtil.setRelationshipFinders( null );
+        }
+        
+        for ( Node node : nodes )
+        {
+            for ( Relationship rel : node.getRelationships() )
+            {
+                Node otherNode = rel.getOtherNode( node );
+                rel.delete();
+                if ( !Arrays.asList( nodes ).contains( otherNode ) )
+                {
+                    otherNode.delete();
+                }
+            }
+            node.delete();
+        }
+    }
+    
+    @Test
+    public void testUncommittedRelationshipBetweenInPool() throws Exception
+    {
+        final RelationshipType type = TestRelTypes.TEST_TYPE;
+        final Node[] nodes = new Node[ 2 ];
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                for ( int i = 0; i < nodes.length; i++ )
+                {
+                    nodes[ i ] = graphDb().createNode();
+                    createRelationships( nodes[ i ], type, 100 );
+                }
+            }
+        } );
+        // Only visible in this transaction, not to the pool threads
+        nodes[ 0 ].createRelationshipTo( nodes[ 1 ], type );
+        RelationshipExpander expander =
+            Traversal.expanderForTypes( type, Direction.BOTH );
+        
+        assertNotNull( GraphDatabaseUtil.getExistingRelationshipBetween(
+            nodes[ 0 ], nodes[ 1 ], expander, null, 1 ) );
+        assertNotNull( GraphDatabaseUtil.getExistingRelationshipBetween(
+            nodes[ 1 ], nodes[ 0 ], expander, null, 1 ) );
+        
+        // A pool which is done before the calling thread looks at it
+        GraphDatabaseUtil.setRelationshipFinders( new FinishingExecutor() );
+        try
+        {
+            assertNotNull( GraphDatabaseUtil.getExistingRelationshipBetween(
+                nodes[ 0 ], nodes[ 1 ], expander, null, 1 ) );
+            assertNotNull( GraphDatabaseUtil.getExistingRelationshipBetween(
+                nodes[ 1 ], nodes[ 0 ], expander, null, 1 ) );
+        }
+        finally
+        {
+            GraphDatabaseUtil.setRelationshipFinders( null );
+        }
+        
+        for ( Node node : nodes )
+        {
+            for ( Relationship rel : node.getRelationships() )
+            {
+                Node otherNode = rel.getOtherNode( node );
+                rel.delete();
+                if ( !Arrays.asList( nodes ).contains( otherNode ) )
+                {
+                    otherNode.delete();
+                }
+            }
+            node.delete();
+        }
+    }
+    
+    /**
+     * Runs each task in a thread of its own and waits for it to complete
+     * before returning.
+     */
+    private static class FinishingExecutor extends AbstractExecutorService
+    {
+        public void execute( Runnable command )
+        {
+            Thread thread = new Thread( command );
+            thread.start();
+            try
+            {
+                thread.join();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException( e );
+            }
+        }
+        
+        public void shutdown()
+        {
+        }
+        
+        public List<Runnable> shutdownNow()
+        {
+            return new ArrayList<Runnable>();
+        }
+        
+        public boolean isShutdown()
+        {
+            return false;
+        }
+        
+        public boolean isTerminated()
+        {
+            return false;
+        }
+        
+        public boolean awaitTermination( long timeout, TimeUnit unit )
+        {
+            return false;
+        }
+    }
+    
+    private void inOwnTransaction( final Runnable runnable ) throws Exception
+    {
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                Transaction tx = graphDb().beginTx();
+                try
+                {
+                    runnable.run();
+                    tx.success();
+                }
+                finally
+                {
+                    tx.finish();
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+    }
+    
 //	private boolean goodOldLook( Node node1, Node node2, RelationshipType type,
 //	        Direction direction )
 //	{
@@ -20,6 +20,7 @@
 package org.neo4j.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -28,10 +29,17 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.junit.Test;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.index.impl.btree.BTree.RelTypes;
 
 public class TestIndexedSet extends TxNeo4jTest
 {
@@ -72,14 +80,377 @@ public class TestIndexedSet extends TxNeo4jTest
 		assertTrue( collection.remove( toRemoveItem ) );
 		assertTrue( strings.remove( toRemove ) );
 		assertCollectionSame( strings, collection );
+		assertFalse( collection.isEmpty() );
+		assertFalse( collection.add( findItem( collection, "Went" ) ) );
+		assertEquals( strings.size(), collection.size() );
+		
+		collection.clear();
+		assertTrue( collection.isEmpty() );
+		assertEquals( 0, collection.size() );
+		( ( SortedNodeCollection<AnItem> ) collection ).delete();
+		rootNode.delete();
+		deleteItems();
+	}
+	
+    @Test
+    public void testKeyExtractor() throws Exception
+	{
+		Node rootNode = graphDb().createNode();
+		Collection<AnItem> collection = new SortedNodeCollection<AnItem>(
+			rootNode, new NameExtractor(), AnItem.class );
+		
+		// Enough items for the tree to split a couple of levels
+		List<String> strings = new ArrayList<String>();
+		for ( int i = 0; i < 1000; i++ )
+		{
+			String string = "Item " + ( ( i * 7919 ) % 1000 );
+			strings.add( string );
+			assertTrue( collection.add( new AnItem( string ) ) );
+		}
+		strings.add( "Item 17" );
+		assertTrue( collection.add( new AnItem( "Item 17" ) ) );
+		AnItem duplicate = findItem( collection, "Item 17" );
+		assertFalse( collection.add( duplicate ) );
+		assertTrue( collection.contains( duplicate ) );
+		
+		Collections.sort( strings );
+		assertCollectionSame( strings, collection );
+		
+		for ( int i = 0; i < 1000; i += 3 )
+		{
+			String toRemove = "Item " + i;
+			assertTrue( collection.remove( findItem( collection, toRemove ) ) );
+			assertTrue( strings.remove( toRemove ) );
+		}
+		assertCollectionSame( strings, collection );
 		
 		collection.clear();
+		assertEquals( 0, collection.size() );
 		( ( SortedNodeCollection<AnItem> ) collection ).delete();
 		rootNode.delete();
+		deleteItems();
+	}
+	
+    @Test
+    public void testRangesAndCursors() throws Exception
+	{
+		Node rootNode = graphDb().createNode();
+		SortedNodeCollection<AnItem> collection =
+			new SortedNodeCollection<AnItem>( rootNode, new NameExtractor(),
+			AnItem.class );
+		List<String> strings = new ArrayList<String>();
+		for ( int i = 0; i < 500; i++ )
+		{
+			strings.add( String.format( "Item %03d", i ) );
+		}
+		for ( int i = strings.size() - 1; i >= 0; i-- )
+		{
+			collection.add( new AnItem( strings.get( i ) ) );
+		}
+		
+		assertItems( strings.subList( 0, 10 ),
+			collection.headSet( "Item 010" ).iterator() );
+		assertItems( strings.subList( 490, 500 ),
+			collection.tailSet( "Item 490" ).iterator() );
+		assertItems( strings.subList( 200, 300 ),
+			collection.subSet( "Item 200", "Item 300" ).iterator() );
+		assertItems( strings.subList( 250, 500 ),
+			collection.iterator( "Item 249x", false ) );
+		
+		// Page through the collection, forwards and backwards
+		List<String> pages = new ArrayList<String>();
+		Iterator<AnItem> page = collection.iterator( null, false );
+		while ( page.hasNext() )
+		{
+			AnItem last = null;
+			for ( int i = 0; i < 30 && page.hasNext(); i++ )
+			{
+				last = page.next();
+				pages.add( last.getName() );
+			}
+			page = collection.iteratorAfter( last, false );
+		}
+		assertEquals( strings, pages );
+		
+		AnItem last = findItem( collection, "Item 100" );
+		List<String> reversed = new ArrayList<String>(
+			strings.subList( 0, 100 ) );
+		Collections.reverse( reversed );
+		assertItems( reversed, collection.iteratorAfter( last, true ) );
+		
+		collection.clear();
+		collection.delete();
+		rootNode.delete();
+		deleteItems();
+	}
+	
+    @Test
+    public void testBulkLoad() throws Exception
+	{
+		// Set up and bulk load in threads of their own, outside of the
+		// transaction of the test, so that the batches are really committed
+		final List<String> strings = new ArrayList<String>();
+		final List<AnItem> items = new ArrayList<AnItem>();
+		final SortedNodeCollection<AnItem> collection = inOtherThread(
+			new Callable<SortedNodeCollection<AnItem>>()
+		{
+			public SortedNodeCollection<AnItem> call()
+			{
+				SortedNodeCollection<AnItem> collection =
+					new SortedNodeCollection<AnItem>( graphDb().createNode(),
+					new NameExtractor(), AnItem.class );
+				for ( int i = 0; i < 1000; i++ )
+				{
+					String string = "Item " + ( ( i * 7919 ) % 1000 );
+					strings.add( string );
+					AnItem item = new AnItem( string );
+					if ( i < 10 )
+					{
+						assertTrue( collection.add( item ) );
+					}
+					items.add( item );
+				}
+				return collection;
+			}
+		}, true );
+		
+		// Items already in the collection are merged, not duplicated
+		inOtherThread( new Callable<Object>()
+		{
+			public Object call()
+			{
+				collection.bulkLoad( items, 5 );
+				return null;
+			}
+		}, false );
+		Collections.sort( strings );
+		assertCollectionSame( strings, collection );
+		
+		// The old tree is deleted, only the 11 leaves and the root are left
+		Node anchor = treeAnchor( collection );
+		assertEquals( 12, countTreeNodes( anchor ) );
+		
+		// A tree built before a modification can't replace the tree
+		KeyTree keyTree = new KeyTree( anchor );
+		long stamp = keyTree.stamp();
+		assertTrue( collection.add( new AnItem( "Item 500" ) ) );
+		strings.add( strings.indexOf( "Item 500" ), "Item 500" );
+		try
+		{
+			keyTree.swapRoot( -1, stamp );
+			fail( "Should fail since the tree was modified" );
+		}
+		catch ( ConcurrentModificationException e )
+		{
+			// Good
+		}
+		assertCollectionSame( strings, collection );
+		
+		// Positions stay right both for bulk loaded and added entries
+		for ( int i = 0; i < strings.size(); i += 37 )
+		{
+			AnItem item = collection.get( i );
+			assertEquals( strings.get( i ), item.getName() );
+			assertEquals( i, collection.rankOf( item ) );
+		}
+		AnItem first = collection.get( 0 );
+		assertTrue( collection.remove( first ) );
+		assertEquals( -1, collection.rankOf( first ) );
+		assertEquals( strings.get( 1 ), collection.get( 0 ).getName() );
+		assertEquals( strings.get( strings.size() - 1 ),
+			collection.get( strings.size() - 2 ).getName() );
+		
+		collection.clear();
+		collection.delete();
+		collection.rootNode().delete();
+		deleteItems();
+	}
+	
+    @Test
+    public void testRemoveEmptiesLeaves() throws Exception
+	{
+		Node rootNode = graphDb().createNode();
+		SortedNodeCollection<AnItem> collection =
+			new SortedNodeCollection<AnItem>( rootNode, new NameExtractor(),
+			AnItem.class );
+		List<String> strings = new ArrayList<String>();
+		List<AnItem> items = new ArrayList<AnItem>();
+		for ( int i = 0; i < 1000; i++ )
+		{
+			String string = String.format( "Item %03d", i );
+			strings.add( string );
+			AnItem item = new AnItem( string );
+			items.add( item );
+			assertTrue( collection.add( item ) );
+		}
+		Node anchor = treeAnchor( collection );
+		assertTrue( countTreeNodes( anchor ) > 2 );
+		
+		// Removing a range in the middle empties whole leaves, which are
+		// unlinked from the leaves on both sides of them
+		for ( int i = 200; i < 800; i++ )
+		{
+			assertTrue( collection.remove( items.get( i ) ) );
+		}
+		List<String> expected = new ArrayList<String>(
+			strings.subList( 0, 200 ) );
+		expected.addAll( strings.subList( 800, 1000 ) );
+		assertCollectionSame( expected, collection );
+		List<String> reversed = new ArrayList<String>( expected );
+		Collections.reverse( reversed );
+		assertItems( reversed, collection.iterator( null, true ) );
+		assertEquals( 200, collection.rankOf( items.get( 800 ) ) );
+		assertEquals( "Item 800", collection.get( 200 ).getName() );
+		
+		// When only entries of the first leaf are left the root is
+		// collapsed into that leaf
+		for ( int i = 10; i < 1000; i++ )
+		{
+			if ( i < 200 || i >= 800 )
+			{
+				assertTrue( collection.remove( items.get( i ) ) );
+			}
+		}
+		assertCollectionSame( strings.subList( 0, 10 ), collection );
+		assertEquals( 1, countTreeNodes( anchor ) );
+		assertEquals( 5, collection.rankOf( items.get( 5 ) ) );
+		assertEquals( "Item 009", collection.get( 9 ).getName() );
+		
+		collection.clear();
+		assertEquals( 0, countTreeNodes( anchor ) );
+		collection.delete();
+		rootNode.delete();
+		deleteItems();
+	}
+	
+    @Test
+    public void testKeyExtractorMatchesComparator() throws Exception
+	{
+		// The same items, in the same order, are added to a collection
+		// ordered by a comparator and to one ordered by a key extractor
+		int count = 2000;
+		List<String> strings = new ArrayList<String>();
+		List<AnItem> items = new ArrayList<AnItem>();
+		for ( int i = 0; i < count; i++ )
+		{
+			String string = String.format( "Item %04d", ( i * 7919 ) % count );
+			strings.add( string );
+			items.add( new AnItem( string ) );
+		}
+		Collections.sort( strings );
+		
+		Node comparatorRootNode = graphDb().createNode();
+		SortedNodeCollection<AnItem> byComparator =
+			new SortedNodeCollection<AnItem>( comparatorRootNode,
+			new AnItemComparator(), AnItem.class );
+		Node extractorRootNode = graphDb().createNode();
+		SortedNodeCollection<AnItem> byExtractor =
+			new SortedNodeCollection<AnItem>( extractorRootNode,
+			new NameExtractor(), AnItem.class );
+		
+		for ( AnItem item : items )
+		{
+			assertTrue( byComparator.add( item ) );
+			assertTrue( byExtractor.add( item ) );
+		}
+		assertCollectionSame( strings, byComparator );
+		assertCollectionSame( strings, byExtractor );
+		for ( int i = 0; i < count; i += 97 )
+		{
+			AnItem item = items.get( i );
+			assertTrue( byComparator.contains( item ) );
+			assertTrue( byExtractor.contains( item ) );
+			assertFalse( byComparator.add( item ) );
+			assertFalse( byExtractor.add( item ) );
+		}
+		assertEquals( count, byComparator.size() );
+		assertEquals( count, byExtractor.size() );
+		
+		byComparator.clear();
+		byComparator.delete();
+		comparatorRootNode.delete();
+		byExtractor.clear();
+		byExtractor.delete();
+		extractorRootNode.delete();
+		deleteItems();
+	}
+	
+	private Node treeAnchor( SortedNodeCollection<AnItem> collection )
+	{
+		return collection.rootNode().getSingleRelationship(
+			RelTypes.TREE_ROOT, Direction.OUTGOING ).getEndNode();
+	}
+	
+	private int countTreeNodes( Node anchor )
+	{
+		int count = 0;
+		for ( Iterator<Relationship> rels = anchor.getRelationships(
+			KeyTree.KeyTreeRelTypes.KEY_TREE_NODE,
+			Direction.OUTGOING ).iterator(); rels.hasNext(); rels.next() )
+		{
+			count++;
+		}
+		return count;
+	}
+	
+	private <T> T inOtherThread( final Callable<T> callable,
+		final boolean inTransaction ) throws Exception
+	{
+		final List<T> result = new ArrayList<T>();
+		final List<Exception> failure = new ArrayList<Exception>();
+		Thread thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				Transaction tx = inTransaction ? graphDb().beginTx() : null;
+				try
+				{
+					result.add( callable.call() );
+					if ( tx != null )
+					{
+						tx.success();
+					}
+				}
+				catch ( Exception e )
+				{
+					failure.add( e );
+				}
+				finally
+				{
+					if ( tx != null )
+					{
+						tx.finish();
+					}
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		if ( !failure.isEmpty() )
+		{
+			throw failure.get( 0 );
+		}
+		return result.get( 0 );
+	}
+	
+	private void assertItems( List<String> expected, Iterator<AnItem> items )
+	{
+		for ( String string : expected )
+		{
+			assertTrue( items.hasNext() );
+			assertEquals( string, items.next().getName() );
+		}
+		assertFalse( items.hasNext() );
+	}
+	
+	private void deleteItems()
+	{
 		for ( Node node : AnItem.createdNodes )
 		{
 			node.delete();
 		}
+		AnItem.createdNodes.clear();
 	}
 	
     private AnItem findItem( Collection<AnItem> collection, String name )
@@ -148,4 +519,12 @@ public class TestIndexedSet extends TxNeo4jTest
 			return o1.getName().compareTo( o2.getName() );
 		}
 	}
+	
+	private static class NameExtractor implements KeyExtractor<String>
+	{
+		public String getKey( Node node )
+		{
+			return ( String ) node.getProperty( "name" );
+		}
+	}
 }
@@ -26,13 +26,16 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import org.junit.Ignore;
 import org.junit.Test;
 import org.neo4j.graphdb.DynamicRelationshipType;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Transaction;
 
@@ -105,6 +108,240 @@ public class TestNodeQueue extends Neo4jTest
 	    tx.finish();
 	}
 	
+	@Test
+	public void testSize() throws Exception
+	{
+	    Transaction tx = graphDb().beginTx();
+	    
+	    Node rootNode = graphDb().createNode();
+	    NodeQueue q = new NodeQueue( rootNode, RelTypes.TEST_QUEUE );
+	    assertEquals( 0, q.size() );
+	    for ( int i = 0; i < 10; i++ )
+	    {
+	        q.add();
+	    }
+	    assertEquals( 10, q.size() );
+	    q.remove( 3 );
+	    assertEquals( 7, q.size() );
+	    assertEquals( 7, q.remove( 20 ) );
+	    assertEquals( 0, q.size() );
+	    rootNode.delete();
+	    
+	    tx.success();
+	    tx.finish();
+	}
+	
+	@Test
+	public void testSegmented() throws Exception
+	{
+	    Transaction tx = graphDb().beginTx();
+	    
+	    Node rootNode = graphDb().createNode();
+	    NodeQueue q = new NodeQueue( rootNode, RelTypes.TEST_QUEUE, 4 );
+	    assertNull( q.peek() );
+	    for ( int i = 0; i < 10; i++ )
+	    {
+	        Node node = q.add();
+	        node.setProperty( "p", i );
+	    }
+	    assertEquals( 10, q.size() );
+	    assertEquals( 0, q.peek().getProperty( "p" ) );
+	    Node[] nodes = q.peek( 6 );
+	    assertEquals( 6, nodes.length );
+	    for ( int i = 0; i < 6; i++ )
+	    {
+	        assertEquals( i, nodes[ i ].getProperty( "p" ) );
+	    }
+	    
+	    // Removes the first block and part of the second
+	    q.remove( 5 );
+	    assertEquals( 5, q.size() );
+	    assertEquals( 5, q.peek().getProperty( "p" ) );
+	    nodes = q.peek( 20 );
+	    assertEquals( 5, nodes.length );
+	    for ( int i = 0; i < 5; i++ )
+	    {
+	        assertEquals( i + 5, nodes[ i ].getProperty( "p" ) );
+	    }
+	    q.add().setProperty( "p", 10 );
+	    assertEquals( 10, q.peek( 20 )[ 5 ].getProperty( "p" ) );
+	    
+	    try
+	    {
+	        new NodeQueue( rootNode, RelTypes.TEST_QUEUE, 8 );
+	        fail( "Shouldn't be able to open with another block size" );
+	    }
+	    catch ( IllegalArgumentException e ) { // Good
+	    }
+	    
+	    assertEquals( 6, q.remove( 20 ) );
+	    assertNull( q.peek() );
+	    rootNode.delete();
+	    
+	    tx.success();
+	    tx.finish();
+	}
+	
+	@Test
+	public void testReopenWithOtherBlockSize() throws Exception
+	{
+	    Transaction tx = graphDb().beginTx();
+	    
+	    Node rootNode = graphDb().createNode();
+	    NodeQueue q = new NodeQueue( rootNode, RelTypes.TEST_QUEUE );
+	    for ( int i = 0; i < 3; i++ )
+	    {
+	        q.add().setProperty( "p", i );
+	    }
+	    assertReopenFails( rootNode, 4 );
+	    
+	    // A queue from before the block size was stored is plain
+	    rootNode.removeProperty( "queue_block_size" );
+	    assertReopenFails( rootNode, 4 );
+	    assertEquals( 3, new NodeQueue( rootNode, RelTypes.TEST_QUEUE ).size() );
+	    
+	    // The stored block size is kept after the queue has been emptied
+	    q.add();
+	    assertEquals( 4, q.remove( 10 ) );
+	    assertReopenFails( rootNode, 4 );
+	    rootNode.delete();
+	    
+	    // Until something is added the block size isn't decided
+	    rootNode = graphDb().createNode();
+	    new NodeQueue( rootNode, RelTypes.TEST_QUEUE );
+	    q = new NodeQueue( rootNode, RelTypes.TEST_QUEUE, 4 );
+	    q.add();
+	    assertReopenFails( rootNode, 1 );
+	    assertEquals( 1, q.remove( 10 ) );
+	    rootNode.delete();
+	    
+	    tx.success();
+	    tx.finish();
+	}
+	
+	private void assertReopenFails( Node rootNode, int blockSize )
+	{
+	    try
+	    {
+	        new NodeQueue( rootNode, RelTypes.TEST_QUEUE, blockSize );
+	        fail( "Shouldn't be able to open with another block size" );
+	    }
+	    catch ( IllegalArgumentException e )
+	    { // Good
+	    }
+	}
+	
+	@Test
+	public void testStriped() throws Exception
+	{
+	    Transaction tx = graphDb().beginTx();
+	    
+	    Node rootNode = graphDb().createNode();
+	    NodeQueue q = new NodeQueue( rootNode, RelTypes.TEST_QUEUE, 2, 3 );
+	    for ( int i = 0; i < 9; i++ )
+	    {
+	        Node node = q.add( i % 3 );
+	        node.setProperty( "p", i );
+	    }
+	    assertEquals( 9, q.size() );
+	    
+	    // Each stripe keeps its own order
+	    int[] lastSeen = new int[] { -1, -1, -1 };
+	    for ( Node node : q.peek( 20 ) )
+	    {
+	        int p = ( Integer ) node.getProperty( "p" );
+	        assertTrue( p > lastSeen[ p % 3 ] );
+	        lastSeen[ p % 3 ] = p;
+	    }
+	    
+	    // Removes across a full block into a partial one
+	    Node[] all = q.peek( 20 );
+	    assertEquals( 4, q.remove( 4 ) );
+	    assertEquals( 5, q.size() );
+	    Node added = q.add( "a" );
+	    assertEquals( 6, q.size() );
+	    Node[] remaining = q.peek( 20 );
+	    assertEquals( 6, remaining.length );
+	    List<Node> others = new ArrayList<Node>( Arrays.asList( remaining ) );
+	    assertTrue( others.remove( added ) );
+	    assertEquals( Arrays.asList( all ).subList( 4, 9 ), others );
+	    
+	    // Only the peeked entries are removed, not one which is added
+	    // after the peek to a sub-queue which was empty then
+	    Node[] peeked = q.peek( 20 );
+	    Node late = q.add( 0 );
+	    assertEquals( 6, q.remove( peeked ) );
+	    assertEquals( 1, q.size() );
+	    assertEquals( late, q.peek() );
+	    assertEquals( 1, q.remove( 20 ) );
+	    assertEquals( 0, q.size() );
+	    assertNull( q.peek() );
+	    
+	    for ( Relationship rel : rootNode.getRelationships() )
+	    {
+	        Node stripeNode = rel.getOtherNode( rootNode );
+	        rel.delete();
+	        stripeNode.delete();
+	    }
+	    rootNode.delete();
+	    
+	    tx.success();
+	    tx.finish();
+	}
+	
+	@Test
+	public void testStripedPeekDoesNotBlockProducers() throws Exception
+	{
+	    final NodeQueue[] queue = new NodeQueue[ 1 ];
+	    Thread creator = new Thread()
+	    {
+	        @Override
+	        public void run()
+	        {
+	            Transaction tx = graphDb().beginTx();
+	            queue[ 0 ] = new NodeQueue( graphDb().createNode(),
+	                RelTypes.TEST_QUEUE, 1, 2 );
+	            queue[ 0 ].add( 0 );
+	            queue[ 0 ].add( 1 );
+	            tx.success();
+	            tx.finish();
+	        }
+	    };
+	    creator.start();
+	    creator.join();
+	    NodeQueue q = queue[ 0 ];
+	    
+	    // The consumer peeks, and holds on to its transaction while a
+	    // producer adds to each sub-queue
+	    assertEquals( 2, q.peek( 10 ).length );
+	    Thread producer = new Thread()
+	    {
+	        @Override
+	        public void run()
+	        {
+	            Transaction tx = graphDb().beginTx();
+	            queue[ 0 ].add( 0 );
+	            queue[ 0 ].add( 1 );
+	            tx.success();
+	            tx.finish();
+	        }
+	    };
+	    producer.start();
+	    producer.join( 5000 );
+	    assertFalse( producer.isAlive() );
+	    
+	    assertEquals( 4, q.size() );
+	    assertEquals( 4, q.remove( 10 ) );
+	    Node rootNode = q.getRootNode();
+	    for ( Relationship rel : rootNode.getRelationships() )
+	    {
+	        Node stripeNode = rel.getOtherNode( rootNode );
+	        rel.delete();
+	        stripeNode.delete();
+	    }
+	    rootNode.delete();
+	}
+	
 	@Test
     public void testFixedLengthList() throws Exception
 	{
@@ -0,0 +1,421 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.util.TestTransactionNodeQueue.inOwnTransaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * Tests the {@link NodeQueueWorker} class.
+ */
+public class TestNodeQueueWorker extends Neo4jTest
+{
+    private static final String[] KEYS = { "a", "b", "c", "d" };
+    
+    @Test
+    public void testParallelOrderPerKey() throws Exception
+    {
+        Node root = createRoot();
+        RecordingWorker worker = newParallelWorker( root );
+        worker.startUp();
+        addEntries( worker, 10 );
+        worker.awaitHandled( KEYS.length * 10 );
+        worker.shutDown();
+        
+        assertOrderPerKey( worker, 10 );
+        deleteGraph( root );
+    }
+    
+    @Test
+    public void testParallelOrderPerKeyWithFailures() throws Exception
+    {
+        Node root = createRoot();
+        RecordingWorker worker = newParallelWorker( root );
+        // a2 succeeds when retried, b5 is given up on
+        worker.failures.put( "a2", 1 );
+        worker.failures.put( "b5", Integer.MAX_VALUE );
+        worker.startUp();
+        addEntries( worker, 10 );
+        worker.awaitHandled( KEYS.length * 10 - 1 );
+        worker.shutDown();
+        
+        assertOrderPerKey( worker, 10 );
+        assertEquals( 1, worker.getRetryQueue().getDeadLetterQueue().size() );
+        assertEquals( "b", worker.getRetryQueue().getDeadLetterQueue().peek().
+            getProperty( "key" ) );
+        assertEquals( 5, worker.getRetryQueue().getDeadLetterQueue().peek().
+            getProperty( "seq" ) );
+        assertTrue( worker.getRetryQueue().peekDue( 10 ).isEmpty() );
+        Node retryRoot = root.getSingleRelationship(
+            RetryQueue.RetryRelTypes.RETRY_QUEUE, Direction.OUTGOING ).
+            getEndNode();
+        assertTrue( !retryRoot.hasRelationship(
+            RetryQueue.RetryRelTypes.BLOCKED_KEY ) );
+        deleteGraph( root );
+    }
+    
+    @Test
+    public void testWriteBehindBuffer() throws Exception
+    {
+        Node root = createRoot();
+        final RecordingWorker worker = new RecordingWorker( root, 8 );
+        worker.setWriteBehindBuffer( 3 );
+        
+        // Rolled back, so neither written nor buffered
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                worker.add( entry( "a", 0 ) );
+            }
+        }, false );
+        assertEquals( 0, worker.getQueue().size() );
+        assertEquals( 0, worker.getBufferedCount() );
+        
+        // Written in the transaction, but not until right before it commits
+        final int[] sizeBeforeCommit = new int[ 1 ];
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                for ( int i = 0; i < 5; i++ )
+                {
+                    worker.add( entry( "a", i ) );
+                }
+                sizeBeforeCommit[ 0 ] = worker.getQueue().size();
+            }
+        }, true );
+        assertEquals( 0, sizeBeforeCommit[ 0 ] );
+        assertEquals( 5, worker.getQueue().size() );
+        // Only as many as the capacity stay in the buffer
+        assertEquals( 3, worker.getBufferedCount() );
+        
+        // The worker uses the buffered values, not the ones in the graph
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                worker.getQueue().peek().setProperty( "seq", 99 );
+            }
+        }, true );
+        worker.startUp();
+        worker.awaitHandled( 5 );
+        worker.shutDown();
+        assertEquals( list( 0, 1, 2, 3, 4 ), worker.getHandled( "a" ) );
+        assertEquals( 0, worker.getBufferedCount() );
+        assertEquals( 0, worker.getQueue().size() );
+        deleteGraph( root );
+    }
+    
+    @Test
+    public void testWriteBehindBufferAfterRestart() throws Exception
+    {
+        Node root = createRoot();
+        final RecordingWorker worker = new RecordingWorker( root, 8 );
+        worker.setWriteBehindBuffer( 10 );
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                for ( int i = 0; i < 3; i++ )
+                {
+                    worker.add( entry( "a", i ) );
+                }
+            }
+        }, true );
+        assertEquals( 3, worker.getBufferedCount() );
+        
+        // The buffer of the first worker is gone, so the entries are read
+        // from the graph
+        RecordingWorker restarted = new RecordingWorker( root, 8 );
+        restarted.setWriteBehindBuffer( 10 );
+        restarted.startUp();
+        restarted.awaitHandled( 3 );
+        restarted.shutDown();
+        assertEquals( list( 0, 1, 2 ), restarted.getHandled( "a" ) );
+        assertEquals( 0, restarted.getQueue().size() );
+        deleteGraph( root );
+    }
+    
+    @Test
+    public void testCommitWakesUpIdleWorker() throws Exception
+    {
+        Node root = createRoot();
+        RecordingWorker worker = new RecordingWorker( root, 8 );
+        // Way longer than awaitHandled waits
+        worker.maxIdleTime = 60000;
+        worker.startUp();
+        Thread.sleep( 200 );
+        addEntries( worker, 3 );
+        worker.awaitHandled( KEYS.length * 3 );
+        worker.shutDown();
+        assertOrderPerKey( worker, 3 );
+        deleteGraph( root );
+    }
+    
+    @Test
+    public void testPauseAndResume() throws Exception
+    {
+        Node root = createRoot();
+        RecordingWorker worker = new RecordingWorker( root, 8 );
+        worker.maxIdleTime = 60000;
+        worker.startUp();
+        worker.setPaused( true );
+        assertTrue( worker.isPaused() );
+        
+        // The commit doesn't wake up a paused worker
+        addEntries( worker, 3 );
+        Thread.sleep( 200 );
+        assertEquals( 0, worker.getHandledCount() );
+        
+        worker.setPaused( false );
+        assertTrue( !worker.isPaused() );
+        worker.awaitHandled( KEYS.length * 3 );
+        worker.shutDown();
+        assertOrderPerKey( worker, 3 );
+        deleteGraph( root );
+    }
+    
+    @Test
+    public void testShutDownWhilePaused() throws Exception
+    {
+        Node root = createRoot();
+        RecordingWorker worker = new RecordingWorker( root, 8 );
+        worker.maxIdleTime = 60000;
+        worker.startUp();
+        worker.setPaused( true );
+        worker.shutDown();
+        assertTrue( !worker.isAlive() );
+        deleteGraph( root );
+    }
+    
+    private RecordingWorker newParallelWorker( Node root )
+    {
+        RecordingWorker worker = new RecordingWorker( root, 8 );
+        worker.setParallelism( 3, "key" );
+        worker.setRetryPolicy( new RetryPolicy()
+        {
+            public long getRetryDelay( int failedAttempts, Exception exception )
+            {
+                return failedAttempts < 3 ? 0 : -1;
+            }
+        } );
+        return worker;
+    }
+    
+    /**
+     * Adds {@code count} entries per key in one transaction, with the
+     * keys interleaved.
+     */
+    private void addEntries( final NodeQueueWorker worker, final int count )
+        throws Exception
+    {
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                for ( int i = 0; i < count; i++ )
+                {
+                    for ( String key : KEYS )
+                    {
+                        worker.add( entry( key, i ) );
+                    }
+                }
+            }
+        }, true );
+    }
+    
+    private void assertOrderPerKey( RecordingWorker worker, int count )
+    {
+        for ( String key : KEYS )
+        {
+            List<Integer> expected = new ArrayList<Integer>();
+            for ( int i = 0; i < count; i++ )
+            {
+                if ( !worker.failures.containsKey( key + i ) ||
+                    worker.failures.get( key + i ) < Integer.MAX_VALUE )
+                {
+                    expected.add( i );
+                }
+            }
+            assertEquals( key, expected, worker.getHandled( key ) );
+        }
+    }
+    
+    private static List<Integer> list( Integer... values )
+    {
+        return Arrays.asList( values );
+    }
+    
+    static Map<String, Object> entry( String key, int seq )
+    {
+        Map<String, Object> entry = new HashMap<String, Object>();
+        entry.put( "key", key );
+        entry.put( "seq", seq );
+        return entry;
+    }
+    
+    static Node createRoot() throws Exception
+    {
+        final Node[] root = new Node[ 1 ];
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                root[ 0 ] = graphDb().createNode();
+            }
+        }, true );
+        return root[ 0 ];
+    }
+    
+    /**
+     * Deletes the given node and every node connected to it.
+     */
+    static void deleteGraph( Node root )
+    {
+        Set<Node> nodes = new HashSet<Node>();
+        LinkedList<Node> toVisit = new LinkedList<Node>();
+        toVisit.add( root );
+        while ( !toVisit.isEmpty() )
+        {
+            Node node = toVisit.removeFirst();
+            if ( nodes.add( node ) )
+            {
+                for ( Relationship rel : node.getRelationships() )
+                {
+                    toVisit.add( rel.getOtherNode( node ) );
+                }
+            }
+        }
+        for ( Node node : nodes )
+        {
+            for ( Relationship rel : node.getRelationships() )
+            {
+                rel.delete();
+            }
+        }
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+    
+    /**
+     * Records the sequence numbers of the entries it handles, per key. An
+     * entry fails as many times as {@link #failures} says.
+     */
+    static class RecordingWorker extends NodeQueueWorker
+    {
+        final Map<String, Integer> failures = new HashMap<String, Integer>();
+        private final Map<String, Integer> failed =
+            new HashMap<String, Integer>();
+        private final Map<String, List<Integer>> handled =
+            new HashMap<String, List<Integer>>();
+        private int handledCount;
+        long maxIdleTime = 1000;
+        
+        RecordingWorker( Node root, int batchSize )
+        {
+            super( graphDb(), new NodeQueue( root, TestRelTypes.TEST_TYPE ),
+                batchSize );
+        }
+        
+        @Override
+        protected long getMaxIdleTime()
+        {
+            return maxIdleTime;
+        }
+        
+        @Override
+        protected void handleEntry( Map<String, Object> entry )
+        {
+            String key = ( String ) entry.get( "key" );
+            int seq = ( Integer ) entry.get( "seq" );
+            synchronized ( handled )
+            {
+                Integer failuresLeft = failures.get( key + seq );
+                Integer failedSoFar = failed.get( key + seq );
+                int failedTimes = failedSoFar != null ? failedSoFar : 0;
+                if ( failuresLeft != null && failedTimes < failuresLeft )
+                {
+                    failed.put( key + seq, failedTimes + 1 );
+                    throw new RuntimeException( "Failing " + key + seq );
+                }
+                List<Integer> seqs = handled.get( key );
+                if ( seqs == null )
+                {
+                    seqs = new ArrayList<Integer>();
+                    handled.put( key, seqs );
+                }
+                seqs.add( seq );
+                handledCount++;
+                handled.notifyAll();
+            }
+        }
+        
+        List<Integer> getHandled( String key )
+        {
+            synchronized ( handled )
+            {
+                Collection<Integer> seqs = handled.get( key );
+                return seqs != null ? new ArrayList<Integer>( seqs ) :
+                    new ArrayList<Integer>();
+            }
+        }
+        
+        int getHandledCount()
+        {
+            synchronized ( handled )
+            {
+                return handledCount;
+            }
+        }
+        
+        void awaitHandled( int count ) throws InterruptedException
+        {
+            long end = System.currentTimeMillis() + 10000;
+            synchronized ( handled )
+            {
+                while ( handledCount < count &&
+                    System.currentTimeMillis() < end )
+                {
+                    handled.wait( 100 );
+                }
+                assertEquals( count, handledCount );
+            }
+        }
+    }
+}
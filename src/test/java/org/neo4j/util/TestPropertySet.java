@@ -127,6 +127,29 @@ public class TestPropertySet extends Neo4jTest
 		node.delete();
 	}
 	
+    @Test
+    public void testCachedTokens()
+    {
+        Node node = graphDb().createNode();
+        Collection<Integer> set = new TestSet( node, "ids" );
+        set.add( 1 );
+        set.add( 2 );
+        assertTrue( new TestSet( node, "ids" ).contains( 2 ) );
+        
+        node.setProperty( "ids", "3|4|" );
+        assertEquals( 2, set.size() );
+        assertTrue( set.contains( 3 ) );
+        assertTrue( !set.contains( 1 ) );
+        
+        Iterator<Integer> iterator = set.iterator();
+        iterator.next();
+        iterator.remove();
+        assertEquals( 1, new TestSet( node, "ids" ).size() );
+        set.clear();
+        assertTrue( set.isEmpty() );
+        node.delete();
+    }
+    
 	private static class TestSet extends PropertySet<Integer>
 	{
 		TestSet( Node node, String key )
@@ -23,16 +23,19 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.neo4j.util.TestTransactionNodeQueue.inOwnTransaction;
 
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
 
 /**
  * Tests the relationship sets.
@@ -186,6 +189,225 @@ public class TestRelationshipSet extends Neo4jTest
         node6.delete();
 	}
 	
+    @Test
+    public void testBulkOperations() throws Exception
+    {
+        Node node = graphDb().createNode();
+        Collection<Node> collection = new NodeRelationshipSet(
+            node, TestRelTypes.TEST_TYPE );
+        Node node1 = graphDb().createNode();
+        Node node2 = graphDb().createNode();
+        Node node3 = graphDb().createNode();
+        Node node4 = graphDb().createNode();
+        
+        assertTrue( collection.addAll( Arrays.asList( node1, node2, node3 ) ) );
+        assertTrue( collection.addAll( Arrays.asList( node3, node4 ) ) );
+        assertTrue( !collection.addAll( Arrays.asList( node1, node4 ) ) );
+        assertEquals( 4, collection.size() );
+        
+        assertTrue( collection.removeAll( Arrays.asList( node3, node4 ) ) );
+        assertEquals( 2, collection.size() );
+        assertTrue( !collection.contains( node3 ) );
+        assertTrue( !collection.removeAll( Arrays.asList( node3, node4 ) ) );
+        
+        assertTrue( collection.retainAll( Arrays.asList( node2, node3 ) ) );
+        assertEquals( 1, collection.size() );
+        assertTrue( collection.contains( node2 ) );
+        assertTrue( !collection.retainAll( Arrays.asList( node2 ) ) );
+        
+        collection.clear();
+        
+        node.delete();
+        node1.delete();
+        node2.delete();
+        node3.delete();
+        node4.delete();
+    }
+    
+    @Test
+    public void testMembershipIndex() throws Exception
+    {
+        Node node = graphDb().createNode();
+        NodeRelationshipSet collection = new NodeRelationshipSet(
+            node, TestRelTypes.TEST_TYPE );
+        Node node1 = graphDb().createNode();
+        Node node2 = graphDb().createNode();
+        Node node3 = graphDb().createNode();
+        collection.add( node1 );
+        
+        collection.enableMembershipIndex( 4 );
+        assertTrue( collection.hasMembershipIndex() );
+        assertTrue( collection.contains( node1 ) );
+        assertTrue( !collection.contains( node2 ) );
+        assertTrue( collection.add( node2 ) );
+        assertTrue( !collection.add( node2 ) );
+        assertTrue( collection.contains( node2 ) );
+        assertTrue( collection.remove( node1 ) );
+        assertTrue( !collection.contains( node1 ) );
+        assertTrue( !collection.remove( node3 ) );
+        assertEquals( 1, collection.size() );
+        
+        // Several members per bucket, added in descending id order so that
+        // they're inserted before the ones already in their buckets
+        Node[] more = new Node[ 20 ];
+        for ( int i = 0; i < more.length; i++ )
+        {
+            more[ i ] = graphDb().createNode();
+        }
+        for ( int i = more.length - 1; i >= 0; i-- )
+        {
+            assertTrue( collection.add( more[ i ] ) );
+        }
+        for ( int i = 0; i < more.length; i += 2 )
+        {
+            assertTrue( collection.remove( more[ i ] ) );
+        }
+        for ( int i = 0; i < more.length; i++ )
+        {
+            assertEquals( i % 2 == 1, collection.contains( more[ i ] ) );
+        }
+        assertEquals( 11, collection.size() );
+        
+        collection.clear();
+        assertTrue( !collection.contains( node2 ) );
+        collection.disableMembershipIndex();
+        assertTrue( !collection.hasMembershipIndex() );
+        
+        node.delete();
+        node1.delete();
+        node2.delete();
+        node3.delete();
+        for ( Node moreNode : more )
+        {
+            moreNode.delete();
+        }
+    }
+    
+    @Test
+    public void testMembershipIndexConcurrentRemoveAndAdd() throws Exception
+    {
+        final Node[] nodes = new Node[ 3 ];
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                for ( int i = 0; i < nodes.length; i++ )
+                {
+                    nodes[ i ] = graphDb().createNode();
+                }
+                NodeRelationshipSet collection = new NodeRelationshipSet(
+                    nodes[ 0 ], TestRelTypes.TEST_TYPE );
+                // One bucket, so that both members end up in it
+                collection.enableMembershipIndex( 1 );
+                collection.add( nodes[ 1 ] );
+            }
+        }, true );
+        final NodeRelationshipSet collection = new NodeRelationshipSet(
+            nodes[ 0 ], TestRelTypes.TEST_TYPE );
+        
+        // One transaction adds a member and holds on to the bucket lock
+        // while another one removes a member from the same bucket
+        final CountDownLatch added = new CountDownLatch( 1 );
+        Thread adder = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                Transaction tx = graphDb().beginTx();
+                try
+                {
+                    collection.add( nodes[ 2 ] );
+                    added.countDown();
+                    Thread.sleep( 200 );
+                    tx.success();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.interrupted();
+                }
+                finally
+                {
+                    tx.finish();
+                }
+            }
+        };
+        adder.start();
+        added.await();
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                collection.remove( nodes[ 1 ] );
+            }
+        }, true );
+        adder.join();
+        
+        assertTrue( !collection.contains( nodes[ 1 ] ) );
+        assertTrue( collection.contains( nodes[ 2 ] ) );
+        assertTrue( !collection.add( nodes[ 2 ] ) );
+        assertEquals( 1, collection.size() );
+        
+        collection.clear();
+        collection.disableMembershipIndex();
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+    
+    @Test
+    public void testCountedSize() throws Exception
+    {
+        Node node = graphDb().createNode();
+        NodeRelationshipSet collection = new NodeRelationshipSet(
+            node, TestRelTypes.TEST_TYPE );
+        Node node1 = graphDb().createNode();
+        Node node2 = graphDb().createNode();
+        collection.add( node1 );
+        
+        collection.enableCountedSize();
+        assertTrue( collection.hasCountedSize() );
+        assertEquals( 1, collection.size() );
+        collection.add( node2 );
+        collection.add( node2 );
+        assertEquals( 2, collection.size() );
+        collection.remove( node1 );
+        assertEquals( 1, collection.size() );
+        assertTrue( !collection.isEmpty() );
+        collection.clear();
+        assertEquals( 0, collection.size() );
+        assertTrue( collection.isEmpty() );
+        collection.disableCountedSize();
+        
+        node.delete();
+        node1.delete();
+        node2.delete();
+    }
+    
+    @Test
+    public void testIndexedStringSet() throws Exception
+    {
+        Node node = graphDb().createNode();
+        GraphDbStringSet set = new GraphDbStringSet( node,
+            TestRelTypes.TEST_TYPE, true );
+        assertTrue( !set.contains( "a" ) );
+        assertTrue( set.add( "a" ) );
+        assertTrue( set.hasMembershipIndex() );
+        assertTrue( !set.add( "a" ) );
+        assertTrue( set.addAll( Arrays.asList( "b", "c" ) ) );
+        assertEquals( 3, set.size() );
+        assertTrue( set.contains( "b" ) );
+        assertTrue( set.remove( "a" ) );
+        assertTrue( !set.contains( "a" ) );
+        assertTrue( set.retainAll( Arrays.asList( "c" ) ) );
+        assertEquals( 1, set.size() );
+        assertTrue( set.contains( "c" ) );
+        
+        set.clear();
+        set.disableMembershipIndex();
+        node.delete();
+    }
+    
 	/**
 	 * Tests so that all collection implementations can manage their own
 	 * transactions.
@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * Tests the {@link RetryQueue} and {@link ExponentialBackoffRetryPolicy}
+ * classes.
+ */
+public class TestRetryQueue extends Neo4jTest
+{
+    @Test
+    public void testBackoff()
+    {
+        RetryPolicy policy = new ExponentialBackoffRetryPolicy( 5, 100, 300 );
+        for ( int i = 0; i < 10; i++ )
+        {
+            long delay = policy.getRetryDelay( 1, null );
+            assertTrue( delay >= 50 && delay <= 100 );
+            delay = policy.getRetryDelay( 2, null );
+            assertTrue( delay >= 100 && delay <= 200 );
+            delay = policy.getRetryDelay( 4, null );
+            assertTrue( delay >= 150 && delay <= 300 );
+        }
+        assertTrue( policy.getRetryDelay( 5, null ) < 0 );
+    }
+    
+    @Test
+    public void testRetryAndDeadLetter()
+    {
+        Node rootNode = graphDb().createNode();
+        RetryQueue queue = new RetryQueue( rootNode, new RetryPolicy()
+        {
+            public long getRetryDelay( int failedAttempts,
+                Exception exception )
+            {
+                return failedAttempts == 1 ? 0 :
+                    failedAttempts == 2 ? 60000 : -1;
+            }
+        } );
+        assertTrue( queue.peekDue( 10 ).isEmpty() );
+        assertNull( queue.getDeadLetterQueue() );
+        
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put( "key", "value" );
+        assertTrue( queue.failed( values, 1, new RuntimeException() ) );
+        assertTrue( queue.failed( values, 2, new RuntimeException() ) );
+        assertTrue( !queue.failed( values, 3, new RuntimeException() ) );
+        
+        // Only the first one is due
+        List<RetryQueue.Entry> entries = queue.peekDue( 10 );
+        assertEquals( 1, entries.size() );
+        assertEquals( values, entries.get( 0 ).getValues() );
+        assertEquals( 1, entries.get( 0 ).getFailedAttempts() );
+        queue.remove( entries );
+        assertTrue( queue.peekDue( 10 ).isEmpty() );
+        
+        queue.addDeadLetter( values, new RuntimeException( "Failed" ) );
+        assertEquals( 1, queue.getDeadLetterQueue().size() );
+        assertEquals( "value",
+            queue.getDeadLetterQueue().peek().getProperty( "key" ) );
+    }
+    
+    @Test
+    public void testDueEntryNotBlockedByLaterOne()
+    {
+        Node rootNode = graphDb().createNode();
+        RetryQueue queue = new RetryQueue( rootNode, new RetryPolicy()
+        {
+            public long getRetryDelay( int failedAttempts,
+                Exception exception )
+            {
+                return failedAttempts == 1 ? 60000 : 0;
+            }
+        } );
+        
+        // The first entry waits a minute, the second one is due at once
+        Map<String, Object> first = new HashMap<String, Object>();
+        first.put( "key", "first" );
+        Map<String, Object> second = new HashMap<String, Object>();
+        second.put( "key", "second" );
+        assertTrue( queue.failed( first, 1, new RuntimeException() ) );
+        assertTrue( queue.failed( second, 2, new RuntimeException() ) );
+        
+        List<RetryQueue.Entry> entries = queue.peekDue( 10 );
+        assertEquals( 1, entries.size() );
+        assertEquals( second, entries.get( 0 ).getValues() );
+        assertEquals( 2, entries.get( 0 ).getFailedAttempts() );
+        queue.remove( entries );
+        assertTrue( queue.peekDue( 10 ).isEmpty() );
+        
+        // Removing an entry again doesn't do anything
+        queue.remove( entries );
+        
+        Node queueRootNode = rootNode.getSingleRelationship(
+            RetryQueue.RetryRelTypes.RETRY_QUEUE, Direction.OUTGOING ).
+            getEndNode();
+        Relationship rel = queueRootNode.getSingleRelationship(
+            RetryQueue.RetryRelTypes.QUEUE_ENTRY, Direction.OUTGOING );
+        assertEquals( "first", rel.getEndNode().getProperty( "key" ) );
+        
+        new KeyTree( queueRootNode ).delete();
+        Node entryNode = rel.getEndNode();
+        rel.delete();
+        entryNode.delete();
+        queueRootNode.getSingleRelationship(
+            RetryQueue.RetryRelTypes.RETRY_QUEUE, Direction.INCOMING ).delete();
+        queueRootNode.delete();
+        rootNode.delete();
+    }
+    
+    @Test
+    public void testParkBehindWaitingEntry()
+    {
+        Node rootNode = graphDb().createNode();
+        RetryQueue queue = new RetryQueue( rootNode, new RetryPolicy()
+        {
+            public long getRetryDelay( int failedAttempts,
+                Exception exception )
+            {
+                return 0;
+            }
+        }, "key" );
+        Map<String, Object> first = TestNodeQueueWorker.entry( "a", 1 );
+        Map<String, Object> second = TestNodeQueueWorker.entry( "a", 2 );
+        Map<String, Object> other = TestNodeQueueWorker.entry( "b", 1 );
+        
+        // Nothing is waiting, so nothing is parked
+        assertTrue( !queue.park( first ) );
+        assertTrue( queue.failed( first, 1, new RuntimeException() ) );
+        assertTrue( queue.park( second ) );
+        assertTrue( !queue.park( other ) );
+        
+        // The parked entry isn't due until the one before it is released
+        List<RetryQueue.Entry> entries = queue.peekDue( 10 );
+        assertEquals( 1, entries.size() );
+        assertEquals( first, entries.get( 0 ).getValues() );
+        queue.remove( entries );
+        queue.release( first );
+        entries = queue.peekDue( 10 );
+        assertEquals( 1, entries.size() );
+        assertEquals( second, entries.get( 0 ).getValues() );
+        assertEquals( 0, entries.get( 0 ).getFailedAttempts() );
+        
+        // Still blocked by the entry which was parked
+        Map<String, Object> third = TestNodeQueueWorker.entry( "a", 3 );
+        assertTrue( queue.park( third ) );
+        queue.remove( entries );
+        queue.release( second );
+        entries = queue.peekDue( 10 );
+        assertEquals( third, entries.get( 0 ).getValues() );
+        queue.remove( entries );
+        queue.release( third );
+        assertTrue( !queue.park( first ) );
+        
+        TestNodeQueueWorker.deleteGraph( rootNode );
+    }
+}
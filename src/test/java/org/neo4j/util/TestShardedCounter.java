@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+
+/**
+ * Tests the {@link ShardedCounter} and {@link CounterAggregator} classes.
+ */
+public class TestShardedCounter extends Neo4jTest
+{
+    @Test
+    public void testCounter()
+    {
+        Node node = graphDb().createNode();
+        ShardedCounter counter = new ShardedCounter( node, "views", 4 );
+        assertEquals( 0, counter.get() );
+        counter.increment();
+        counter.add( Integer.MAX_VALUE );
+        assertEquals( Integer.MAX_VALUE + 1L, counter.get() );
+        
+        counter.decrement();
+        assertEquals( ( long ) Integer.MAX_VALUE, counter.get() );
+    }
+    
+    @Test
+    public void testAggregator()
+    {
+        Node node = graphDb().createNode();
+        ShardedCounter counter = new ShardedCounter( node, "views" );
+        CounterAggregator aggregator =
+            new CounterAggregator( graphDb(), counter, 1000 );
+        aggregator.increment();
+        aggregator.add( 10 );
+        assertEquals( 0, counter.get() );
+        assertEquals( 11, aggregator.get() );
+        aggregator.flush();
+        assertEquals( 11, counter.get() );
+        assertEquals( 11, aggregator.get() );
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.util.TransactionNodeQueue.TxQueue;
+
+/**
+ * Tests the {@link TransactionNodeQueue} class.
+ */
+public class TestTransactionNodeQueue extends Neo4jTest
+{
+    @Test
+    public void testRegistryPerRoot() throws Exception
+    {
+        final Node[] roots = new Node[ 2 ];
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                roots[ 0 ] = graphDb().createNode();
+                roots[ 1 ] = graphDb().createNode();
+            }
+        }, true );
+        
+        // Queues are registered when their transaction commits...
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                new TransactionNodeQueue( roots[ 0 ] ).add( 1, entry( 1 ) );
+            }
+        }, true );
+        // ...but not if it rolls back
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                new TransactionNodeQueue( roots[ 0 ] ).add( 2, entry( 2 ) );
+            }
+        }, false );
+        
+        // Other instances for the same root share the registry
+        Map<Integer, TxQueue> queues =
+            new TransactionNodeQueue( roots[ 0 ] ).getQueues();
+        assertEquals( Collections.singleton( 1 ), queues.keySet() );
+        assertTrue( new TransactionNodeQueue( roots[ 1 ] ).getQueues().isEmpty() );
+        
+        final TxQueue queue = queues.get( 1 );
+        assertEquals( 1, queue.peek().get( "value" ) );
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                queue.remove();
+            }
+        }, true );
+        assertNull( queue.peek( 1 ) );
+        assertTrue( new TransactionNodeQueue( roots[ 0 ] ).getQueues().isEmpty() );
+        
+        deleteQueues( roots );
+    }
+    
+    @Test
+    public void testRemoveRolledBack() throws Exception
+    {
+        final Node[] roots = new Node[ 1 ];
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                roots[ 0 ] = graphDb().createNode();
+                new TransactionNodeQueue( roots[ 0 ] ).add( 1, entry( 1 ) );
+            }
+        }, true );
+        
+        // Emptied in a transaction which rolls back, so it's still there
+        final TxQueue queue =
+            new TransactionNodeQueue( roots[ 0 ] ).getQueues().get( 1 );
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                queue.remove();
+            }
+        }, false );
+        assertEquals( Collections.singleton( 1 ),
+            new TransactionNodeQueue( roots[ 0 ] ).getQueues().keySet() );
+        assertEquals( 1, queue.peek().get( "value" ) );
+        
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                queue.remove();
+            }
+        }, true );
+        assertNull( queue.peek( 1 ) );
+        assertTrue( new TransactionNodeQueue( roots[ 0 ] ).getQueues().isEmpty() );
+        
+        deleteQueues( roots );
+    }
+    
+    static Map<String, Object> entry( int value )
+    {
+        return Collections.<String, Object>singletonMap( "value", value );
+    }
+    
+    /**
+     * Deletes the root nodes and the (consumed) queue nodes under them.
+     */
+    static void deleteQueues( Node... roots )
+    {
+        for ( Node root : roots )
+        {
+            for ( Relationship rel : root.getRelationships() )
+            {
+                Node queueNode = rel.getOtherNode( root );
+                rel.delete();
+                queueNode.delete();
+            }
+            root.delete();
+        }
+    }
+    
+    static void inOwnTransaction( final Runnable runnable,
+        final boolean commit ) throws Exception
+    {
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                Transaction tx = graphDb().beginTx();
+                try
+                {
+                    runnable.run();
+                    if ( commit )
+                    {
+                        tx.success();
+                    }
+                }
+                finally
+                {
+                    tx.finish();
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+    }
+}
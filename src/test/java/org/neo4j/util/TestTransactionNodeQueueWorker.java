@@ -0,0 +1,256 @@
+/**
+ * Copyright (c) 2002-2011 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.util.TestTransactionNodeQueue.deleteQueues;
+import static org.neo4j.util.TestTransactionNodeQueue.entry;
+import static org.neo4j.util.TestTransactionNodeQueue.inOwnTransaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * Tests the {@link TransactionNodeQueueWorker} class.
+ */
+public class TestTransactionNodeQueueWorker extends Neo4jTest
+{
+    @Test
+    public void testEachQueueConsumedOnce() throws Exception
+    {
+        final Node[] root = new Node[ 1 ];
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                root[ 0 ] = graphDb().createNode();
+            }
+        }, true );
+        
+        // More queues than consumers, so that consumers have to continue
+        // with waiting queues. The balancing thread never times out, so
+        // only dispatching on commit gets the queues consumed.
+        final RecordingWorker worker = new RecordingWorker( root[ 0 ], 2, 3 );
+        worker.startUp();
+        int queues = 6;
+        final int entriesPerQueue = 10;
+        for ( int i = 0; i < queues; i++ )
+        {
+            final int queue = i;
+            inOwnTransaction( new Runnable()
+            {
+                public void run()
+                {
+                    for ( int j = 0; j < entriesPerQueue; j++ )
+                    {
+                        worker.add( entry( queue * entriesPerQueue + j ) );
+                    }
+                }
+            }, true );
+        }
+        
+        worker.awaitHandled( queues * entriesPerQueue );
+        worker.shutDown();
+        worker.join();
+        
+        // Each entry exactly once, and in order within its queue
+        List<Integer> handled = worker.getHandled();
+        List<Integer> sorted = new ArrayList<Integer>( handled );
+        Collections.sort( sorted );
+        for ( int i = 0; i < sorted.size(); i++ )
+        {
+            assertEquals( i, ( int ) sorted.get( i ) );
+        }
+        for ( int queue = 0; queue < queues; queue++ )
+        {
+            int previous = -1;
+            for ( int value : handled )
+            {
+                if ( value / entriesPerQueue == queue )
+                {
+                    assertTrue( value > previous );
+                    previous = value;
+                }
+            }
+        }
+        assertTrue( worker.getQueue().getQueues().isEmpty() );
+        
+        deleteQueues( root );
+    }
+    
+    @Test
+    public void testGroupedRemovalCommits() throws Exception
+    {
+        // 25 entries in batches of two, one commit per five batches
+        assertEquals( 3, countRemovalCommits( 5, Long.MAX_VALUE ) );
+        // The time limit has always passed, so a commit after every batch
+        assertEquals( 13, countRemovalCommits( 5, 0 ) );
+    }
+    
+    /**
+     * Has a worker with one consumer handle 25 entries, committed in one
+     * transaction, in batches of two with the given commit interval.
+     * @return the number of transactions committed by the consumer, which
+     * only commits when it removes handled entries.
+     */
+    private int countRemovalCommits( int maxBatches, long maxMillis )
+        throws Exception
+    {
+        final Node[] root = new Node[ 1 ];
+        inOwnTransaction( new Runnable()
+        {
+            public void run()
+            {
+                root[ 0 ] = graphDb().createNode();
+            }
+        }, true );
+        
+        final RecordingWorker worker = new RecordingWorker( root[ 0 ], 1, 2 );
+        worker.setCommitInterval( maxBatches, maxMillis );
+        final AtomicInteger commits = new AtomicInteger();
+        TransactionEventHandler<Object> commitCounter =
+            new TransactionEventHandler<Object>()
+        {
+            public Object beforeCommit( TransactionData data )
+            {
+                return null;
+            }
+            
+            public void afterCommit( TransactionData data, Object state )
+            {
+                if ( worker.isConsumer( Thread.currentThread() ) )
+                {
+                    commits.incrementAndGet();
+                }
+            }
+            
+            public void afterRollback( TransactionData data, Object state )
+            {
+            }
+        };
+        graphDb().registerTransactionEventHandler( commitCounter );
+        try
+        {
+            worker.startUp();
+            inOwnTransaction( new Runnable()
+            {
+                public void run()
+                {
+                    for ( int i = 0; i < 25; i++ )
+                    {
+                        worker.add( entry( i ) );
+                    }
+                }
+            }, true );
+            worker.awaitHandled( 25 );
+            worker.shutDown();
+            worker.join();
+        }
+        finally
+        {
+            graphDb().unregisterTransactionEventHandler( commitCounter );
+        }
+        assertTrue( worker.getQueue().getQueues().isEmpty() );
+        
+        deleteQueues( root );
+        return commits.get();
+    }
+    
+    /**
+     * Records the values of the entries it handles, and the threads which
+     * handles them.
+     */
+    static class RecordingWorker extends TransactionNodeQueueWorker
+    {
+        private final List<Integer> handled = new ArrayList<Integer>();
+        private final Set<Thread> consumers =
+            Collections.synchronizedSet( new HashSet<Thread>() );
+        
+        RecordingWorker( Node rootNode, int maxConsumers, int batchSize )
+        {
+            super( graphDb(), rootNode, maxConsumers, batchSize );
+        }
+        
+        @Override
+        protected void waitBeforeRun()
+        {
+        }
+        
+        @Override
+        protected long getWaitTimeoutBetweenBalancing()
+        {
+            return Long.MAX_VALUE / 2;
+        }
+        
+        @Override
+        protected void handleEntry( Map<String, Object> entry )
+        {
+            consumers.add( Thread.currentThread() );
+            synchronized ( handled )
+            {
+                handled.add( ( Integer ) entry.get( "value" ) );
+                handled.notifyAll();
+            }
+        }
+        
+        boolean isConsumer( Thread thread )
+        {
+            return consumers.contains( thread );
+        }
+        
+        List<Integer> getHandled()
+        {
+            synchronized ( handled )
+            {
+                return new ArrayList<Integer>( handled );
+            }
+        }
+        
+        void awaitHandled( int count ) throws InterruptedException
+        {
+            long end = System.currentTimeMillis() + 10000;
+            synchronized ( handled )
+            {
+                while ( handled.size() < count &&
+                    System.currentTimeMillis() < end )
+                {
+                    handled.wait( 100 );
+                }
+                assertEquals( count, handled.size() );
+            }
+            while ( !isIdle() && System.currentTimeMillis() < end )
+            {
+                Thread.sleep( 10 );
+            }
+            assertTrue( isIdle() );
+        }
+    }
+}